@@ -16,12 +16,52 @@
 
 package nl.knaw.dans.avexports;
 
+import com.codahale.metrics.MetricRegistry;
 import lombok.extern.slf4j.Slf4j;
+import io.dropwizard.util.DataSize;
+import io.dropwizard.util.Duration;
+import jdk.jfr.Recording;
 import nl.knaw.dans.avexports.config.EasyConvertAvExportsConfig;
+import nl.knaw.dans.avexports.config.InputCheckConfig;
+import nl.knaw.dans.avexports.config.IoConfig;
+import nl.knaw.dans.avexports.config.IoGroupConfig;
+import nl.knaw.dans.avexports.config.PipelineConfig;
+import nl.knaw.dans.avexports.config.RetryConfig;
+import nl.knaw.dans.avexports.config.ServiceConfig;
+import nl.knaw.dans.avexports.config.SourcesConfig;
+import nl.knaw.dans.avexports.config.SpringfieldIndexConfig;
+import nl.knaw.dans.avexports.config.SpringfieldPrefetchConfig;
+import nl.knaw.dans.avexports.config.WatchdogConfig;
 import nl.knaw.dans.avexports.core.AvDatasetConverter;
+import nl.knaw.dans.avexports.core.BackgroundDeleter;
+import nl.knaw.dans.avexports.core.BagArchiver;
+import nl.knaw.dans.avexports.core.ConversionEvents;
+import nl.knaw.dans.avexports.core.DatasetReport;
+import nl.knaw.dans.avexports.core.Durability;
+import nl.knaw.dans.avexports.core.ExportBatch;
 import nl.knaw.dans.avexports.core.FedoraExports;
+import nl.knaw.dans.avexports.core.FileTransfer;
+import nl.knaw.dans.avexports.core.InboxWatcher;
+import nl.knaw.dans.avexports.core.IoScheduler;
+import nl.knaw.dans.avexports.core.InputChecker;
+import nl.knaw.dans.avexports.core.IoScheduler.IoGroup;
+import nl.knaw.dans.avexports.core.LocalityBenchmark;
+import nl.knaw.dans.avexports.core.MemoryBudget;
+import nl.knaw.dans.avexports.core.OutputVerifier;
+import nl.knaw.dans.avexports.core.RetryPolicy;
 import nl.knaw.dans.avexports.core.Sources;
+import nl.knaw.dans.avexports.core.SpringfieldFileRegistry;
+import nl.knaw.dans.avexports.core.SpringfieldIndex;
+import nl.knaw.dans.avexports.core.SpringfieldLocality;
+import nl.knaw.dans.avexports.core.SpringfieldPrefetcher;
+import nl.knaw.dans.avexports.core.StagingSync;
+import nl.knaw.dans.avexports.core.StatusServer;
+import nl.knaw.dans.avexports.core.TaskExecutor;
+import nl.knaw.dans.avexports.core.Watchdog;
 import nl.knaw.dans.lib.util.PicocliVersionProvider;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FileUtils;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -29,7 +69,19 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import static java.nio.file.Files.copy;
 
@@ -39,15 +91,23 @@ import static java.nio.file.Files.copy;
          description = "Converts bags exported by easy-fedora-to-bag to bags with AV data")
 @Slf4j
 public class EasyConvertAvExports extends AbstractCommandLineAppJava8<EasyConvertAvExportsConfig> {
+    // Exit status of a run that converted everything, but could not delete the previous staging directory completely
+    static final int EXIT_DELETION_FAILED = 1;
+
     public static void main(String[] args) throws Exception {
         new EasyConvertAvExports().run(args);
     }
 
-    @Parameters(index = "0", description = "Input directory containing the bags exported by easy-fedora-to-bag")
-    private Path inputDir;
+    // Optional for picocli, so that the server command and --batch can be used without them
+    @Parameters(arity = "0..*",
+                paramLabel = "<input-dir> <output-dir>",
+                description = "Pairs of an input directory containing the bags exported by easy-fedora-to-bag and an output directory for the bags with AV data")
+    private List<Path> dirs = new ArrayList<>();
 
-    @Parameters(index = "1", description = "Output directory for the bags with AV data")
-    private Path outputDir;
+    @Option(names = { "-b", "--batch" },
+            paramLabel = "FILE",
+            description = "CSV file with columns input_dir and output_dir, listing more pairs of input and output directories to convert in the same run")
+    private Path batchFile;
 
     @Option(names = { "-m", "--move" },
             description = "Move the input to the staging directory instead of copying it")
@@ -57,10 +117,57 @@ public class EasyConvertAvExports extends AbstractCommandLineAppJava8<EasyConver
             description = "Fail run on first error")
     private boolean failFast;
 
+    @Option(names = { "-i", "--incremental" },
+            arity = "0..1",
+            fallbackValue = "ATTRIBUTES",
+            paramLabel = "ATTRIBUTES|MANIFESTS",
+            description = "Skip bag parents that are already in the output directory, only copy the others that are new or changed to the staging "
+                + "directory, comparing file sizes and modification times (ATTRIBUTES, the default) or manifests (MANIFESTS), and remove the ones that "
+                + "are no longer in the input")
+    private StagingSync.Comparison incremental;
+
+    @Option(names = { "-a", "--archive" },
+            paramLabel = "ZIP|TAR",
+            description = "Write each bag parent to a ZIP or tar file in the output directory instead of moving it there")
+    private BagArchiver.Format archive;
+
+    @Option(names = { "-v", "--verify" },
+            description = "Verify the output bags after they are written")
+    private boolean verify;
+
+    @Option(names = { "-c", "--check-input" },
+            description = "Check the payload of the input bags against their manifests before converting them")
+    private boolean checkInput;
+
+    @Option(names = { "--order" },
+            paramLabel = "INPUT|PATH|INODE",
+            description = "Convert the datasets in the order of the input (default), or in the order of the path or inode number of their Springfield files, so that the Springfield files are read as sequentially as possible")
+    private SpringfieldLocality.Order order = SpringfieldLocality.Order.INPUT;
+
+    @Option(names = { "-r", "--report" },
+            paramLabel = "FILE",
+            description = "Write a record per dataset with its outcome, timings and byte counts to FILE, as CSV if FILE ends with .csv and as JSON Lines otherwise")
+    private Path report;
+
+    @Option(names = { "--jfr" },
+            paramLabel = "FILE",
+            description = "Record a Java Flight Recording with the conversion events to FILE")
+    private Path jfr;
+
     private Path stagingDir;
 
+    private EasyConvertAvExportsConfig config;
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
     private final AvDatasetConverter.AvDatasetConverterBuilder builder = AvDatasetConverter.builder();
 
+    private Sources sources;
+
+    private TaskExecutor taskExecutor;
+
+    private Watchdog watchdog;
+
     public String getName() {
         return "Converts bags exported by easy-fedora-to-bag to bags with AV data";
     }
@@ -69,9 +176,12 @@ public class EasyConvertAvExports extends AbstractCommandLineAppJava8<EasyConver
     public void configureCommandLine(CommandLine commandLine, EasyConvertAvExportsConfig config) {
         log.debug("Reading configuration sources from {}", config.getSources());
         try {
-            builder.sources(new Sources(config.getSources().getPath()))
-                .springfieldDir(config.getSources().getSpringfieldDir());
+            sources = new Sources(config.getSources().getPath());
+            builder.sources(sources);
             stagingDir = config.getStagingDir();
+            taskExecutor = TaskExecutor.create(config.getThreads());
+            log.info("Using {} threads", taskExecutor.getName());
+            this.config = config;
         }
         catch (IOException e) {
             throw new RuntimeException("Error reading sources configuration", e);
@@ -80,29 +190,362 @@ public class EasyConvertAvExports extends AbstractCommandLineAppJava8<EasyConver
 
     @Override
     public Integer call() {
+        checkOptions();
+        if (move && incremental != null) {
+            throw new IllegalArgumentException("--incremental cannot be combined with --move");
+        }
+        BackgroundDeleter backgroundDeleter = new BackgroundDeleter(config.getDeletionParallelism());
+        DatasetReport datasetReport = null;
+        Recording recording = null;
+        boolean deletionSucceeded;
         try {
-            FedoraExports fedoraExports;
-            if (move) {
-                fedoraExports = new FedoraExports(inputDir);
-            }
-            else {
+            Map<Path, Path> inputToOutputDirs = getInputToOutputDirs();
+            recording = startRecording();
+            IoScheduler ioScheduler = createIoScheduler(new ArrayList<>(inputToOutputDirs.values()));
+            FileTransfer fileTransfer = createFileTransfer(ioScheduler);
+            if (!move && incremental == null) {
                 log.debug("Recreating staging dir {}", stagingDir);
-                FileUtils.deleteDirectory(stagingDir.toFile());
-                log.info("Copying input to staging dir {}", stagingDir);
-                FileUtils.copyDirectory(inputDir.toFile(), stagingDir.toFile());
-                fedoraExports = new FedoraExports(stagingDir);
+                backgroundDeleter.delete(stagingDir);
+            }
+            List<ExportBatch> exportBatches = new ArrayList<>();
+            for (Map.Entry<Path, Path> dirs : inputToOutputDirs.entrySet()) {
+                // With several inputs, each one gets its own subdirectory of the staging directory
+                Path batchStagingDir = inputToOutputDirs.size() == 1 ? stagingDir : stagingDir.resolve(dirs.getKey().getFileName());
+                exportBatches.add(new ExportBatch(stageInput(dirs.getKey(), batchStagingDir, dirs.getValue(), fileTransfer), dirs.getValue()));
             }
-            builder
-                .fedoraExports(fedoraExports)
-                .outputDir(outputDir)
+            SpringfieldIndex springfieldIndex = loadSpringfieldIndex();
+            if (report != null) {
+                datasetReport = new DatasetReport(report, getStages());
+            }
+            configureConverter(ioScheduler, fileTransfer, springfieldIndex)
+                .exportBatches(exportBatches)
+                .datasetReport(datasetReport)
                 .failFast(failFast)
+                .incremental(incremental != null)
                 .build()
                 .convert();
-            return 0;
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
+        finally {
+            closeReport(datasetReport, report);
+            stopRecording(recording);
+            if (watchdog != null) {
+                watchdog.close();
+            }
+            deletionSucceeded = backgroundDeleter.awaitCompletion();
+        }
+        if (!deletionSucceeded) {
+            // The conversion succeeded, but the old staging directory is (partly) left behind and takes up space
+            log.error("Background deletion of the previous staging directory failed; exiting with status {}", EXIT_DELETION_FAILED);
+            return EXIT_DELETION_FAILED;
+        }
+        return 0;
+    }
+
+    private FedoraExports stageInput(Path inputDir, Path batchStagingDir, Path outputDir, FileTransfer fileTransfer) throws IOException {
+        if (move) {
+            return new FedoraExports(inputDir);
+        }
+        else if (incremental != null) {
+            log.info("Synchronizing staging dir {} with input {}", batchStagingDir, inputDir);
+            new StagingSync(fileTransfer, incremental).sync(inputDir, batchStagingDir, outputDir);
+        }
+        else {
+            log.info("Copying input {} to staging dir {}", inputDir, batchStagingDir);
+            fileTransfer.copyDirectory(inputDir, batchStagingDir);
+        }
+        return new FedoraExports(batchStagingDir);
     }
 
+    /**
+     * Collects the pairs of input and output directories from the command line and the batch file.
+     *
+     * @return the output directory by input directory, in the order given
+     */
+    private Map<Path, Path> getInputToOutputDirs() throws IOException {
+        if (dirs.size() % 2 != 0) {
+            throw new IllegalArgumentException("Input and output directories must be given in pairs");
+        }
+        Map<Path, Path> inputToOutputDirs = new LinkedHashMap<>();
+        for (int i = 0; i < dirs.size(); i += 2) {
+            addDirectoryPair(inputToOutputDirs, dirs.get(i), dirs.get(i + 1));
+        }
+        if (batchFile != null) {
+            Path baseDir = batchFile.toAbsolutePath().getParent();
+            try (CSVParser csvParser = CSVParser.parse(batchFile.toFile(), StandardCharsets.UTF_8, CSVFormat.DEFAULT.withHeader())) {
+                for (CSVRecord csvRecord : csvParser) {
+                    // Relative paths are relative to the batch file
+                    addDirectoryPair(inputToOutputDirs, baseDir.resolve(csvRecord.get("input_dir")), baseDir.resolve(csvRecord.get("output_dir")));
+                }
+            }
+        }
+        if (inputToOutputDirs.isEmpty()) {
+            throw new IllegalArgumentException("<input-dir> and <output-dir> or --batch are required");
+        }
+        Set<Path> stagingNames = new HashSet<>();
+        Set<Path> outputDirs = new HashSet<>();
+        for (Map.Entry<Path, Path> pair : inputToOutputDirs.entrySet()) {
+            if (!stagingNames.add(pair.getKey().getFileName())) {
+                throw new IllegalArgumentException("Input directories must have different names: " + pair.getKey().getFileName());
+            }
+            if (!outputDirs.add(pair.getValue().toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("Output directory " + pair.getValue() + " is given more than once");
+            }
+        }
+        return inputToOutputDirs;
+    }
+
+    private void addDirectoryPair(Map<Path, Path> inputToOutputDirs, Path inputDir, Path outputDir) {
+        if (inputToOutputDirs.put(inputDir, outputDir) != null) {
+            throw new IllegalArgumentException("Input directory " + inputDir + " is given more than once");
+        }
+    }
+
+    @Command(name = "benchmark-order",
+             description = "Compare the orders of --order for the datasets in <input-dir>, by how sequentially they would read the Springfield files")
+    public int benchmarkOrder(
+        @Parameters(paramLabel = "<input-dir>", description = "Input directory containing the bags exported by easy-fedora-to-bag") Path inputDir,
+        @Option(names = "--read", description = "Also read the Springfield files in each order and measure the throughput") boolean read) throws IOException {
+        // The results are logged per order
+        new LocalityBenchmark(config.getSources().getSpringfieldDir(), sources).runAll(new FedoraExports(inputDir).getDatasetIds(), read);
+        return 0;
+    }
+
+    @Command(name = "server",
+             description = "Watch the inbox for export batches and convert them one by one, serving the status and metrics over HTTP")
+    public int server() throws IOException, InterruptedException {
+        checkOptions();
+        ServiceConfig serviceConfig = config.getService();
+        if (serviceConfig.getInbox() == null || serviceConfig.getOutbox() == null) {
+            throw new IllegalArgumentException("service.inbox and service.outbox must be configured for the server command");
+        }
+        Files.createDirectories(serviceConfig.getOutbox());
+        Files.createDirectories(stagingDir);
+        // Sources, the Springfield index and the I/O limits are shared by all batches; the index is refreshed per batch
+        SpringfieldIndex springfieldIndex = loadSpringfieldIndex();
+        IoScheduler ioScheduler = createIoScheduler(Collections.singletonList(serviceConfig.getOutbox()));
+        FileTransfer fileTransfer = createFileTransfer(ioScheduler);
+        InboxWatcher inboxWatcher = new InboxWatcher(serviceConfig.getInbox(), serviceConfig.getQueueCapacity(), serviceConfig.getRescanInterval().toMilliseconds(),
+            batchDir -> convertBatch(batchDir, springfieldIndex, ioScheduler, fileTransfer), metricRegistry);
+        StatusServer statusServer = new StatusServer(serviceConfig.getPort(), metricRegistry, inboxWatcher::getStatus);
+        Recording recording = startRecording();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.info("Stopping; waiting for the current batch to finish");
+                inboxWatcher.close();
+                statusServer.close();
+                watchdog.close();
+            }
+            catch (IOException e) {
+                log.warn("Error while stopping", e);
+            }
+            finally {
+                stopRecording(recording);
+            }
+        }));
+        statusServer.start();
+        inboxWatcher.start();
+        inboxWatcher.awaitStop();
+        return 0;
+    }
+
+    /**
+     * Converts one export batch from the inbox. The batch is moved to the staging directory, and the output and the report are written to the outbox.
+     * The failed datasets of the batch are left in the staging directory. A batch with the name of a batch that is still in the staging directory or
+     * the outbox is refused and left in the inbox.
+     * <p>
+     * The Springfield index is refreshed for every batch, so that Springfield files and subtitles added since the previous batch are found. Only the
+     * directories that were modified since are listed again.
+     */
+    private void convertBatch(Path batchDir, SpringfieldIndex springfieldIndex, IoScheduler ioScheduler, FileTransfer fileTransfer) throws IOException {
+        Path outbox = config.getService().getOutbox();
+        String batchName = batchDir.getFileName().toString();
+        Path stagedBatchDir = stagingDir.resolve(batchName);
+        if (Files.exists(stagedBatchDir)) {
+            throw new IllegalStateException("Staging directory already contains " + stagedBatchDir + ", e.g. with the failed datasets of an earlier batch "
+                + "with the same name; rename the batch, or move that directory away and restart the server");
+        }
+        if (Files.exists(outbox.resolve(batchName))) {
+            throw new IllegalStateException("Outbox already contains " + outbox.resolve(batchName) + " of an earlier batch with the same name; rename the "
+                + "batch, or move that directory away and restart the server");
+        }
+        refreshSpringfieldIndex(springfieldIndex);
+        FileUtils.moveDirectory(batchDir.toFile(), stagedBatchDir.toFile());
+        Path reportFile = outbox.resolve(batchName + "-report.jsonl");
+        DatasetReport datasetReport = new DatasetReport(reportFile, getStages());
+        try {
+            configureConverter(ioScheduler, fileTransfer, springfieldIndex)
+                .fedoraExports(new FedoraExports(stagedBatchDir))
+                .outputDir(outbox.resolve(batchName))
+                .datasetReport(datasetReport)
+                .failFast(false)
+                .build()
+                .convert();
+        }
+        finally {
+            closeReport(datasetReport, reportFile);
+        }
+        try (Stream<Path> remaining = Files.list(stagedBatchDir)) {
+            if (remaining.findAny().isPresent()) {
+                log.warn("Failed datasets of export batch {} were left in {}", batchName, stagedBatchDir);
+                return;
+            }
+        }
+        Files.delete(stagedBatchDir);
+    }
+
+    private Recording startRecording() throws IOException {
+        if (jfr == null) {
+            return null;
+        }
+        log.info("Recording flight recorder events to {}", jfr);
+        return ConversionEvents.startRecording(jfr);
+    }
+
+    private void stopRecording(Recording recording) {
+        if (recording != null) {
+            // Writes the recording to its destination
+            recording.stop();
+            recording.close();
+            log.info("Wrote flight recording to {}", jfr);
+        }
+    }
+
+    private void checkOptions() {
+        if (verify && archive != null) {
+            throw new IllegalArgumentException("--verify cannot be combined with --archive");
+        }
+    }
+
+    private FileTransfer createFileTransfer(IoScheduler ioScheduler) {
+        return FileTransfer.builder()
+            .chunkSize(config.getTransfer().getChunkSize().toBytes())
+            .extendToFinalSize(config.getTransfer().isExtendToFinalSize())
+            .fsync(config.getTransfer().isFsync() || config.getDurability() == Durability.Policy.PER_FILE)
+            .ioScheduler(ioScheduler)
+            .metricRegistry(metricRegistry)
+            .build();
+    }
+
+    private SpringfieldIndex loadSpringfieldIndex() throws IOException {
+        SourcesConfig sourcesConfig = config.getSources();
+        return SpringfieldIndex.load(sourcesConfig.getSpringfieldDir(),
+            sourcesConfig.getSpringfieldIndex().getCacheFile(),
+            sourcesConfig.getSpringfieldIndex().getParallelism());
+    }
+
+    private void refreshSpringfieldIndex(SpringfieldIndex springfieldIndex) throws IOException {
+        SpringfieldIndexConfig indexConfig = config.getSources().getSpringfieldIndex();
+        if (springfieldIndex.refresh(indexConfig.getParallelism()) > 0 && indexConfig.getCacheFile() != null) {
+            springfieldIndex.writeCache(indexConfig.getCacheFile());
+        }
+    }
+
+    /**
+     * Configures the converter with everything but the input, the output, the report and the failure mode. The Springfield prefetcher, the file registry
+     * and the memory budget are created anew, as they only live for one run of the converter.
+     */
+    private AvDatasetConverter.AvDatasetConverterBuilder configureConverter(IoScheduler ioScheduler, FileTransfer fileTransfer, SpringfieldIndex springfieldIndex) {
+        SourcesConfig sourcesConfig = config.getSources();
+        SpringfieldPrefetcher springfieldPrefetcher = createSpringfieldPrefetcher(springfieldIndex, fileTransfer);
+        return builder
+            .springfieldIndex(springfieldIndex)
+            .springfieldFileRegistry(new SpringfieldFileRegistry(sourcesConfig.getSpringfieldDir(), springfieldIndex, fileTransfer, ioScheduler,
+                springfieldPrefetcher, sourcesConfig.isHardlinkSharedFiles()))
+            .springfieldPrefetcher(springfieldPrefetcher)
+            .fileTransfer(fileTransfer)
+            .ioScheduler(ioScheduler)
+            .stageConcurrency(getStageConcurrency())
+            .queueCapacity(config.getPipeline().getQueueCapacity())
+            .inventoryParallelism(config.getPipeline().getInventoryParallelism())
+            .streamingFilesXmlThreshold(config.getStreamingFilesXmlThreshold().toBytes())
+            .archiveFormat(archive)
+            .outputVerifier(verify ? new OutputVerifier(config.getVerification().getSampleRate(), config.getVerification().getParallelism(), ioScheduler, taskExecutor) : null)
+            .inputChecker(checkInput ? createInputChecker(ioScheduler) : null)
+            .metricRegistry(metricRegistry)
+            .springfieldLocality(order == SpringfieldLocality.Order.INPUT ? null : new SpringfieldLocality(sourcesConfig.getSpringfieldDir(), sources, order))
+            .taskExecutor(taskExecutor)
+            .watchdog(watchdog)
+            .memoryBudget(new MemoryBudget(config.getMemoryBudget() == null ? 0 : config.getMemoryBudget().toBytes()))
+            .durability(new Durability(config.getDurability(), metricRegistry));
+    }
+
+    private void closeReport(DatasetReport datasetReport, Path reportFile) {
+        if (datasetReport != null) {
+            try {
+                datasetReport.close();
+            }
+            catch (IOException e) {
+                log.warn("Could not close report {}", reportFile, e);
+            }
+        }
+    }
+
+    private List<String> getStages() {
+        List<String> stages = new ArrayList<>(Arrays.asList(AvDatasetConverter.STAGE_SCAN, AvDatasetConverter.STAGE_PLAN, AvDatasetConverter.STAGE_FETCH,
+            AvDatasetConverter.STAGE_HASH, AvDatasetConverter.STAGE_WRITE, AvDatasetConverter.STAGE_PUBLISH));
+        if (verify) {
+            stages.add(AvDatasetConverter.STAGE_VERIFY);
+        }
+        return stages;
+    }
+
+    private SpringfieldPrefetcher createSpringfieldPrefetcher(SpringfieldIndex springfieldIndex, FileTransfer fileTransfer) {
+        SpringfieldPrefetchConfig prefetchConfig = config.getSources().getPrefetch();
+        if (prefetchConfig.getScratchDir() == null || prefetchConfig.getLookAhead() == 0) {
+            return SpringfieldPrefetcher.disabled();
+        }
+        return new SpringfieldPrefetcher(config.getSources().getSpringfieldDir(), springfieldIndex, sources, fileTransfer, prefetchConfig.getScratchDir(),
+            prefetchConfig.getLookAhead(), prefetchConfig.getMaxBytes().toBytes());
+    }
+
+    private InputChecker createInputChecker(IoScheduler ioScheduler) {
+        InputCheckConfig inputCheckConfig = config.getInputCheck();
+        DataSize maxBytesPerBag = inputCheckConfig.getMaxBytesPerBag();
+        return new InputChecker(sources, inputCheckConfig.getSampleRate(), maxBytesPerBag == null ? Long.MAX_VALUE : maxBytesPerBag.toBytes(),
+            inputCheckConfig.getParallelism(), ioScheduler, taskExecutor);
+    }
+
+    private Map<String, Integer> getStageConcurrency() {
+        PipelineConfig pipelineConfig = config.getPipeline();
+        Map<String, Integer> stageConcurrency = new HashMap<>();
+        stageConcurrency.put(AvDatasetConverter.STAGE_SCAN, pipelineConfig.getScan());
+        stageConcurrency.put(AvDatasetConverter.STAGE_PLAN, pipelineConfig.getPlan());
+        stageConcurrency.put(AvDatasetConverter.STAGE_FETCH, pipelineConfig.getFetch());
+        stageConcurrency.put(AvDatasetConverter.STAGE_HASH, pipelineConfig.getHash());
+        stageConcurrency.put(AvDatasetConverter.STAGE_WRITE, pipelineConfig.getWrite());
+        stageConcurrency.put(AvDatasetConverter.STAGE_PUBLISH, pipelineConfig.getPublish());
+        stageConcurrency.put(AvDatasetConverter.STAGE_VERIFY, pipelineConfig.getVerify());
+        return stageConcurrency;
+    }
+
+    private IoScheduler createIoScheduler(List<Path> outputDirs) {
+        IoConfig ioConfig = config.getIo();
+        watchdog = createWatchdog(config.getWatchdog());
+        return new IoScheduler(Arrays.asList(
+            createIoGroup("springfield", Collections.singletonList(config.getSources().getSpringfieldDir()), ioConfig.getSpringfield()),
+            createIoGroup("staging", Collections.singletonList(stagingDir), ioConfig.getStaging()),
+            createIoGroup("output", outputDirs, ioConfig.getOutput())),
+            metricRegistry,
+            createRetryPolicy(ioConfig.getRetry()),
+            watchdog);
+    }
+
+    private Watchdog createWatchdog(WatchdogConfig watchdogConfig) {
+        Duration operationTimeout = watchdogConfig.getOperationTimeout();
+        Duration datasetTimeout = watchdogConfig.getDatasetTimeout();
+        return new Watchdog(operationTimeout == null ? 0 : operationTimeout.toMilliseconds(), datasetTimeout == null ? 0 : datasetTimeout.toMilliseconds(),
+            metricRegistry);
+    }
+
+    private RetryPolicy createRetryPolicy(RetryConfig retryConfig) {
+        return new RetryPolicy(retryConfig.getMaxAttempts(), retryConfig.getInitialDelay().toMilliseconds(), retryConfig.getMaxDelay().toMilliseconds());
+    }
+
+    private IoGroup createIoGroup(String name, List<Path> roots, IoGroupConfig groupConfig) {
+        DataSize maxBytesPerSecond = groupConfig.getMaxBytesPerSecond();
+        return new IoGroup(name, roots, groupConfig.getMaxConcurrentStreams(), maxBytesPerSecond == null ? 0 : maxBytesPerSecond.toBytes());
+    }
 }
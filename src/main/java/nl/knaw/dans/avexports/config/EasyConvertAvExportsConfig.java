@@ -17,10 +17,14 @@
 package nl.knaw.dans.avexports.config;
 
 import io.dropwizard.Configuration;
+import io.dropwizard.util.DataSize;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import nl.knaw.dans.avexports.core.Durability;
+import nl.knaw.dans.avexports.core.TaskExecutor;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.nio.file.Path;
 
@@ -33,4 +37,50 @@ public class EasyConvertAvExportsConfig extends Configuration {
 
     @NotNull
     private Path stagingDir;
+
+    @Min(1)
+    private int deletionParallelism = 8;
+
+    // AUTO uses virtual threads on Java 21 and later, and platform threads on older runtimes
+    @NotNull
+    private TaskExecutor.Threads threads = TaskExecutor.Threads.AUTO;
+
+    // files.xml files of at least this size are rewritten in a streaming pass instead of being loaded as a DOM
+    @NotNull
+    private DataSize streamingFilesXmlThreshold = DataSize.mebibytes(64);
+
+    // The estimated heap usage of the datasets in the pipeline at the same time; no limit if not set
+    private DataSize memoryBudget;
+
+    // When the converted bags are forced to storage: NONE, PER_BAG (once before a bag is published) or PER_FILE (every file as it is written)
+    @NotNull
+    private Durability.Policy durability = Durability.Policy.PER_BAG;
+
+    @Valid
+    @NotNull
+    private FileTransferConfig transfer = new FileTransferConfig();
+
+    @Valid
+    @NotNull
+    private IoConfig io = new IoConfig();
+
+    @Valid
+    @NotNull
+    private PipelineConfig pipeline = new PipelineConfig();
+
+    @Valid
+    @NotNull
+    private VerificationConfig verification = new VerificationConfig();
+
+    @Valid
+    @NotNull
+    private InputCheckConfig inputCheck = new InputCheckConfig();
+
+    @Valid
+    @NotNull
+    private WatchdogConfig watchdog = new WatchdogConfig();
+
+    @Valid
+    @NotNull
+    private ServiceConfig service = new ServiceConfig();
 }
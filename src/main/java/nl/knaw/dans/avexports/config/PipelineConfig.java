@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.config;
+
+import lombok.Data;
+
+import javax.validation.constraints.Min;
+
+/**
+ * The number of datasets each stage of the conversion pipeline processes at the same time, and the number of datasets that may wait for each stage.
+ */
+@Data
+public class PipelineConfig {
+    @Min(1)
+    private int scan = 1;
+
+    @Min(1)
+    private int plan = 1;
+
+    @Min(1)
+    private int fetch = 2;
+
+    @Min(1)
+    private int hash = 2;
+
+    @Min(1)
+    private int write = 2;
+
+    @Min(1)
+    private int publish = 1;
+
+    // Only used with --verify
+    @Min(1)
+    private int verify = 1;
+
+    @Min(1)
+    private int queueCapacity = 2;
+
+    // Number of directories to list concurrently when taking the inventory of the payload of a bag
+    @Min(1)
+    private int inventoryParallelism = 1;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.config;
+
+import io.dropwizard.util.Duration;
+import lombok.Data;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * How often copies, checksum calculations, directory listings and file attribute reads are tried after a transient I/O error.
+ */
+@Data
+public class RetryConfig {
+    // Maximum number of attempts, including the first one; 1 means no retries
+    @Min(1)
+    private int maxAttempts = 3;
+
+    // Delay before the second attempt; doubled after every further attempt
+    @NotNull
+    private Duration initialDelay = Duration.seconds(1);
+
+    @NotNull
+    private Duration maxDelay = Duration.seconds(30);
+}
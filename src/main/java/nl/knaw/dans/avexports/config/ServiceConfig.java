@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.config;
+
+import io.dropwizard.util.Duration;
+import lombok.Data;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.nio.file.Path;
+
+/**
+ * How the converter runs with the <code>server</code> command.
+ */
+@Data
+public class ServiceConfig {
+    // Directory to watch for export batches; batches must be moved into it when complete
+    private Path inbox;
+
+    // Directory to write the output and the report of each batch to, in a subdirectory named after the batch
+    private Path outbox;
+
+    // Maximum number of batches waiting to be converted
+    @Min(1)
+    private int queueCapacity = 4;
+
+    // Time between rescans of the inbox, in case file system events are lost
+    @NotNull
+    private Duration rescanInterval = Duration.minutes(1);
+
+    // Port for the /status and /metrics endpoints
+    @Min(0)
+    @Max(65535)
+    private int port = 20370;
+}
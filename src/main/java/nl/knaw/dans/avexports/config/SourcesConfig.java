@@ -17,6 +17,7 @@ package nl.knaw.dans.avexports.config;
 
 import lombok.Data;
 
+import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import java.nio.file.Path;
 
@@ -26,4 +27,11 @@ public class SourcesConfig {
     private Path path;
     @NotNull
     private Path springfieldDir;
+    @Valid
+    @NotNull
+    private SpringfieldIndexConfig springfieldIndex = new SpringfieldIndexConfig();
+    private boolean hardlinkSharedFiles = true;
+    @Valid
+    @NotNull
+    private SpringfieldPrefetchConfig prefetch = new SpringfieldPrefetchConfig();
 }
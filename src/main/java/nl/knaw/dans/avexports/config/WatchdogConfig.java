@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.config;
+
+import io.dropwizard.util.Duration;
+import lombok.Data;
+
+/**
+ * When I/O operations are reported as stalled and datasets are given up on.
+ */
+@Data
+public class WatchdogConfig {
+    // I/O operations that take longer are reported with a stack trace; not set means not watched
+    private Duration operationTimeout = Duration.minutes(10);
+
+    // Datasets that take longer are given up on and left in the staging directory; not set means no limit
+    private Duration datasetTimeout;
+}
@@ -15,118 +15,516 @@
  */
 package nl.knaw.dans.avexports.core;
 
+import com.codahale.metrics.MetricRegistry;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.bagit.domain.Bag;
+import nl.knaw.dans.bagit.domain.Manifest;
 import org.apache.commons.io.FileUtils;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
 /**
  * Converts the bag(s) exported for one AV dataset to a bag with AV data.
+ * <p>
+ * The datasets are converted in a pipeline of stages, so that different datasets can be in different stages at the same time. For example, while the
+ * Springfield files of one dataset are fetched, the checksums of the previous dataset can be calculated and the dataset before that can be moved to the
+ * output directory. The stages are:
+ * <ol>
+ *     <li>scan: reads the bags of the dataset, creating a version 2 bag if needed</li>
+ *     <li>plan: updates files.xml and works out which files to stage</li>
+ *     <li>fetch: stages the Springfield files and subtitles in the bag</li>
+ *     <li>hash: calculates the checksums of the staged files and updates the payload manifests</li>
+ *     <li>write: removes empty files and writes files.xml, the manifests and the bag metadata</li>
+ *     <li>publish: moves the bags to the output directory</li>
+ * </ol>
+ * If a {@link DatasetReport} is given, a {@link DatasetRecord} is written to it for every dataset that leaves the pipeline, successfully or not.
+ * <p>
+ * While the conversion runs, it can be inspected and controlled over JMX, see {@link ConversionMXBean}.
  */
 @Slf4j
 @Builder
 public class AvDatasetConverter {
+    public static final String STAGE_SCAN = "scan";
+    public static final String STAGE_PLAN = "plan";
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_HASH = "hash";
+    public static final String STAGE_WRITE = "write";
+    public static final String STAGE_PUBLISH = "publish";
+    public static final String STAGE_VERIFY = "verify";
+
+    public static final String CODE_PATH_NEW_VERSION_2 = "springfield-new-version-2";
+    public static final String CODE_PATH_EXISTING_VERSION_2 = "springfield-existing-version-2";
+    public static final String CODE_PATH_TWO_VERSIONS = "two-versions";
+    public static final String CODE_PATH_ONE_VERSION = "one-version";
+
+    public static final String METRIC_DATASETS_IN_FLIGHT = MetricRegistry.name("datasets", "in-flight");
+    public static final String METRIC_DATASETS_CONVERTED = MetricRegistry.name("datasets", "converted");
+    public static final String METRIC_DATASETS_FAILED = MetricRegistry.name("datasets", "failed");
+    public static final String METRIC_BYTES_COPIED = MetricRegistry.name("datasets", "bytes-copied");
+    public static final String METRIC_BYTES_HASHED = MetricRegistry.name("datasets", "bytes-hashed");
+
+    /**
+     * The export to convert, if there is only one. See {@link #exportBatches}.
+     */
     private final FedoraExports fedoraExports;
+    /**
+     * The output directory for {@link #fedoraExports}.
+     */
     private final Path outputDir;
+    /**
+     * The exports to convert, each with its own output directory, instead of {@link #fedoraExports} and {@link #outputDir}. The datasets of all exports
+     * pass through the same pipeline, so that they share the workers, the Springfield files staged so far and the report.
+     */
+    private final List<ExportBatch> exportBatches;
     private final Sources sources;
-    private final Path springfieldDir;
+    private final SpringfieldIndex springfieldIndex;
+    private final SpringfieldFileRegistry springfieldFileRegistry;
+    private final FileTransfer fileTransfer;
+    /**
+     * Must be the prefetcher used by the Springfield file registry.
+     */
+    @Builder.Default
+    private final SpringfieldPrefetcher springfieldPrefetcher = SpringfieldPrefetcher.disabled();
+    @Builder.Default
+    private final IoScheduler ioScheduler = IoScheduler.UNLIMITED;
+    /**
+     * The number of datasets each stage processes at the same time, by stage name. Stages that are not listed process one dataset at a time.
+     */
+    @Builder.Default
+    private final Map<String, Integer> stageConcurrency = Collections.emptyMap();
+    /**
+     * The maximum number of datasets waiting for each stage.
+     */
+    @Builder.Default
+    private final int queueCapacity = 2;
+    /**
+     * The number of directories to list concurrently when taking the payload inventory of a bag. With 1 the payload is walked in the calling thread.
+     */
+    @Builder.Default
+    private final int inventoryParallelism = 1;
+    /**
+     * The size from which files.xml files are rewritten in a streaming pass instead of being edited as a DOM. See {@link StreamingFilesXml}.
+     */
+    @Builder.Default
+    private final long streamingFilesXmlThreshold = Long.MAX_VALUE;
+    /**
+     * If set, each bag parent is written to an archive of this format in the output directory instead of being moved there. The checksums of the new
+     * payload files are then calculated while they are archived.
+     */
+    private final BagArchiver.Format archiveFormat;
+    /**
+     * If set, the output bags are verified after they are published, and the checksums calculated during the run are recorded with it. Cannot be
+     * combined with {@link #archiveFormat}.
+     */
+    private final OutputVerifier outputVerifier;
+    /**
+     * If set, the input bags are checked before the conversion starts, and the conversion does not start if one of them is invalid.
+     */
+    private final InputChecker inputChecker;
+    /**
+     * If set, a record with the outcome, the time per stage and the bytes copied and hashed is written to it for every dataset.
+     */
+    private final DatasetReport datasetReport;
+    /**
+     * The registry for the number of datasets in the pipeline and the number of datasets converted and failed.
+     */
+    @Builder.Default
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    /**
+     * Creates the worker threads of the pipeline.
+     */
+    @Builder.Default
+    private final TaskExecutor taskExecutor = TaskExecutor.PLATFORM;
+    /**
+     * If set, the datasets and their Springfield files are processed in the order of the location of the Springfield files, instead of in the order of
+     * the input.
+     */
+    private final SpringfieldLocality springfieldLocality;
+    /**
+     * Gives up on datasets that take longer than its dataset timeout.
+     */
+    @Builder.Default
+    private final Watchdog watchdog = Watchdog.disabled();
+    /**
+     * Admits datasets to the pipeline only as long as their estimated heap usage fits in the budget.
+     */
+    @Builder.Default
+    private final MemoryBudget memoryBudget = MemoryBudget.unlimited();
+    /**
+     * Forces the converted bags to storage before they are published. Must use {@link #metricRegistry}, to record the time it takes.
+     */
+    @Builder.Default
+    private final Durability durability = Durability.none();
     private final boolean failFast;
+    /**
+     * If set, the output directory may contain the bag parents converted by an earlier run. The input must then not contain them any more, see
+     * {@link StagingSync}.
+     */
+    private final boolean incremental;
+    // Dataset id to the stage it is in or last left
+    private final Map<String, String> currentDatasets = new ConcurrentHashMap<>();
+    // The pipeline of the current run, for the watchdog to abandon datasets in
+    private final AtomicReference<Pipeline<DatasetConversion>> currentPipeline = new AtomicReference<>();
 
     public void convert() {
-        checkEmpty(outputDir);
-        createDirsIfNeeded(outputDir);
+        List<ExportBatch> batches = exportBatches != null ? exportBatches : Collections.singletonList(new ExportBatch(fedoraExports, outputDir));
+        for (ExportBatch batch : batches) {
+            if (!incremental) {
+                checkEmpty(batch.getOutputDir());
+            }
+            createDirsIfNeeded(batch.getOutputDir());
+        }
         try {
-            for (String datasetId : fedoraExports.getDatasetIds()) {
-                processDataset(datasetId);
+            if (inputChecker != null) {
+                checkInput(batches);
+            }
+            List<DatasetConversion> datasets = new ArrayList<>();
+            List<String> datasetIds = new ArrayList<>();
+            for (ExportBatch batch : batches) {
+                for (String datasetId : batch.getFedoraExports().getDatasetIds()) {
+                    datasets.add(new DatasetConversion(datasetId, batch));
+                    datasetIds.add(datasetId);
+                }
+            }
+            if (springfieldLocality != null) {
+                datasetIds = springfieldLocality.sortDatasets(datasetIds);
+                Map<String, Integer> positions = new HashMap<>();
+                for (int i = 0; i < datasetIds.size(); i++) {
+                    positions.put(datasetIds.get(i), i);
+                }
+                datasets.sort(Comparator.comparing(dataset -> positions.get(dataset.datasetId)));
+            }
+            springfieldPrefetcher.setDatasetOrder(datasetIds);
+            String lastStage = outputVerifier != null ? STAGE_VERIFY : STAGE_PUBLISH;
+            Pipeline<DatasetConversion> pipeline = new Pipeline<DatasetConversion>(queueCapacity, this::handleFailure, taskExecutor)
+                .onDrop(this::handleDrop)
+                .stage(STAGE_SCAN, getConcurrency(STAGE_SCAN), measured(STAGE_SCAN, lastStage, this::scan))
+                .stage(STAGE_PLAN, getConcurrency(STAGE_PLAN), measured(STAGE_PLAN, lastStage, this::plan))
+                .stage(STAGE_FETCH, getConcurrency(STAGE_FETCH), measured(STAGE_FETCH, lastStage, this::fetch))
+                .stage(STAGE_HASH, getConcurrency(STAGE_HASH), measured(STAGE_HASH, lastStage, this::hash))
+                .stage(STAGE_WRITE, getConcurrency(STAGE_WRITE), measured(STAGE_WRITE, lastStage, this::write))
+                .stage(STAGE_PUBLISH, getConcurrency(STAGE_PUBLISH), measured(STAGE_PUBLISH, lastStage, this::publish));
+            if (outputVerifier != null) {
+                pipeline.stage(STAGE_VERIFY, getConcurrency(STAGE_VERIFY), measured(STAGE_VERIFY, lastStage, this::verify));
             }
+            ConversionControl control = new ConversionControl(pipeline, currentDatasets, metricRegistry, springfieldFileRegistry, springfieldPrefetcher,
+                memoryBudget);
+            boolean registered = control.register();
+            currentPipeline.set(pipeline);
+            try {
+                pipeline.run(datasets.iterator());
+            }
+            finally {
+                currentPipeline.set(null);
+                if (registered) {
+                    control.unregister();
+                }
+            }
+            springfieldFileRegistry.logStatistics();
+            springfieldPrefetcher.logStatistics();
+            fileTransfer.logStatistics();
+            memoryBudget.logStatistics();
+            durability.logStatistics();
+            if (outputVerifier != null) {
+                outputVerifier.logStatistics();
+            }
+        }
+        catch (RuntimeException e) {
+            throw e;
         }
-        catch (IOException | ParserConfigurationException | SAXException | XPathExpressionException e) {
+        catch (Exception e) {
             throw new RuntimeException("Error converting AV dataset", e);
         }
+        finally {
+            closePrefetcher();
+        }
+    }
+
+    private void checkInput(List<ExportBatch> batches) throws InterruptedException, ExecutionException {
+        long invalid = 0;
+        for (ExportBatch batch : batches) {
+            invalid += inputChecker.check(batch.getFedoraExports()).stream().filter(result -> !result.isValid()).count();
+        }
+        if (invalid > 0) {
+            throw new IllegalStateException(invalid + " input bags are invalid; see the log for details");
+        }
     }
 
-    private void processDataset(String datasetId) throws IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+    private void closePrefetcher() {
         try {
-            processDatasetInternal(datasetId);
+            springfieldPrefetcher.close();
         }
-        catch (Exception e) {
-            if (failFast) {
-                throw e;
+        catch (IOException e) {
+            log.warn("Could not delete the prefetch scratch directory", e);
+        }
+    }
+
+    private int getConcurrency(String stage) {
+        return stageConcurrency.getOrDefault(stage, 1);
+    }
+
+    /**
+     * Wraps a stage action so that the time it takes and the bytes it copies and hashes are added to the record of the dataset. When the dataset leaves
+     * the last stage, its record is written to the report.
+     */
+    private Pipeline.StageAction<DatasetConversion> measured(String stage, String lastStage, Pipeline.StageAction<DatasetConversion> action) {
+        return dataset -> {
+            DatasetRecord record = dataset.record;
+            ThreadIoCounters counters = ThreadIoCounters.get();
+            long bytesCopied = counters.getBytesCopied();
+            long bytesHashed = counters.getBytesHashed();
+            ConversionEvents.StageCompleted event = new ConversionEvents.StageCompleted();
+            long start = System.nanoTime();
+            if (stage.equals(STAGE_SCAN)) {
+                dataset.started = true;
+                metricRegistry.counter(METRIC_DATASETS_IN_FLIGHT).inc();
+                dataset.event.begin();
+                dataset.watch = watchdog.watchDataset(dataset.datasetId, () -> abandon(dataset));
             }
-            else {
-                log.error("Error processing dataset id {}", datasetId, e);
+            dataset.watch.setThread(Thread.currentThread());
+            ConversionEvents.setCurrentDatasetId(dataset.datasetId);
+            currentDatasets.put(dataset.datasetId, stage);
+            event.begin();
+            boolean succeeded = false;
+            try {
+                action.process(dataset);
+                succeeded = true;
             }
+            finally {
+                ConversionEvents.setCurrentDatasetId(null);
+                long stageBytesCopied = counters.getBytesCopied() - bytesCopied;
+                long stageBytesHashed = counters.getBytesHashed() - bytesHashed;
+                record.getStageMillis().put(stage, (System.nanoTime() - start) / 1000000);
+                record.setBytesCopied(record.getBytesCopied() + stageBytesCopied);
+                record.setBytesHashed(record.getBytesHashed() + stageBytesHashed);
+                metricRegistry.meter(METRIC_BYTES_COPIED).mark(stageBytesCopied);
+                metricRegistry.meter(METRIC_BYTES_HASHED).mark(stageBytesHashed);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.datasetId = dataset.datasetId;
+                    event.stage = stage;
+                    event.bytesCopied = stageBytesCopied;
+                    event.bytesHashed = stageBytesHashed;
+                    event.succeeded = succeeded;
+                    event.commit();
+                }
+            }
+            // Unless the dataset was abandoned while this stage was stuck
+            if (stage.equals(lastStage) && !dataset.finished.get()) {
+                record.setStatus(DatasetRecord.STATUS_OK);
+                finish(dataset);
+                metricRegistry.meter(METRIC_DATASETS_CONVERTED).mark();
+            }
+        };
+    }
+
+    /**
+     * Gives up on a dataset that timed out. A worker that is stuck on it cannot be stopped, but it is replaced, so that the other datasets continue.
+     */
+    private void abandon(DatasetConversion dataset) {
+        Pipeline<DatasetConversion> pipeline = currentPipeline.get();
+        TimeoutException cause = new TimeoutException("Dataset " + dataset.datasetId + " timed out in stage " + currentDatasets.get(dataset.datasetId));
+        if (pipeline == null || !pipeline.abandon(dataset, cause)) {
+            log.warn("Dataset {} timed out while waiting for a stage; it continues", dataset.datasetId);
+        }
+    }
+
+    /**
+     * Removes what an abandoned dataset may have left in the output directory, i.e. incomplete archives. The bag parents stay in the staging directory,
+     * so that the dataset is converted again by the next run.
+     */
+    private void cleanUpAbandoned(DatasetConversion dataset) {
+        if (archiveFormat == null) {
+            return;
+        }
+        BagArchiver bagArchiver = new BagArchiver(archiveFormat, ioScheduler, durability);
+        for (BagConversion bagConversion : Arrays.asList(dataset.version1, dataset.version2)) {
+            if (bagConversion == null) {
+                continue;
+            }
+            Path archiveFile = bagArchiver.getArchiveFile(bagConversion.bagParent, bagConversion.outputDir);
+            Path partFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".part");
+            try {
+                if (Files.deleteIfExists(partFile)) {
+                    log.info("Deleted incomplete archive {} of abandoned dataset {}", partFile, dataset.datasetId);
+                }
+            }
+            catch (IOException e) {
+                log.warn("Could not delete incomplete archive {}", partFile, e);
+            }
+        }
+    }
+
+    /**
+     * Accounts for a dataset that leaves the pipeline, successfully or not. A dataset that was abandoned is only accounted for once, even if its stuck
+     * worker finishes it later.
+     */
+    private void finish(DatasetConversion dataset) {
+        if (!dataset.finished.compareAndSet(false, true)) {
+            return;
+        }
+        dataset.watch.close();
+        memoryBudget.release(dataset.admittedMemory);
+        springfieldPrefetcher.datasetFinished(dataset.datasetId);
+        DatasetRecord record = dataset.record;
+        if (datasetReport != null) {
+            datasetReport.write(record);
+        }
+        if (dataset.started) {
+            metricRegistry.counter(METRIC_DATASETS_IN_FLIGHT).dec();
+        }
+        currentDatasets.remove(record.getDatasetId());
+        ConversionEvents.DatasetConverted event = dataset.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.datasetId = record.getDatasetId();
+            event.codePath = record.getCodePath();
+            event.bagParents = String.join(" ", record.getBagParents());
+            event.springfieldFiles = record.getSpringfieldFiles();
+            event.bytesCopied = record.getBytesCopied();
+            event.bytesHashed = record.getBytesHashed();
+            event.status = record.getStatus();
+            event.commit();
+        }
+    }
+
+    private boolean handleFailure(DatasetConversion dataset, String stage, Exception e) {
+        if (e instanceof TimeoutException) {
+            cleanUpAbandoned(dataset);
+        }
+        dataset.record.setStatus(e instanceof TimeoutException ? DatasetRecord.STATUS_TIMED_OUT : DatasetRecord.STATUS_FAILED);
+        dataset.record.setFailedStage(stage);
+        dataset.record.setError(e.getClass().getSimpleName() + ": " + e.getMessage());
+        finish(dataset);
+        metricRegistry.meter(METRIC_DATASETS_FAILED).mark();
+        if (failFast) {
+            return false;
         }
+        log.error("Error processing dataset id {} in stage {}", dataset.datasetId, stage, e);
+        return true;
+    }
+
+    /**
+     * Accounts for a dataset that did not finish because the pipeline was aborted, e.g. by another dataset failing with fail-fast.
+     */
+    private void handleDrop(DatasetConversion dataset, String stage) {
+        // The pipeline is aborted by now, so that a dataset waiting for memory is dropped as well instead of admitted
+        memoryBudget.close();
+        log.warn("Dataset id {} was not converted, because the run was aborted before stage {}", dataset.datasetId, stage);
+        dataset.record.setStatus(DatasetRecord.STATUS_DROPPED);
+        dataset.record.setFailedStage(stage);
+        finish(dataset);
     }
 
-    private void processDatasetInternal(String datasetId) throws IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+    private void scan(DatasetConversion dataset) throws IOException, ParserConfigurationException, SAXException, XMLStreamException, InterruptedException {
+        String datasetId = dataset.datasetId;
+        ExportBatch batch = dataset.batch;
+        List<Path> bagParents = batch.getFedoraExports().getBagParentsForDatasetId(datasetId);
+        admit(dataset, bagParents);
         log.info(">>> Start processing dataset id {} >>>", datasetId);
+        springfieldPrefetcher.datasetStarted(datasetId);
         if (sources.hasSpringfieldFilesFor(datasetId)) {
-            processVersion2BagWithSpringfieldFiles(datasetId);
+            log.info("Found Springfield files for dataset id {}", datasetId);
+            dataset.record.setCodePath(bagParents.size() == 1 ? CODE_PATH_NEW_VERSION_2 : CODE_PATH_EXISTING_VERSION_2);
+            dataset.version2 = readBag(batch, createVersion2BagIfNeeded(batch.getFedoraExports(), bagParents), true);
         }
-        else if (fedoraExports.getBagParentsForDatasetId(datasetId).size() == 2) {
-            processVersion2BagWithoutSpringfieldFiles(datasetId);
+        else if (bagParents.size() == 2) {
+            dataset.record.setCodePath(CODE_PATH_TWO_VERSIONS);
+            dataset.version2 = readBag(batch, bagParents.get(1), false);
         }
         else {
             log.info("No Springfield files and only one bag parent for dataset id {}", datasetId);
+            dataset.record.setCodePath(CODE_PATH_ONE_VERSION);
         }
-        processVersion1Bag(datasetId);
-        log.info("<<< Finished processing dataset id {} <<<", datasetId);
+        dataset.version1 = readBag(batch, bagParents.get(0), false);
+        dataset.record.getBagParents().add(dataset.version1.bagParent.getFileName().toString());
+        if (dataset.version2 != null) {
+            dataset.record.getBagParents().add(dataset.version2.bagParent.getFileName().toString());
+        }
+    }
+
+    /**
+     * Waits until the estimated heap usage of the dataset fits in the memory budget. Until then, the scan workers and, as the queue fills up, the
+     * dispatch of new datasets are held back.
+     */
+    private void admit(DatasetConversion dataset, List<Path> bagParents) throws IOException, InterruptedException {
+        List<Path> bagDirs = new ArrayList<>();
+        for (Path bagParent : bagParents) {
+            bagDirs.add(dataset.batch.getFedoraExports().getBagDir(bagParent));
+        }
+        if (bagParents.size() == 1 && sources.hasSpringfieldFilesFor(dataset.datasetId)) {
+            // The version 2 bag will be created from the version 1 bag
+            bagDirs.add(bagDirs.get(0));
+        }
+        long estimate = MemoryBudget.estimate(bagDirs, streamingFilesXmlThreshold);
+        dataset.record.setEstimatedMemory(estimate);
+        memoryBudget.acquire(estimate);
+        dataset.admittedMemory = estimate;
+    }
+
+    private BagConversion readBag(ExportBatch batch, Path bagParent, boolean withSpringfieldFiles)
+        throws IOException, ParserConfigurationException, SAXException, XMLStreamException {
+        Path bagDir = batch.getFedoraExports().getBagDir(bagParent);
+        FilesXmlDocument filesXml = FilesXmlDocument.open(bagDir.resolve("metadata/files.xml"), streamingFilesXmlThreshold);
+        return new BagConversion(bagParent, batch.getOutputDir(), BagUtil.readBag(bagDir), filesXml, withSpringfieldFiles);
     }
 
-    private void processVersion2BagWithSpringfieldFiles(String datasetId) throws IOException, ParserConfigurationException, SAXException, XPathExpressionException {
-        log.info("Found Springfield files for dataset id {}", datasetId);
-        Path bagParentVersion2 = createVersion2BagIfNeeded(fedoraExports.getBagParentsForDatasetId(datasetId));
-        log.info(">>> Start processing bag parent {} (version 2) (springfield)>>>", bagParentVersion2);
-        Bag bagVersion2 = BagUtil.readBag(fedoraExports.getBagDir(bagParentVersion2));
-        FilesXml filesXml = new FilesXml(bagVersion2.getRootDir().resolve("metadata/files.xml"));
-        List<String> processedSpringfieldFiles = new ArrayList<>();
-        for (String springfieldFileId : sources.getSpringfieldFileIdsFor(datasetId)) {
+    private void plan(DatasetConversion dataset) throws XPathExpressionException {
+        BagConversion bagVersion2 = dataset.version2;
+        if (bagVersion2 == null || !bagVersion2.withSpringfieldFiles) {
+            return;
+        }
+        Set<String> processedSpringfieldFiles = new HashSet<>();
+        for (String springfieldFileId : sources.getSpringfieldFileIdsFor(dataset.datasetId)) {
             String springfieldFile = sources.getSpringfieldPathByFileId(springfieldFileId);
             if (processedSpringfieldFiles.contains(springfieldFile)) {
                 log.debug("Springfield file {} already processed", springfieldFile);
                 continue;
             }
-            processSpringfieldFile(bagVersion2, filesXml, springfieldFileId, springfieldFile);
+            SpringfieldFileToStage fileToStage = planSpringfieldFile(bagVersion2.filesXml, springfieldFileId, springfieldFile);
+            bagVersion2.springfieldFiles.add(fileToStage);
             processedSpringfieldFiles.add(springfieldFile);
+            dataset.record.setSpringfieldFiles(dataset.record.getSpringfieldFiles() + 1);
+            dataset.record.setSubtitles(dataset.record.getSubtitles() + fileToStage.subtitles.size());
+        }
+        if (springfieldLocality != null) {
+            // Only the order of fetching and hashing; files.xml was updated in the order of the sources
+            bagVersion2.springfieldFiles.sort(Comparator.comparing(fileToStage -> fileToStage.springfieldFile, springfieldLocality.getFileComparator()));
         }
-        removeEmptyFiles(bagVersion2, filesXml);
-        log.debug("Removed empty files");
-        filesXml.write();
-        log.debug("Wrote updated files.xml");
-        BagUtil.updateTagManifestsForPaths(bagVersion2, "metadata/files.xml", "bag-info.txt");
-        BagUtil.updatePayloadManifestChecksumsInTagManifests(bagVersion2);
-        log.debug("Updated tag manifests");
-        BagUtil.writeBag(bagVersion2);
-        log.debug("Wrote updated bag");
-        Files.move(bagParentVersion2, outputDir.resolve(bagParentVersion2.getFileName()));
-        log.debug("Moved version 2 bag to output directory");
-        log.info("<<< Finished processing bag parent {} (version 2) (springfield) <<<", bagParentVersion2);
-    }
-
-    private void processSpringfieldFile(Bag bag, FilesXml filesXml, String springfieldFileId, String springfieldFile) throws IOException, XPathExpressionException {
+    }
+
+    private SpringfieldFileToStage planSpringfieldFile(FilesXmlDocument filesXml, String springfieldFileId, String springfieldFile) throws XPathExpressionException {
         log.debug("Found Springfield file {} for file id {}", springfieldFile, springfieldFileId);
         String originalFilePathInDataset = filesXml.getFilepathForFileId(springfieldFileId);
         log.debug("Original file path in dataset: {}", originalFilePathInDataset);
         String newFilePathInDataset = createNewFilepath(originalFilePathInDataset, springfieldFile);
         log.debug("New file path in dataset: {}", newFilePathInDataset);
-        Path newAvFile = bag.getRootDir().resolve(newFilePathInDataset);
-        Path pseudoFileForAvFile = bag.getRootDir().resolve(originalFilePathInDataset);
-        Files.delete(pseudoFileForAvFile);
-        log.debug("Deleted pseudo file {}", originalFilePathInDataset);
-        FileUtils.copyFile(springfieldDir.resolve(springfieldFile).toFile(), newAvFile.toFile());
-        log.debug("Copied Springfield file to {}", newAvFile);
         if (!originalFilePathInDataset.equals(newFilePathInDataset)) {
             // If we have overwritten an existing OTHER file, we need to remove the old entry, otherwise we will have two entries for the same file
             filesXml.deleteFileElementForFilepath(
@@ -134,60 +532,189 @@ public class AvDatasetConverter {
         }
         filesXml.setFilepathForFileId(springfieldFileId, newFilePathInDataset);
         log.debug("Updated files.xml with new file path {}", newFilePathInDataset);
-        BagUtil.removePayloadManifestEntriesForPath(bag, originalFilePathInDataset);
-        BagUtil.updatePayloadManifestsForPath(bag, newFilePathInDataset);
-        log.debug("Updated payload and tag manifests for new file path {}", newFilePathInDataset);
-
-        addSubtitleFiles(bag, filesXml, springfieldFile, newFilePathInDataset, springfieldFileId);
-    }
+        SpringfieldFileToStage fileToStage = new SpringfieldFileToStage(springfieldFile, originalFilePathInDataset, newFilePathInDataset);
 
-    private void addSubtitleFiles(Bag bag2, FilesXml filesXml, String springfieldFile, String newFilePathInDataset, String springfieldFileId) throws IOException,
-        XPathExpressionException {
-        Subtitles subtitles = new Subtitles(springfieldDir.resolve(springfieldFile));
+        Subtitles subtitles = springfieldIndex.getSubtitles(springfieldFile);
         for (String language : subtitles.getLanguages()) {
-            log.debug("Processing subtitle file for language {}", language);
-            Path subtitleFileInSpringfieldDir = subtitles.getSubtitleFile(language);
             String newSubtitleFilepath = createSubtitleFilepathFor(newFilePathInDataset, language);
-            FileUtils.copyFile(subtitleFileInSpringfieldDir.toFile(), bag2.getRootDir().resolve(newSubtitleFilepath).toFile());
-            log.debug("Copied subtitle file to {}", newSubtitleFilepath);
+            fileToStage.subtitles.put(newSubtitleFilepath, subtitles.getSubtitleFile(language));
             filesXml.addFile(newSubtitleFilepath, filesXml.getAccessibilityForFileId(springfieldFileId));
-            BagUtil.updatePayloadManifestsForPath(bag2, newSubtitleFilepath);
-            log.debug("Updated payload and tag manifests for subtitle file {}", newSubtitleFilepath);
-        }
-    }
-
-    private void processVersion2BagWithoutSpringfieldFiles(String datasetId) throws IOException, ParserConfigurationException, SAXException, XPathExpressionException {
-        Path bagParentVersion2 = fedoraExports.getBagParentsForDatasetId(datasetId).get(1);
-        log.info(">>> Start processing bag parent {} (version 2) (no springfield) >>>", bagParentVersion2);
-        Path bagDir2 = fedoraExports.getBagDir(bagParentVersion2);
-        Bag bag2 = BagUtil.readBag(bagDir2);
-        FilesXml filesXml = new FilesXml(bagDir2.resolve("metadata/files.xml"));
-        removeEmptyFiles(bag2, filesXml);
-        log.debug("Removed empty files from version 2 bag");
-        filesXml.write();
-        log.debug("Wrote updated files.xml for version 2 bag");
-        BagUtil.writeBag(bag2);
-        log.debug("Wrote updated version 2 bag");
-        Files.move(bagParentVersion2, outputDir.resolve(bagParentVersion2.getFileName()));
-        log.debug("Moved version 2 bag to output directory");
-        log.info("<<< Finished processing bag parent {} (version 2) (no springfield) <<<", bagParentVersion2);
-    }
-
-    private void processVersion1Bag(String datasetId) throws IOException, ParserConfigurationException, SAXException, XPathExpressionException {
-        Path bagParentVersion1 = fedoraExports.getBagParentsForDatasetId(datasetId).get(0);
-        log.info(">>> Start processing bag parent {} (version 1) >>>", bagParentVersion1);
-        Path bagDir1 = fedoraExports.getBagDir(bagParentVersion1);
-        Bag bag1 = BagUtil.readBag(bagDir1);
-        FilesXml filesXml1 = new FilesXml(bagDir1.resolve("metadata/files.xml"));
-        removeEmptyFiles(bag1, filesXml1);
-        log.debug("Removed empty files from version 1 bag");
-        filesXml1.write();
-        log.debug("Wrote updated files.xml for version 1 bag");
-        BagUtil.writeBag(bag1);
-        log.debug("Wrote updated version 1 bag");
-        Files.move(bagParentVersion1, outputDir.resolve(bagParentVersion1.getFileName()));
-        log.debug("Moved version 1 bag to output directory");
-        log.info("<<< Finished processing bag parent {} (version 1) <<<", bagParentVersion1);
+            log.debug("Added subtitle file {} for language {} to files.xml", newSubtitleFilepath, language);
+        }
+        return fileToStage;
+    }
+
+    private void fetch(DatasetConversion dataset) throws IOException {
+        if (dataset.version2 == null) {
+            return;
+        }
+        Path bagDir = dataset.version2.bag.getRootDir();
+        for (SpringfieldFileToStage fileToStage : dataset.version2.springfieldFiles) {
+            Files.delete(bagDir.resolve(fileToStage.originalFilepath));
+            log.debug("Deleted pseudo file {}", fileToStage.originalFilepath);
+            springfieldFileRegistry.stage(fileToStage.springfieldFile, bagDir.resolve(fileToStage.newFilepath));
+            log.debug("Staged Springfield file at {}", fileToStage.newFilepath);
+            for (Map.Entry<String, Path> subtitle : fileToStage.subtitles.entrySet()) {
+                fileTransfer.copyFile(subtitle.getValue(), bagDir.resolve(subtitle.getKey()));
+                log.debug("Copied subtitle file to {}", subtitle.getKey());
+            }
+        }
+    }
+
+    private void hash(DatasetConversion dataset) throws IOException {
+        if (dataset.version2 == null) {
+            return;
+        }
+        Bag bag = dataset.version2.bag;
+        for (SpringfieldFileToStage fileToStage : dataset.version2.springfieldFiles) {
+            BagUtil.removePayloadManifestEntriesForPath(bag, fileToStage.originalFilepath);
+            if (archiveFormat != null) {
+                // Calculated while archiving, which reads the files anyway
+                dataset.version2.pendingPayload.add(fileToStage.newFilepath);
+                dataset.version2.pendingPayload.addAll(fileToStage.subtitles.keySet());
+                continue;
+            }
+            BagUtil.updatePayloadManifestsForPath(bag, fileToStage.newFilepath, springfieldFileRegistry.getChecksums(fileToStage.springfieldFile,
+                bag.getRootDir().resolve(fileToStage.newFilepath), BagUtil.getPayloadManifestAlgorithms(bag)));
+            log.debug("Updated payload manifests for new file path {}", fileToStage.newFilepath);
+            for (String subtitleFilepath : fileToStage.subtitles.keySet()) {
+                BagUtil.updatePayloadManifestsForPath(bag, subtitleFilepath, ioScheduler);
+                log.debug("Updated payload manifests for subtitle file {}", subtitleFilepath);
+            }
+        }
+    }
+
+    private void write(DatasetConversion dataset) throws IOException {
+        int emptyFilesRemoved = 0;
+        if (dataset.version2 != null) {
+            emptyFilesRemoved += writeBag(dataset.version2);
+        }
+        emptyFilesRemoved += writeBag(dataset.version1);
+        dataset.record.setEmptyFilesRemoved(emptyFilesRemoved);
+    }
+
+    /**
+     * @return the number of empty files removed from the bag
+     */
+    private int writeBag(BagConversion bagConversion) throws IOException {
+        Path bagDir = bagConversion.bag.getRootDir();
+        PayloadInventory inventory = ioScheduler.retry("list", () -> PayloadInventory.build(bagDir, inventoryParallelism), bagDir);
+        log.debug("Found {} payload files in bag parent {}", inventory.size(), bagConversion.bagParent);
+        int emptyFilesRemoved = removeEmptyFiles(bagConversion.bag, bagConversion.filesXml, inventory);
+        log.debug("Removed empty files from bag parent {}", bagConversion.bagParent);
+        bagConversion.filesXml.write();
+        durability.fileWritten(bagDir.resolve("metadata/files.xml"));
+        log.debug("Wrote updated files.xml for bag parent {}", bagConversion.bagParent);
+        if (archiveFormat != null) {
+            // The tag files are written when the payload has been archived
+            bagConversion.inventory = inventory;
+            return emptyFilesRemoved;
+        }
+        BagUtil.writeBag(bagConversion.bag, inventory, ioScheduler);
+        durability.tagFilesWritten(bagDir);
+        log.debug("Wrote updated bag for bag parent {}", bagConversion.bagParent);
+        // Here rather than just before the move, so that the bags are forced with the concurrency of this stage
+        durability.bagWritten(bagConversion.bagParent);
+        if (outputVerifier != null) {
+            recordChecksums(bagConversion, inventory);
+        }
+        return emptyFilesRemoved;
+    }
+
+    /**
+     * Records the checksums calculated for the bag, i.e. those of the staged Springfield files, the subtitles and the tag files, for verification.
+     */
+    private void recordChecksums(BagConversion bagConversion, PayloadInventory inventory) throws IOException {
+        Bag bag = bagConversion.bag;
+        String bagParentName = bagConversion.bagParent.getFileName().toString();
+        List<String> newPayload = new ArrayList<>();
+        for (SpringfieldFileToStage fileToStage : bagConversion.springfieldFiles) {
+            newPayload.add(fileToStage.newFilepath);
+            newPayload.addAll(fileToStage.subtitles.keySet());
+        }
+        for (String path : newPayload) {
+            Optional<FileInfo> fileInfo = inventory.get(path);
+            if (fileInfo.isPresent()) {
+                outputVerifier.record(bagParentName, path, fileInfo.get(), getChecksums(bag.getPayLoadManifests(), bag.getRootDir().resolve(path)));
+            }
+        }
+        Set<Path> tagFiles = new HashSet<>();
+        for (Manifest tagManifest : bag.getTagManifests()) {
+            tagFiles.addAll(tagManifest.getFileToChecksumMap().keySet());
+        }
+        for (Path tagFile : tagFiles) {
+            outputVerifier.record(bagParentName, bag.getRootDir().relativize(tagFile).toString(),
+                FileInfo.of(Files.readAttributes(tagFile, BasicFileAttributes.class)), getChecksums(bag.getTagManifests(), tagFile));
+        }
+    }
+
+    private Map<String, String> getChecksums(Set<Manifest> manifests, Path file) {
+        Map<String, String> checksums = new HashMap<>();
+        for (Manifest manifest : manifests) {
+            String checksum = manifest.getFileToChecksumMap().get(file);
+            if (checksum != null) {
+                checksums.put(manifest.getAlgorithm().toString(), checksum);
+            }
+        }
+        return checksums;
+    }
+
+    private void publish(DatasetConversion dataset) throws IOException {
+        if (dataset.version2 != null) {
+            publishBag(dataset.version2);
+        }
+        publishBag(dataset.version1);
+        log.info("<<< Finished processing dataset id {} <<<", dataset.datasetId);
+    }
+
+    private void publishBag(BagConversion bagConversion) throws IOException {
+        if (archiveFormat != null) {
+            archiveBag(bagConversion);
+            return;
+        }
+        Path movedBagParent = bagConversion.outputDir.resolve(bagConversion.bagParent.getFileName());
+        Files.move(bagConversion.bagParent, movedBagParent);
+        durability.published(bagConversion.outputDir);
+        if (bagConversion.withSpringfieldFiles) {
+            springfieldFileRegistry.relocate(bagConversion.bagParent, movedBagParent);
+        }
+        log.debug("Moved bag parent {} to output directory", bagConversion.bagParent);
+    }
+
+    private void verify(DatasetConversion dataset) {
+        if (dataset.version2 != null) {
+            verifyBag(dataset.version2);
+        }
+        verifyBag(dataset.version1);
+    }
+
+    private void verifyBag(BagConversion bagConversion) {
+        Path bagParent = bagConversion.outputDir.resolve(bagConversion.bagParent.getFileName());
+        VerificationResult result = outputVerifier.verify(bagParent.getFileName().toString(), bagParent.resolve(bagConversion.bag.getRootDir().getFileName()));
+        if (!result.isValid()) {
+            throw new IllegalStateException("Output bag " + result.getBagDir() + " is invalid: " + String.join("; ", result.getErrors()));
+        }
+    }
+
+    private void archiveBag(BagConversion bagConversion) throws IOException {
+        BagArchiver bagArchiver = new BagArchiver(archiveFormat, ioScheduler, durability);
+        Bag bag = bagConversion.bag;
+        Path payloadDir = bag.getRootDir().resolve("data");
+        Path archiveFile = bagArchiver.getArchiveFile(bagConversion.bagParent, bagConversion.outputDir);
+        try (BagArchiver.Archive archive = bagArchiver.create(bagConversion.bagParent, archiveFile)) {
+            Set<Path> pendingFiles = new HashSet<>();
+            for (String path : bagConversion.pendingPayload) {
+                pendingFiles.add(bag.getRootDir().resolve(path));
+            }
+            // Payload first, so that the manifests can be completed with the checksums calculated on the way
+            Map<Path, Map<String, String>> checksums = archive.addDirectory(payloadDir, null, pendingFiles, BagUtil.getPayloadManifestAlgorithms(bag));
+            checksums.forEach((file, fileChecksums) -> BagUtil.updatePayloadManifestsForPath(bag, bag.getRootDir().relativize(file).toString(), fileChecksums));
+            BagUtil.writeBag(bag, bagConversion.inventory, ioScheduler);
+            archive.addDirectory(bagConversion.bagParent, payloadDir, Collections.emptySet(), Collections.emptyList());
+            archive.commit();
+        }
+        FileUtils.deleteDirectory(bagConversion.bagParent.toFile());
+        log.debug("Archived bag parent {} to {}", bagConversion.bagParent, archiveFile);
     }
 
     private void checkEmpty(Path outputDir) {
@@ -214,30 +741,36 @@ public class AvDatasetConverter {
         }
     }
 
-    private void removeEmptyFiles(Bag bag, FilesXml filesXml) {
+    private int removeEmptyFiles(Bag bag, FilesXmlDocument filesXml, PayloadInventory inventory) {
         try {
-            for (String fileId : filesXml.getFileIds()) {
-                String filePath = filesXml.getFilepathForFileId(fileId);
-                if (Files.size(bag.getRootDir().resolve(filePath)) == 0) {
+            List<String> emptyFileIds = new ArrayList<>();
+            for (Map.Entry<String, String> file : filesXml.getFilepathsByFileId().entrySet()) {
+                String filePath = file.getValue();
+                FileInfo fileInfo = inventory.get(filePath)
+                    .orElseThrow(() -> new IllegalStateException("File " + filePath + " in files.xml not found in bag " + bag.getRootDir()));
+                if (fileInfo.getSize() == 0) {
                     Files.delete(bag.getRootDir().resolve(filePath));
+                    inventory.remove(filePath);
                     BagUtil.removePayloadManifestEntriesForPath(bag, filePath);
-                    filesXml.removeFile(fileId);
+                    emptyFileIds.add(file.getKey());
                 }
             }
-            BagUtil.updatePayloadManifestChecksumsInTagManifests(bag);
+            filesXml.removeFiles(emptyFileIds);
+            return emptyFileIds.size();
         }
         catch (Exception e) {
             throw new RuntimeException("Could not remove empty files", e);
         }
     }
 
-    private Path createVersion2BagIfNeeded(List<Path> bagParents) {
+    private Path createVersion2BagIfNeeded(FedoraExports fedoraExports, List<Path> bagParents) {
         try {
             if (bagParents.size() == 1) {
                 Path version1BagDir = fedoraExports.getBagDir(bagParents.get(0));
                 Path version2BagDir = fedoraExports.createNewBagPath();
-                FileUtils.copyDirectory(version1BagDir.toFile(), version2BagDir.toFile());
+                BagUtil.copyBagWithLinkedPayload(version1BagDir, version2BagDir, fileTransfer);
                 BagUtil.updateBagVersion(version2BagDir, version1BagDir);
+                durability.tagFilesWritten(version2BagDir);
                 log.info("Created version 2 bag parent {} from version 1 bag parent {}", version2BagDir.getParent().getFileName(), version1BagDir.getParent().getFileName());
                 return version2BagDir.getParent();
             }
@@ -276,4 +809,68 @@ public class AvDatasetConverter {
     private String replaceExtension(String fileName, String newExtension) {
         return fileName.substring(0, fileName.lastIndexOf('.')) + newExtension;
     }
+
+    /**
+     * The state of the conversion of one dataset, as it passes through the stages.
+     */
+    private static class DatasetConversion {
+        private final String datasetId;
+        private final ExportBatch batch;
+        private final DatasetRecord record = new DatasetRecord();
+        private final ConversionEvents.DatasetConverted event = new ConversionEvents.DatasetConverted();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // Whether the dataset entered the scan stage
+        private boolean started;
+        private Watchdog.Watch watch = Watchdog.Watch.NONE;
+        // The bytes taken from the memory budget, returned when the dataset is finished
+        private long admittedMemory;
+        private BagConversion version1;
+        private BagConversion version2;
+
+        private DatasetConversion(String datasetId, ExportBatch batch) {
+            this.datasetId = datasetId;
+            this.batch = batch;
+            this.record.setDatasetId(datasetId);
+            this.record.setOutputDir(batch.getOutputDir().toString());
+        }
+
+        @Override
+        public String toString() {
+            return datasetId;
+        }
+    }
+
+    private static class BagConversion {
+        private final Path bagParent;
+        private final Path outputDir;
+        private final Bag bag;
+        private final FilesXmlDocument filesXml;
+        private final boolean withSpringfieldFiles;
+        private final List<SpringfieldFileToStage> springfieldFiles = new ArrayList<>();
+        // Payload files whose checksums are calculated while archiving
+        private final Set<String> pendingPayload = new HashSet<>();
+        private PayloadInventory inventory;
+
+        private BagConversion(Path bagParent, Path outputDir, Bag bag, FilesXmlDocument filesXml, boolean withSpringfieldFiles) {
+            this.bagParent = bagParent;
+            this.outputDir = outputDir;
+            this.bag = bag;
+            this.filesXml = filesXml;
+            this.withSpringfieldFiles = withSpringfieldFiles;
+        }
+    }
+
+    private static class SpringfieldFileToStage {
+        private final String springfieldFile;
+        private final String originalFilepath;
+        private final String newFilepath;
+        // Subtitle file path in the dataset to subtitle file in the Springfield directory
+        private final Map<String, Path> subtitles = new LinkedHashMap<>();
+
+        private SpringfieldFileToStage(String springfieldFile, String originalFilepath, String newFilepath) {
+            this.springfieldFile = springfieldFile;
+            this.originalFilepath = originalFilepath;
+            this.newFilepath = newFilepath;
+        }
+    }
 }
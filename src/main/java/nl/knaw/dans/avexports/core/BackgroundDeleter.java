@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Deletes directory trees in the background. A tree is first renamed out of the way, so that a new tree can be created at its location immediately, and
+ * is then deleted by a parallel walk, which is much faster than a single-threaded one on network filesystems. The results are reported by
+ * {@link #awaitCompletion()}.
+ */
+@Slf4j
+public class BackgroundDeleter {
+    private static final String DELETING_INFIX = ".deleting-";
+    private static final int MAX_FAILURES_LOGGED = 10;
+
+    private final ForkJoinPool pool;
+    private final List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+    private final AtomicLong deleted = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+
+    /**
+     * @param parallelism the number of directories to delete concurrently
+     */
+    public BackgroundDeleter(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Renames the directory and deletes it in the background. Trees that were left behind by an earlier run that did not finish deleting them are deleted
+     * as well. Does nothing if the directory does not exist.
+     *
+     * @param dir the directory to delete
+     */
+    public void delete(Path dir) throws IOException {
+        Path parent = dir.toAbsolutePath().getParent();
+        String prefix = dir.getFileName() + DELETING_INFIX;
+        try (Stream<Path> leftovers = Files.list(parent)) {
+            leftovers.filter(p -> p.getFileName().toString().startsWith(prefix)).forEach(this::submit);
+        }
+        if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            Path aside = parent.resolve(prefix + System.currentTimeMillis());
+            Files.move(dir, aside, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Moved {} to {} to be deleted in the background", dir, aside);
+            submit(aside);
+        }
+    }
+
+    private synchronized void submit(Path dir) {
+        tasks.add(pool.submit(new DeleteDirectory(dir)));
+    }
+
+    /**
+     * Waits until all deletions are done and logs the number of files deleted and any failures.
+     *
+     * @return <code>true</code> if everything was deleted
+     */
+    public boolean awaitCompletion() {
+        List<ForkJoinTask<Void>> submitted;
+        synchronized (this) {
+            submitted = new ArrayList<>(tasks);
+        }
+        submitted.forEach(ForkJoinTask::quietlyJoin);
+        pool.shutdown();
+        if (submitted.isEmpty()) {
+            return true;
+        }
+        String summary = String.format("Background deletion: %d files and directories deleted in %d s, %d failures", deleted.get(),
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), failures.size());
+        if (failures.isEmpty()) {
+            log.info(summary);
+        }
+        else {
+            log.warn(summary);
+        }
+        failures.stream().limit(MAX_FAILURES_LOGGED).forEach(failure -> log.warn("Background deletion failed: {}", failure));
+        return failures.isEmpty();
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.delete(path);
+            deleted.incrementAndGet();
+        }
+        catch (IOException e) {
+            failures.add(path + ": " + e);
+        }
+    }
+
+    private class DeleteDirectory extends RecursiveAction {
+        private final Path dir;
+
+        private DeleteDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteDirectory> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    // Do not follow symbolic links out of the tree
+                    if (Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+                        subdirectories.add(new DeleteDirectory(entry));
+                    }
+                    else {
+                        deleteQuietly(entry);
+                    }
+                }
+            }
+            catch (IOException e) {
+                failures.add(dir + ": " + e);
+            }
+            invokeAll(subdirectories);
+            deleteQuietly(dir);
+        }
+    }
+}
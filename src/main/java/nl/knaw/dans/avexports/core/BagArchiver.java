@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes bag parents to ZIP or tar archives in the output directory. The files are streamed into the archive one by one, and the checksums of selected
+ * files can be calculated while they are streamed, so that files that are archived anyway need not be read a second time for their checksums.
+ * <p>
+ * In ZIP archives, media files, which are already compressed, are stored as is; other files are deflated. Tar archives are not compressed. The archive is
+ * written to a temporary file next to it, which is renamed when the archive is complete.
+ */
+@Slf4j
+public class BagArchiver {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "mp4", "m4v", "m4a", "mov", "avi", "mkv", "webm", "mpg", "mpeg", "mp3", "aac", "ogg", "wmv", "wma", "flv", "jpg", "jpeg", "png", "zip", "gz"));
+
+    public enum Format {
+        ZIP(".zip"),
+        TAR(".tar");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final Format format;
+    private final IoScheduler ioScheduler;
+    private final Durability durability;
+
+    public BagArchiver(Format format, IoScheduler ioScheduler) {
+        this(format, ioScheduler, Durability.none());
+    }
+
+    public BagArchiver(Format format, IoScheduler ioScheduler, Durability durability) {
+        this.format = format;
+        this.ioScheduler = ioScheduler;
+        this.durability = durability;
+    }
+
+    /**
+     * Returns the location of the archive for the given bag parent.
+     *
+     * @param bagParent the bag parent
+     * @param outputDir the directory to write the archive to
+     * @return the archive file
+     */
+    public Path getArchiveFile(Path bagParent, Path outputDir) {
+        return outputDir.resolve(bagParent.getFileName() + format.getExtension());
+    }
+
+    /**
+     * Starts a new archive. Entries are named relative to the parent of the given bag parent, so that the archive unpacks to the bag parent.
+     *
+     * @param bagParent   the bag parent to archive
+     * @param archiveFile the archive file to write
+     * @return the archive, which must be committed to complete it
+     */
+    public Archive create(Path bagParent, Path archiveFile) throws IOException {
+        return new Archive(bagParent, archiveFile);
+    }
+
+    public class Archive implements Closeable {
+        private final Path baseDir;
+        private final Path archiveFile;
+        private final Path partFile;
+        private final ArchiveOutputStream<?> out;
+        private boolean committed;
+        private long bytes;
+
+        private Archive(Path bagParent, Path archiveFile) throws IOException {
+            this.baseDir = bagParent.toAbsolutePath().getParent();
+            this.archiveFile = archiveFile;
+            this.partFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".part");
+            Files.deleteIfExists(partFile);
+            if (format == Format.ZIP) {
+                // A seekable file lets the stream write stored entries without calculating their CRC beforehand
+                this.out = new ZipArchiveOutputStream(partFile);
+            }
+            else {
+                TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(partFile));
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+                this.out = tar;
+            }
+        }
+
+        /**
+         * Adds a directory tree to the archive, in sorted order. Checksums are calculated for the given files while they are added.
+         *
+         * @param dir           the directory to add
+         * @param skipDir       a subdirectory to leave out, e.g., because it was added before, or <code>null</code>
+         * @param checksumFiles the files to calculate checksums for
+         * @param algorithms    the algorithms, e.g. SHA1
+         * @return the checksums by algorithm, by file
+         */
+        public Map<Path, Map<String, String>> addDirectory(Path dir, Path skipDir, Set<Path> checksumFiles, Collection<String> algorithms) throws IOException {
+            Map<Path, Map<String, String>> checksums = new LinkedHashMap<>();
+            List<Path> paths;
+            try (Stream<Path> walk = Files.walk(dir)) {
+                paths = walk.filter(p -> skipDir == null || !p.startsWith(skipDir)).sorted().collect(Collectors.toList());
+            }
+            for (Path path : paths) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    putEntry(path, getEntryName(path) + "/");
+                    out.closeArchiveEntry();
+                }
+                else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    putEntry(path, getEntryName(path));
+                    Map<String, String> fileChecksums = copyToArchive(path, checksumFiles.contains(path) ? algorithms : Collections.<String> emptyList());
+                    out.closeArchiveEntry();
+                    if (!fileChecksums.isEmpty()) {
+                        checksums.put(path, fileChecksums);
+                    }
+                }
+            }
+            return checksums;
+        }
+
+        private String getEntryName(Path path) {
+            return baseDir.relativize(path.toAbsolutePath()).toString().replace('\\', '/');
+        }
+
+        @SuppressWarnings("unchecked")
+        private void putEntry(Path path, String name) throws IOException {
+            if (format == Format.ZIP) {
+                ZipArchiveEntry entry = new ZipArchiveEntry(path, name);
+                entry.setMethod(isStored(path) ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED);
+                ((ArchiveOutputStream<ZipArchiveEntry>) out).putArchiveEntry(entry);
+            }
+            else {
+                ((ArchiveOutputStream<TarArchiveEntry>) out).putArchiveEntry(new TarArchiveEntry(path, name));
+            }
+        }
+
+        private boolean isStored(Path path) {
+            String fileName = path.getFileName().toString();
+            int dot = fileName.lastIndexOf('.');
+            return dot >= 0 && STORED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+
+        private Map<String, String> copyToArchive(Path file, Collection<String> algorithms) throws IOException {
+            Map<String, MessageDigest> digests = new LinkedHashMap<>();
+            for (String algorithm : algorithms) {
+                digests.put(algorithm, Hasher.getDigest(algorithm));
+            }
+            ioScheduler.run(() -> {
+                try (InputStream in = Files.newInputStream(file)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        ioScheduler.throttle(read, file, archiveFile);
+                        for (MessageDigest digest : digests.values()) {
+                            digest.update(buffer, 0, read);
+                        }
+                        out.write(buffer, 0, read);
+                        bytes += read;
+                        ThreadIoCounters.addBytesCopied(read);
+                        if (!digests.isEmpty()) {
+                            ThreadIoCounters.addBytesHashed(read);
+                        }
+                    }
+                }
+                return null;
+            }, file, archiveFile);
+            Map<String, String> checksums = new HashMap<>();
+            digests.forEach((algorithm, digest) -> checksums.put(algorithm, Hex.encodeHexString(digest.digest())));
+            return checksums;
+        }
+
+        /**
+         * Completes the archive and moves it to its final location. Unless the {@link Durability} policy is NONE, the archive is forced to storage before
+         * it is moved, and its directory after.
+         */
+        public void commit() throws IOException {
+            out.finish();
+            out.close();
+            durability.bagWritten(partFile);
+            Files.move(partFile, archiveFile, StandardCopyOption.ATOMIC_MOVE);
+            durability.published(archiveFile.toAbsolutePath().getParent());
+            committed = true;
+            log.debug("Wrote {} bytes of files to archive {}", bytes, archiveFile);
+        }
+
+        /**
+         * Discards the archive if it was not committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                try {
+                    out.close();
+                }
+                finally {
+                    Files.deleteIfExists(partFile);
+                }
+            }
+        }
+    }
+}
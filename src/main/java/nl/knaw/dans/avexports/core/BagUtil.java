@@ -15,6 +15,7 @@
  */
 package nl.knaw.dans.avexports.core;
 
+import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.bagit.domain.Bag;
 import nl.knaw.dans.bagit.domain.Manifest;
 import nl.knaw.dans.bagit.domain.Metadata;
@@ -24,6 +25,7 @@ import nl.knaw.dans.bagit.exceptions.UnparsableVersionException;
 import nl.knaw.dans.bagit.exceptions.UnsupportedAlgorithmException;
 import nl.knaw.dans.bagit.reader.BagReader;
 import nl.knaw.dans.bagit.writer.BagWriter;
+import nl.knaw.dans.bagit.writer.ManifestWriter;
 import nl.knaw.dans.bagit.writer.MetadataWriter;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -32,18 +34,27 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static nl.knaw.dans.avexports.core.XmlUtil.readXml;
 import static org.apache.commons.lang3.ObjectUtils.isEmpty;
 
+@Slf4j
 public class BagUtil {
 
     /**
@@ -75,6 +86,48 @@ public class BagUtil {
         }
     }
 
+    /**
+     * Writes the given bag to the directory of the bag, taking the Payload-Oxum from the payload inventory. {@link BagWriter} instead walks the whole
+     * payload to recalculate it. Like {@link BagWriter}, all files in the tag manifests are hashed again, each in one pass for all algorithms.
+     * <p>
+     * The payload manifests, bag-info.txt and the tag manifests are written; bagit.txt and fetch.txt are left as they are.
+     *
+     * @param bag         the bag to write
+     * @param inventory   the payload inventory of the bag
+     * @param ioScheduler the I/O scheduler to hash the tag files with
+     */
+    public static void writeBag(Bag bag, PayloadInventory inventory, IoScheduler ioScheduler) {
+        ConversionEvents.BagWritten event = new ConversionEvents.BagWritten();
+        event.begin();
+        try {
+            Path rootDir = bag.getRootDir();
+            int tagFileCount = 0;
+            bag.getMetadata().upsertPayloadOxum(inventory.getPayloadOxum());
+            ManifestWriter.writePayloadManifests(bag.getPayLoadManifests(), rootDir, rootDir, bag.getFileEncoding());
+            MetadataWriter.writeBagMetadata(bag.getMetadata(), bag.getVersion(), rootDir, bag.getFileEncoding());
+            if (!bag.getTagManifests().isEmpty()) {
+                Set<String> tagFiles = new TreeSet<>();
+                for (Manifest tagManifest : bag.getTagManifests()) {
+                    tagManifest.getFileToChecksumMap().keySet().forEach(file -> tagFiles.add(rootDir.relativize(file).toString()));
+                }
+                updateTagManifestsForPaths(bag, ioScheduler, tagFiles.toArray(new String[0]));
+                ManifestWriter.writeTagManifests(bag.getTagManifests(), rootDir, rootDir, bag.getFileEncoding());
+                tagFileCount = tagFiles.size();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.datasetId = ConversionEvents.getCurrentDatasetId();
+                event.bagParent = ConversionEvents.getBagParentName(rootDir);
+                event.payloadFiles = inventory.size();
+                event.tagFiles = tagFileCount;
+                event.commit();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not write bag", e);
+        }
+    }
+
     /**
      * Removes the payload manifest entries for the given path from the given bag.
      *
@@ -95,12 +148,51 @@ public class BagUtil {
      * @param path the local path of the file to update in the manifests
      */
     public static void updatePayloadManifestsForPath(Bag bag, String path) {
-        Set<Manifest> manifestSet = bag.getPayLoadManifests();
-        for (Manifest manifest : manifestSet) {
-            manifest.getFileToChecksumMap().put(bag.getRootDir().resolve(path), new Hasher(bag.getRootDir().resolve(path), manifest.getAlgorithm().toString()).getChecksum());
+        updatePayloadManifestsForPath(bag, path, IoScheduler.UNLIMITED);
+    }
+
+    /**
+     * Updates the given local path in the payload manifests of the given bag, reading the file within the limits of the given I/O scheduler. If the path
+     * is not yet in the manifests, it will be added.
+     *
+     * @param bag         the bag to update
+     * @param path        the local path of the file to update in the manifests
+     * @param ioScheduler the I/O scheduler
+     */
+    public static void updatePayloadManifestsForPath(Bag bag, String path, IoScheduler ioScheduler) {
+        updatePayloadManifestsForPath(bag, path, Hasher.getChecksums(bag.getRootDir().resolve(path), getPayloadManifestAlgorithms(bag), ioScheduler));
+    }
+
+    /**
+     * Updates the given local path in the payload manifests of the given bag with checksums that were already calculated. If the path is not yet in the
+     * manifests, it will be added.
+     *
+     * @param bag       the bag to update
+     * @param path      the local path of the file to update in the manifests
+     * @param checksums the checksums of the file by algorithm; must contain the algorithms of all payload manifests
+     */
+    public static void updatePayloadManifestsForPath(Bag bag, String path, Map<String, String> checksums) {
+        for (Manifest manifest : bag.getPayLoadManifests()) {
+            String checksum = checksums.get(manifest.getAlgorithm().toString());
+            if (checksum == null) {
+                throw new IllegalArgumentException("No " + manifest.getAlgorithm() + " checksum provided for " + path);
+            }
+            manifest.getFileToChecksumMap().put(bag.getRootDir().resolve(path), checksum);
         }
     }
 
+    /**
+     * Returns the algorithms of the payload manifests of the given bag.
+     *
+     * @param bag the bag
+     * @return the algorithms, e.g. SHA1
+     */
+    public static List<String> getPayloadManifestAlgorithms(Bag bag) {
+        return bag.getPayLoadManifests().stream()
+            .map(manifest -> manifest.getAlgorithm().toString())
+            .collect(Collectors.toList());
+    }
+
     /**
      * Updates the given local paths in the payload manifests of the given bag. If a path is not yet in the manifests, it will be added.
      *
@@ -108,10 +200,25 @@ public class BagUtil {
      * @param path the local paths of the files to update in the manifests
      */
     public static void updateTagManifestsForPaths(Bag bag, String... path) {
-        Set<Manifest> manifestSet = bag.getTagManifests();
-        for (Manifest manifest : manifestSet) {
-            for (String p : path) {
-                manifest.getFileToChecksumMap().put(bag.getRootDir().resolve(p), new Hasher(bag.getRootDir().resolve(p), manifest.getAlgorithm().toString()).getChecksum());
+        updateTagManifestsForPaths(bag, IoScheduler.UNLIMITED, path);
+    }
+
+    /**
+     * Updates the given local paths in the tag manifests of the given bag, reading the files within the limits of the given I/O scheduler. If a path is
+     * not yet in the manifests, it will be added.
+     *
+     * @param bag         the bag to update
+     * @param ioScheduler the I/O scheduler
+     * @param path        the local paths of the files to update in the manifests
+     */
+    public static void updateTagManifestsForPaths(Bag bag, IoScheduler ioScheduler, String... path) {
+        List<String> algorithms = bag.getTagManifests().stream()
+            .map(manifest -> manifest.getAlgorithm().toString())
+            .collect(Collectors.toList());
+        for (String p : path) {
+            Map<String, String> checksums = Hasher.getChecksums(bag.getRootDir().resolve(p), algorithms, ioScheduler);
+            for (Manifest manifest : bag.getTagManifests()) {
+                manifest.getFileToChecksumMap().put(bag.getRootDir().resolve(p), checksums.get(manifest.getAlgorithm().toString()));
             }
         }
     }
@@ -122,8 +229,77 @@ public class BagUtil {
      * @param bag the bag to update
      */
     public static void updatePayloadManifestChecksumsInTagManifests(Bag bag) {
+        updatePayloadManifestChecksumsInTagManifests(bag, IoScheduler.UNLIMITED);
+    }
+
+    /**
+     * Updates the payload manifest checksums in the tag manifests of the given bag, reading the manifests within the limits of the given I/O scheduler.
+     *
+     * @param bag         the bag to update
+     * @param ioScheduler the I/O scheduler
+     */
+    public static void updatePayloadManifestChecksumsInTagManifests(Bag bag, IoScheduler ioScheduler) {
         for (Manifest payloadManifest : bag.getPayLoadManifests()) {
-            BagUtil.updateTagManifestsForPaths(bag, "manifest-" + payloadManifest.getAlgorithm().getBagitName() + ".txt");
+            BagUtil.updateTagManifestsForPaths(bag, ioScheduler, "manifest-" + payloadManifest.getAlgorithm().getBagitName() + ".txt");
+        }
+    }
+
+    /**
+     * Copies a bag to a new directory, hardlinking the payload files instead of copying them. The tag files (bagit.txt, bag-info.txt, the manifests and
+     * the metadata directory) are real copies, so that they can be rewritten without affecting the original bag. If a payload file cannot be hardlinked,
+     * for example because the filesystem does not support it, it is copied.
+     * <p>
+     * Because the payload files are shared with the original bag, a payload file in the copy must never be written to in place. It must be deleted
+     * first and then replaced.
+     *
+     * @param bagDir       the directory of the bag to copy
+     * @param targetDir    the directory to copy the bag to
+     * @param fileTransfer the file transfer to copy files with
+     */
+    public static void copyBagWithLinkedPayload(Path bagDir, Path targetDir, FileTransfer fileTransfer) throws IOException {
+        AtomicInteger linked = new AtomicInteger();
+        AtomicInteger copied = new AtomicInteger();
+        Files.walkFileTree(bagDir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(targetDir.resolve(bagDir.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path localPath = bagDir.relativize(file);
+                Path target = targetDir.resolve(localPath);
+                if (localPath.startsWith("data") && createLink(target, file)) {
+                    linked.incrementAndGet();
+                }
+                else {
+                    fileTransfer.copyFile(file, target);
+                    copied.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        log.debug("Copied bag {} to {}: {} files hardlinked, {} files copied", bagDir, targetDir, linked.get(), copied.get());
+    }
+
+    /**
+     * Creates a hardlink to an existing file, if the filesystem allows it.
+     *
+     * @param link     the link to create
+     * @param existing the existing file
+     * @return <code>true</code> if the link was created, <code>false</code> if the caller must copy the file instead
+     */
+    public static boolean createLink(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // E.g., the files are on different filesystems, or the existing file is gone
+            log.debug("Could not hardlink {} to {}; copying instead", link, existing, e);
+            return false;
         }
     }
 
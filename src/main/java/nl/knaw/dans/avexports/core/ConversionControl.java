@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link ConversionMXBean} of a running conversion.
+ */
+@Slf4j
+class ConversionControl implements ConversionMXBean {
+    static final String OBJECT_NAME = "nl.knaw.dans.avexports:type=Conversion";
+
+    private final Pipeline<?> pipeline;
+    private final Map<String, String> currentDatasets;
+    private final MetricRegistry metricRegistry;
+    private final SpringfieldFileRegistry springfieldFileRegistry;
+    private final SpringfieldPrefetcher springfieldPrefetcher;
+    private final MemoryBudget memoryBudget;
+
+    ConversionControl(Pipeline<?> pipeline, Map<String, String> currentDatasets, MetricRegistry metricRegistry, SpringfieldFileRegistry springfieldFileRegistry,
+        SpringfieldPrefetcher springfieldPrefetcher, MemoryBudget memoryBudget) {
+        this.pipeline = pipeline;
+        this.currentDatasets = currentDatasets;
+        this.metricRegistry = metricRegistry;
+        this.springfieldFileRegistry = springfieldFileRegistry;
+        this.springfieldPrefetcher = springfieldPrefetcher;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Registers this MBean with the platform MBean server. If another conversion has registered one, e.g. in the same JVM, this one is not registered.
+     *
+     * @return whether the MBean was registered
+     */
+    boolean register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        }
+        catch (InstanceAlreadyExistsException e) {
+            log.warn("Another conversion is registered as {}; this one cannot be managed over JMX", OBJECT_NAME);
+            return false;
+        }
+        catch (JMException e) {
+            log.warn("Could not register {}", OBJECT_NAME, e);
+            return false;
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            log.warn("Could not unregister {}", OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public Map<String, String> getCurrentDatasets() {
+        return new HashMap<>(currentDatasets);
+    }
+
+    @Override
+    public long getDatasetsConverted() {
+        return metricRegistry.meter(AvDatasetConverter.METRIC_DATASETS_CONVERTED).getCount();
+    }
+
+    @Override
+    public long getDatasetsFailed() {
+        return metricRegistry.meter(AvDatasetConverter.METRIC_DATASETS_FAILED).getCount();
+    }
+
+    @Override
+    public double getBytesCopiedPerSecond() {
+        return metricRegistry.meter(AvDatasetConverter.METRIC_BYTES_COPIED).getOneMinuteRate();
+    }
+
+    @Override
+    public double getBytesHashedPerSecond() {
+        return metricRegistry.meter(AvDatasetConverter.METRIC_BYTES_HASHED).getOneMinuteRate();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueSizes() {
+        return pipeline.getQueueSizes();
+    }
+
+    @Override
+    public Map<String, Integer> getStageConcurrency() {
+        return pipeline.getConcurrency();
+    }
+
+    @Override
+    public Map<String, Long> getSpringfieldFileStatistics() {
+        return springfieldFileRegistry.getStatistics();
+    }
+
+    @Override
+    public Map<String, Long> getPrefetchStatistics() {
+        return springfieldPrefetcher.getStatistics();
+    }
+
+    @Override
+    public Map<String, Long> getMemoryStatistics() {
+        return memoryBudget.getStatistics();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return pipeline.isPaused();
+    }
+
+    @Override
+    public void pause() {
+        pipeline.pause();
+    }
+
+    @Override
+    public void resume() {
+        pipeline.resume();
+    }
+
+    @Override
+    public void setStageConcurrency(String stage, int concurrency) {
+        pipeline.setConcurrency(stage, concurrency);
+    }
+}
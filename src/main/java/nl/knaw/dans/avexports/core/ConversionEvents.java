@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+/**
+ * Java Flight Recorder events for the conversion. The events are cheap when no recording is running: their fields are only filled in if the event is
+ * going to be committed. None of them records a stack trace. Each event carries the id of the dataset the emitting thread was working on, as set by the
+ * converter for the duration of a stage.
+ * <p>
+ * JFR is part of OpenJDK 8 from update 262 and of all later versions. The events are created whether or not a recording runs, so the converter needs
+ * one of these versions to run.
+ */
+public final class ConversionEvents {
+    private static final ThreadLocal<String> currentDatasetId = new ThreadLocal<>();
+
+    private ConversionEvents() {
+    }
+
+    /**
+     * Starts a recording with the low-overhead <code>default</code> settings of the JVM and the conversion events. The recording is written to the given
+     * file when it is stopped.
+     *
+     * @param file the file to write the recording to
+     * @return the recording
+     */
+    public static Recording startRecording(Path file) throws IOException {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration("default"));
+            recording.setName("easy-convert-av-exports");
+            recording.setDestination(file);
+            recording.start();
+            return recording;
+        }
+        catch (ParseException e) {
+            throw new IOException("Could not read the default JFR configuration", e);
+        }
+    }
+
+    static void setCurrentDatasetId(String datasetId) {
+        currentDatasetId.set(datasetId);
+    }
+
+    static String getCurrentDatasetId() {
+        return currentDatasetId.get();
+    }
+
+    /**
+     * @param bagDir the directory of a bag
+     * @return the name of the bag parent, i.e. the directory containing the bag
+     */
+    static String getBagParentName(Path bagDir) {
+        Path bagParent = bagDir.toAbsolutePath().getParent();
+        return bagParent == null || bagParent.getFileName() == null ? null : bagParent.getFileName().toString();
+    }
+
+    @Name("nl.knaw.dans.avexports.ExportScanned")
+    @Label("Export Scanned")
+    @Category({ "easy-convert-av-exports" })
+    @Description("The bag parents in an export directory were grouped by dataset")
+    @StackTrace(false)
+    public static class ExportScanned extends Event {
+        @Label("Export Directory")
+        String exportDir;
+
+        @Label("Bag Parents")
+        int bagParents;
+
+        @Label("Datasets")
+        int datasets;
+    }
+
+    @Name("nl.knaw.dans.avexports.StageCompleted")
+    @Label("Stage Completed")
+    @Category({ "easy-convert-av-exports" })
+    @Description("A dataset left a stage of the conversion pipeline")
+    @StackTrace(false)
+    public static class StageCompleted extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Bytes Copied")
+        @DataAmount
+        long bytesCopied;
+
+        @Label("Bytes Hashed")
+        @DataAmount
+        long bytesHashed;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("nl.knaw.dans.avexports.DatasetConverted")
+    @Label("Dataset Converted")
+    @Category({ "easy-convert-av-exports" })
+    @Description("A dataset left the conversion pipeline, from the start of the first stage")
+    @StackTrace(false)
+    public static class DatasetConverted extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("Code Path")
+        String codePath;
+
+        @Label("Bag Parents")
+        String bagParents;
+
+        @Label("Springfield Files")
+        int springfieldFiles;
+
+        @Label("Bytes Copied")
+        @DataAmount
+        long bytesCopied;
+
+        @Label("Bytes Hashed")
+        @DataAmount
+        long bytesHashed;
+
+        @Label("Status")
+        String status;
+    }
+
+    @Name("nl.knaw.dans.avexports.SpringfieldFileCopied")
+    @Label("Springfield File Copied")
+    @Category({ "easy-convert-av-exports" })
+    @Description("A Springfield file was staged in a bag, by copying or hardlinking it")
+    @StackTrace(false)
+    public static class SpringfieldFileCopied extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("Springfield File")
+        String springfieldFile;
+
+        @Label("Target")
+        String target;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Hardlinked")
+        boolean hardlinked;
+
+        @Label("Prefetched")
+        boolean prefetched;
+    }
+
+    @Name("nl.knaw.dans.avexports.ChecksumComputed")
+    @Label("Checksum Computed")
+    @Category({ "easy-convert-av-exports" })
+    @Description("The checksums of a file were calculated in one pass")
+    @StackTrace(false)
+    public static class ChecksumComputed extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("File")
+        String file;
+
+        @Label("Algorithms")
+        String algorithms;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("nl.knaw.dans.avexports.FilesXmlRewritten")
+    @Label("files.xml Rewritten")
+    @Category({ "easy-convert-av-exports" })
+    @Description("A files.xml was written back to the bag")
+    @StackTrace(false)
+    public static class FilesXmlRewritten extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("Bag Parent")
+        String bagParent;
+
+        @Label("Streaming")
+        boolean streaming;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("nl.knaw.dans.avexports.BagWritten")
+    @Label("Bag Written")
+    @Category({ "easy-convert-av-exports" })
+    @Description("The manifests and the metadata of a bag were written")
+    @StackTrace(false)
+    public static class BagWritten extends Event {
+        @Label("Dataset Id")
+        String datasetId;
+
+        @Label("Bag Parent")
+        String bagParent;
+
+        @Label("Payload Files")
+        int payloadFiles;
+
+        @Label("Tag Files Hashed")
+        int tagFiles;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import java.util.Map;
+
+/**
+ * Management interface of a running conversion, registered as <code>nl.knaw.dans.avexports:type=Conversion</code> while {@link AvDatasetConverter#convert()}
+ * runs. It shows the progress of the run and allows pausing the dispatch of new datasets and changing the concurrency of the stages, e.g. to throttle the
+ * conversion during business hours.
+ */
+public interface ConversionMXBean {
+    /**
+     * @return the datasets in the pipeline, with the stage each one is in or last left
+     */
+    Map<String, String> getCurrentDatasets();
+
+    long getDatasetsConverted();
+
+    long getDatasetsFailed();
+
+    /**
+     * @return the bytes copied per second, averaged over the last minute
+     */
+    double getBytesCopiedPerSecond();
+
+    /**
+     * @return the bytes hashed per second, averaged over the last minute
+     */
+    double getBytesHashedPerSecond();
+
+    /**
+     * @return the number of datasets waiting for each stage
+     */
+    Map<String, Integer> getQueueSizes();
+
+    Map<String, Integer> getStageConcurrency();
+
+    /**
+     * @return the statistics of the Springfield files staged so far, see {@link SpringfieldFileRegistry#getStatistics()}
+     */
+    Map<String, Long> getSpringfieldFileStatistics();
+
+    /**
+     * @return the statistics of the Springfield prefetcher, see {@link SpringfieldPrefetcher#getStatistics()}
+     */
+    Map<String, Long> getPrefetchStatistics();
+
+    /**
+     * @return the statistics of the memory budget, see {@link MemoryBudget#getStatistics()}
+     */
+    Map<String, Long> getMemoryStatistics();
+
+    boolean isPaused();
+
+    /**
+     * Stops passing new datasets into the pipeline. The datasets that are already in it are finished.
+     */
+    void pause();
+
+    void resume();
+
+    /**
+     * Changes the number of datasets a stage processes at the same time.
+     *
+     * @param stage       the name of the stage, e.g. fetch
+     * @param concurrency the new concurrency, at least 1
+     */
+    void setStageConcurrency(String stage, int concurrency);
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What happened to one dataset during a run, as written to the {@link DatasetReport}.
+ */
+@Data
+public class DatasetRecord {
+    public static final String STATUS_OK = "OK";
+    public static final String STATUS_FAILED = "FAILED";
+    public static final String STATUS_TIMED_OUT = "TIMED_OUT";
+    // Not finished because the run was aborted
+    public static final String STATUS_DROPPED = "DROPPED";
+
+    private String datasetId;
+    /**
+     * The output directory of the export the dataset is in.
+     */
+    private String outputDir;
+    /**
+     * How the dataset was converted, e.g. whether a version 2 bag was created for the Springfield files.
+     */
+    private String codePath;
+    private List<String> bagParents = new ArrayList<>();
+    private int springfieldFiles;
+    private int subtitles;
+    private long bytesCopied;
+    private long bytesHashed;
+    private int emptyFilesRemoved;
+    /**
+     * The heap the dataset was estimated to take, see {@link MemoryBudget#estimate(java.util.Collection, long)}.
+     */
+    private long estimatedMemory;
+    /**
+     * The time spent in each stage, in milliseconds, by stage name, in the order of the stages.
+     */
+    private Map<String, Long> stageMillis = new LinkedHashMap<>();
+    private String status;
+    private String failedStage;
+    private String error;
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Machine-readable report of a run with one {@link DatasetRecord} per dataset, written as CSV if the file name ends with <code>.csv</code> and as JSON
+ * Lines otherwise. Each record is flushed when it is written, so that the report can be followed during the run and is complete up to the last finished
+ * dataset if the run is aborted.
+ */
+@Slf4j
+public class DatasetReport implements Closeable {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String[] CSV_HEADER = { "dataset_id", "output_dir", "code_path", "bag_parents", "springfield_files", "subtitles", "bytes_copied", "bytes_hashed",
+        "empty_files_removed", "estimated_memory", "status", "failed_stage", "error" };
+
+    private final Path file;
+    private final BufferedWriter writer;
+    private final CSVPrinter csvPrinter;
+    private final List<String> stages;
+
+    /**
+     * @param file   the report file, which is overwritten if it exists
+     * @param stages the names of the stages, for the columns of the stage times in a CSV report
+     */
+    public DatasetReport(Path file, List<String> stages) throws IOException {
+        this.file = file;
+        this.stages = stages;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        if (file.getFileName().toString().endsWith(".csv")) {
+            List<String> header = new ArrayList<>();
+            for (String column : CSV_HEADER) {
+                header.add(column);
+            }
+            for (String stage : stages) {
+                header.add(stage + "_millis");
+            }
+            this.csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(header.toArray(new String[0])));
+            this.csvPrinter.flush();
+        }
+        else {
+            this.csvPrinter = null;
+        }
+    }
+
+    public synchronized void write(DatasetRecord record) {
+        try {
+            if (csvPrinter != null) {
+                List<Object> values = new ArrayList<>();
+                values.add(record.getDatasetId());
+                values.add(record.getOutputDir());
+                values.add(record.getCodePath());
+                values.add(String.join(" ", record.getBagParents()));
+                values.add(record.getSpringfieldFiles());
+                values.add(record.getSubtitles());
+                values.add(record.getBytesCopied());
+                values.add(record.getBytesHashed());
+                values.add(record.getEmptyFilesRemoved());
+                values.add(record.getEstimatedMemory());
+                values.add(record.getStatus());
+                values.add(record.getFailedStage());
+                values.add(record.getError());
+                for (String stage : stages) {
+                    values.add(record.getStageMillis().get(stage));
+                }
+                csvPrinter.printRecord(values);
+                csvPrinter.flush();
+            }
+            else {
+                writer.write(objectMapper.writeValueAsString(record));
+                writer.newLine();
+                writer.flush();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not write to report " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (csvPrinter != null) {
+            csvPrinter.close();
+        }
+        else {
+            writer.close();
+        }
+        log.info("Wrote report to {}", file);
+    }
+}
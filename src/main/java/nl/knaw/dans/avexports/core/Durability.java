@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the converted bags are forced to storage, so that a bag in the output directory survives a crash of the machine. Without it, a bag
+ * that was moved to the output directory may still be partly in the page cache when the machine goes down.
+ * <ul>
+ *     <li>{@link Policy#NONE}: nothing is forced; the operating system writes the data when it sees fit.</li>
+ *     <li>{@link Policy#PER_BAG}: when a bag has been written, all its files and directories are forced in one pass, before it is moved to the output
+ *     directory. Files that were already forced cost little, because they have no dirty pages left.</li>
+ *     <li>{@link Policy#PER_FILE}: every file is forced as soon as it is written, and the directories of the bag before it is moved.</li>
+ * </ul>
+ * With both PER_BAG and PER_FILE an archive is forced before it is renamed to its final name, and the output directory is forced after a bag or archive
+ * is moved into it. The time spent is recorded in the timers {@link #METRIC_FILE_SYNC}, {@link #METRIC_DIRECTORY_SYNC} and {@link #METRIC_BAG_SYNC}, and
+ * the total in the counter {@link #METRIC_NANOS}. Copies that {@link FileTransfer} forces are recorded in the same metrics.
+ */
+@Slf4j
+public class Durability {
+    public static final String METRIC_FILE_SYNC = MetricRegistry.name("durability", "file-sync");
+    public static final String METRIC_DIRECTORY_SYNC = MetricRegistry.name("durability", "directory-sync");
+    public static final String METRIC_BAG_SYNC = MetricRegistry.name("durability", "bag-sync");
+    public static final String METRIC_NANOS = MetricRegistry.name("durability", "nanos");
+
+    public enum Policy {
+        NONE,
+        PER_BAG,
+        PER_FILE
+    }
+
+    @Getter
+    private final Policy policy;
+    private final MetricRegistry metricRegistry;
+
+    public Durability(Policy policy, MetricRegistry metricRegistry) {
+        this.policy = policy;
+        this.metricRegistry = metricRegistry;
+    }
+
+    public static Durability none() {
+        return new Durability(Policy.NONE, new MetricRegistry());
+    }
+
+    /**
+     * Forces a file that was just written to storage, with {@link Policy#PER_FILE}.
+     *
+     * @param file the file
+     */
+    public void fileWritten(Path file) throws IOException {
+        if (policy == Policy.PER_FILE) {
+            forceFile(file);
+        }
+    }
+
+    /**
+     * Forces the tag files of a bag, i.e. all files outside its data directory, to storage, with {@link Policy#PER_FILE}.
+     *
+     * @param bagDir the bag directory
+     */
+    public void tagFilesWritten(Path bagDir) throws IOException {
+        if (policy != Policy.PER_FILE) {
+            return;
+        }
+        Path payloadDir = bagDir.resolve("data");
+        Files.walkFileTree(bagDir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.equals(payloadDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    forceFile(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Forces a bag parent that is ready to be published to storage: with {@link Policy#PER_BAG} all its files and directories, with
+     * {@link Policy#PER_FILE} only its directories, as the files were forced when they were written. A single file, such as an archive, is forced with
+     * both.
+     *
+     * @param bagParent the bag parent, or an archive
+     */
+    public void bagWritten(Path bagParent) throws IOException {
+        if (policy == Policy.NONE) {
+            return;
+        }
+        Timer.Context timerContext = metricRegistry.timer(METRIC_BAG_SYNC).time();
+        try {
+            Files.walkFileTree(bagParent, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && (policy == Policy.PER_BAG || file.equals(bagParent))) {
+                        forceFile(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    // Children first, so that a directory entry never points to data that is not on storage yet
+                    forceDirectory(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        finally {
+            timerContext.stop();
+        }
+    }
+
+    /**
+     * Forces the output directory to storage after a bag parent or archive was moved into it, so that the new entry is not lost.
+     *
+     * @param outputDir the output directory
+     */
+    public void published(Path outputDir) {
+        if (policy != Policy.NONE) {
+            forceDirectory(outputDir);
+        }
+    }
+
+    private void forceFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        // Read-only, as the file may be a hardlink to a read-only file; on Linux that is enough to force it
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        record(metricRegistry, METRIC_FILE_SYNC, System.nanoTime() - start);
+    }
+
+    private void forceDirectory(Path dir) {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // E.g., on Windows, where a directory cannot be opened as a channel
+            log.debug("Could not force directory {}", dir, e);
+            return;
+        }
+        record(metricRegistry, METRIC_DIRECTORY_SYNC, System.nanoTime() - start);
+    }
+
+    static void record(MetricRegistry metricRegistry, String timer, long nanos) {
+        metricRegistry.timer(timer).update(nanos, TimeUnit.NANOSECONDS);
+        metricRegistry.counter(METRIC_NANOS).inc(nanos);
+    }
+
+    /**
+     * Logs the number of files and directories forced to storage and the time it took.
+     */
+    public void logStatistics() {
+        log.info("Durability {}: forced {} files and {} directories in {} s", policy, metricRegistry.timer(METRIC_FILE_SYNC).getCount(),
+            metricRegistry.timer(METRIC_DIRECTORY_SYNC).getCount(), String.format("%.1f", metricRegistry.counter(METRIC_NANOS).getCount() / 1e9));
+    }
+}
@@ -71,6 +71,8 @@ public class FedoraExports {
 
     private void buildIdToBagPaths() throws IOException {
         log.info("Building dataset id to bag paths map");
+        ConversionEvents.ExportScanned event = new ConversionEvents.ExportScanned();
+        event.begin();
         try (Stream<Path> bagParents = Files.list(inputDir)) {
             bagParents.forEach(bagParent -> {
                 String datasetId = findDatasetId(bagParent);
@@ -87,7 +89,15 @@ public class FedoraExports {
                 }
             });
         }
-        log.info("Found {} datasets for {} bags", idToBagParents.size(), idToBagParents.values().stream().mapToLong(List::size).sum());
+        int bagCount = (int) idToBagParents.values().stream().mapToLong(List::size).sum();
+        event.end();
+        if (event.shouldCommit()) {
+            event.exportDir = inputDir.toString();
+            event.bagParents = bagCount;
+            event.datasets = idToBagParents.size();
+            event.commit();
+        }
+        log.info("Found {} datasets for {} bags", idToBagParents.size(), bagCount);
     }
 
     private boolean isSecondVersion(Path bagParent) {
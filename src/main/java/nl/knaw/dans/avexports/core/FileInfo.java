@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The size and modification time of a file, as recorded when a directory tree was indexed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileInfo {
+    private long size;
+    private long lastModified;
+
+    public static FileInfo of(BasicFileAttributes attributes) {
+        return new FileInfo(attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+}
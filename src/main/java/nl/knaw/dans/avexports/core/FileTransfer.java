@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Copies files with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so that the kernel can copy the data without
+ * passing it through the JVM (e.g., with copy_file_range or sendfile). The data is transferred in chunks of a configurable size. A chunk for which
+ * transferTo makes no progress is copied through a buffer instead. Copies preserve the modification time of the source.
+ * <p>
+ * A file is copied to a temporary file next to the target, named after the target with the suffix {@link #PART_SUFFIX}, which is renamed to the target
+ * when it is complete. A copy that is cut off, e.g. by a crash, therefore never appears under the name of the target. The rename also replaces an
+ * existing target file instead of overwriting it in place, because it may be a hardlink shared with another bag.
+ */
+@Slf4j
+@Builder
+public class FileTransfer {
+    private static final String METRIC_PREFIX = "transfer";
+    static final String PART_SUFFIX = ".part";
+    // Size of the buffer for chunks that transferTo does not copy
+    private static final int FALLBACK_BUFFER_SIZE = 1024 * 1024;
+
+    @Builder.Default
+    private final long chunkSize = 64 * 1024 * 1024;
+
+    /**
+     * Set the size of the target file to its final size before copying, by writing its last byte. This does not allocate disk space: on most filesystems
+     * it creates a sparse file, which the copy then fills. It only helps filesystems that handle growing a file poorly.
+     */
+    @Builder.Default
+    private final boolean extendToFinalSize = false;
+
+    /**
+     * Force each copied file to the storage device before returning. The time it takes is recorded in the metrics of {@link Durability}.
+     */
+    @Builder.Default
+    private final boolean fsync = false;
+
+    @Builder.Default
+    private final IoScheduler ioScheduler = IoScheduler.UNLIMITED;
+
+    @Builder.Default
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    /**
+     * Copies a file. The parent directory of the target is created if it does not exist.
+     *
+     * @param source the file to copy
+     * @param target the location of the copy
+     */
+    public void copyFile(Path source, Path target) throws IOException {
+        Timer.Context timerContext = metricRegistry.timer(MetricRegistry.name(METRIC_PREFIX, "files")).time();
+        long start = System.nanoTime();
+        try {
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            Path partFile = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            long size = ioScheduler.runWithRetries("copy", () -> {
+                // Also removes what a failed attempt left behind
+                Files.deleteIfExists(partFile);
+                long copied = transfer(source, partFile);
+                Files.setLastModifiedTime(partFile, Files.getLastModifiedTime(source));
+                Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE);
+                return copied;
+            }, source, target);
+            // Once, not per attempt
+            ThreadIoCounters.addBytesCopied(size);
+            metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "bytes")).mark(size);
+        }
+        finally {
+            // Failed copies also took time
+            timerContext.stop();
+            metricRegistry.counter(MetricRegistry.name(METRIC_PREFIX, "nanos")).inc(System.nanoTime() - start);
+        }
+    }
+
+    private long transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            if (extendToFinalSize && size > 0) {
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            long position = 0;
+            while (position < size) {
+                long count = Math.min(chunkSize, size - position);
+                ioScheduler.throttle(count, source, target);
+                long transferred = in.transferTo(position, count, out);
+                if (transferred == 0) {
+                    transferred = copyThroughBuffer(in, out, position, count, source);
+                }
+                position += transferred;
+            }
+            if (fsync) {
+                long start = System.nanoTime();
+                out.force(true);
+                Durability.record(metricRegistry, Durability.METRIC_FILE_SYNC, System.nanoTime() - start);
+            }
+            return size;
+        }
+    }
+
+    // Copies at least one byte, so that the copy cannot get stuck on a chunk that transferTo does not copy, e.g. on some network filesystems
+    private long copyThroughBuffer(FileChannel in, FileChannel out, long position, long count, Path source) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, FALLBACK_BUFFER_SIZE));
+        int read = in.read(buffer, position);
+        if (read <= 0) {
+            throw new EOFException("Source file " + source + " was truncated while it was copied");
+        }
+        // Through Buffer, so that the class also runs on Java 8 when compiled by a later JDK
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return read;
+    }
+
+    /**
+     * Copies a directory tree. The target directory is created if it does not exist.
+     *
+     * @param sourceDir the directory to copy
+     * @param targetDir the location of the copy
+     */
+    public void copyDirectory(Path sourceDir, Path targetDir) throws IOException {
+        Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(targetDir.resolve(sourceDir.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                copyFile(file, targetDir.resolve(sourceDir.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.setLastModifiedTime(targetDir.resolve(sourceDir.relativize(dir)), Files.getLastModifiedTime(dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Logs the number of files and bytes copied so far and the average throughput.
+     */
+    public void logStatistics() {
+        Timer files = metricRegistry.timer(MetricRegistry.name(METRIC_PREFIX, "files"));
+        Meter bytes = metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "bytes"));
+        Counter nanos = metricRegistry.counter(MetricRegistry.name(METRIC_PREFIX, "nanos"));
+        double seconds = nanos.getCount() / 1e9;
+        log.info("Copied {} files, {} bytes in {} s ({} MB/s)", files.getCount(), bytes.getCount(), String.format("%.1f", seconds),
+            String.format("%.1f", seconds == 0 ? 0 : bytes.getCount() / 1e6 / seconds));
+    }
+}
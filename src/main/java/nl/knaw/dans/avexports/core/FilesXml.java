@@ -26,13 +26,19 @@ import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents the files.xml file in an AV export. It provides methods to perform the necessary lookups and changes and to write the changes back to the file.
+ * The whole document is kept in memory as a DOM; see {@link StreamingFilesXml} for very large files.
  */
 @Slf4j
-public class FilesXml {
+public class FilesXml implements FilesXmlDocument {
     private final Document document;
     private final Path path;
 
@@ -56,6 +62,59 @@ public class FilesXml {
         return ids;
     }
 
+    /**
+     * Returns the filepath of every file element that has an identifier, in a single pass over the document.
+     *
+     * @return the filepaths by file id, in document order
+     */
+    @Override
+    public Map<String, String> getFilepathsByFileId() {
+        Map<String, String> filepaths = new LinkedHashMap<>();
+        NodeList nodeList = document.getElementsByTagName("file");
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node fileNode = nodeList.item(i);
+            String id = getIdentifier(fileNode);
+            if (id != null) {
+                filepaths.put(id, fileNode.getAttributes().getNamedItem("filepath").getNodeValue());
+            }
+        }
+        return filepaths;
+    }
+
+    /**
+     * Removes the file elements with the given ids, in a single pass over the document.
+     *
+     * @param ids the file ids
+     */
+    @Override
+    public void removeFiles(Collection<String> ids) {
+        Set<String> remaining = new HashSet<>(ids);
+        NodeList nodeList = document.getElementsByTagName("file");
+        List<Node> toRemove = new ArrayList<>();
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node fileNode = nodeList.item(i);
+            if (remaining.remove(getIdentifier(fileNode))) {
+                toRemove.add(fileNode);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            throw new IllegalArgumentException("No file with id " + remaining.iterator().next() + " found in files.xml");
+        }
+        // Remove after iterating, as the node list is live
+        for (Node fileNode : toRemove) {
+            fileNode.getParentNode().removeChild(fileNode);
+        }
+    }
+
+    private String getIdentifier(Node fileNode) {
+        for (Node child = fileNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && XmlNamespaces.NAMESPACE_DCTERMS.equals(child.getNamespaceURI()) && "identifier".equals(child.getLocalName())) {
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+
     public void removeFile(String id) throws XPathExpressionException {
         Node fileNode = getElementById(id);
         if (fileNode == null) {
@@ -64,6 +123,7 @@ public class FilesXml {
         fileNode.getParentNode().removeChild(fileNode);
     }
 
+    @Override
     public String getFilepathForFileId(String id) throws XPathExpressionException {
         Node fileNode = getElementById(id);
         if (fileNode == null) {
@@ -72,6 +132,7 @@ public class FilesXml {
         return fileNode.getAttributes().getNamedItem("filepath").getNodeValue();
     }
 
+    @Override
     public void setFilepathForFileId(String id, String path) {
         try {
             Node fileNode = getElementById(id);
@@ -85,6 +146,7 @@ public class FilesXml {
         }
     }
 
+    @Override
     public void deleteFileElementForFilepath(String path) {
         try {
             NodeList nodeList = document.getElementsByTagName("file");
@@ -101,6 +163,7 @@ public class FilesXml {
         }
     }
 
+    @Override
     public String getAccessibilityForFileId(String id) throws XPathExpressionException {
         Node fileNode = getElementById(id);
         if (fileNode == null) {
@@ -115,6 +178,7 @@ public class FilesXml {
         throw new IllegalStateException("No accessibleToRights element found for file with id " + id);
     }
 
+    @Override
     public void addFile(String filepath, String accessibility) {
         Node filesNode = document.getDocumentElement();
         Node fileNode = document.createElement("file");
@@ -139,8 +203,18 @@ public class FilesXml {
         return null;
     }
 
+    @Override
     public void write() {
+        ConversionEvents.FilesXmlRewritten event = new ConversionEvents.FilesXmlRewritten();
+        event.begin();
         XmlUtil.writeXmlTo(document, path);
+        event.end();
+        if (event.shouldCommit()) {
+            event.datasetId = ConversionEvents.getCurrentDatasetId();
+            event.bagParent = ConversionEvents.getBagParentName(path.toAbsolutePath().getParent().getParent());
+            event.bytes = path.toFile().length();
+            event.commit();
+        }
     }
 
 }
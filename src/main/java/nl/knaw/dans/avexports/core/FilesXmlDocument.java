@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The lookups and changes the converter performs on the files.xml file of a bag. Changes are written back to the file by {@link #write()}.
+ *
+ * @see FilesXml
+ * @see StreamingFilesXml
+ */
+public interface FilesXmlDocument {
+
+    /**
+     * Opens a files.xml file, using {@link StreamingFilesXml} if the file is at least the given size and {@link FilesXml} otherwise.
+     *
+     * @param path               the files.xml file
+     * @param streamingThreshold the minimum size in bytes for which to stream the file
+     * @return the document
+     */
+    static FilesXmlDocument open(Path path, long streamingThreshold) throws IOException, ParserConfigurationException, SAXException, XMLStreamException {
+        if (Files.size(path) >= streamingThreshold) {
+            return new StreamingFilesXml(path);
+        }
+        return new FilesXml(path);
+    }
+
+    String getFilepathForFileId(String id) throws XPathExpressionException;
+
+    void setFilepathForFileId(String id, String path);
+
+    /**
+     * Removes the first file element with the given filepath, if any.
+     *
+     * @param path the filepath
+     */
+    void deleteFileElementForFilepath(String path);
+
+    String getAccessibilityForFileId(String id) throws XPathExpressionException;
+
+    /**
+     * Adds a file element with the given filepath and accessibility at the end of the document.
+     *
+     * @param filepath      the filepath
+     * @param accessibility the value of accessibleToRights
+     */
+    void addFile(String filepath, String accessibility);
+
+    /**
+     * Returns the filepath of every file element that has an identifier.
+     *
+     * @return the filepaths by file id, in document order
+     */
+    Map<String, String> getFilepathsByFileId();
+
+    /**
+     * Removes the file elements with the given ids.
+     *
+     * @param ids the file ids
+     */
+    void removeFiles(Collection<String> ids);
+
+    void write();
+}
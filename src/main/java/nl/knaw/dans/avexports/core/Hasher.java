@@ -16,35 +16,106 @@
 package nl.knaw.dans.avexports.core;
 
 import lombok.AllArgsConstructor;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @AllArgsConstructor
 public class Hasher {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Path file;
     private final String algorithm;
 
     public String getChecksum() {
-        try (InputStream inputStream = Files.newInputStream(file)) {
-            switch (algorithm.toUpperCase()) {
-                case "MD5":
-                    return DigestUtils.md5Hex(inputStream);
-                case "SHA1":
-                    return DigestUtils.sha1Hex(inputStream);
-                case "SHA256":
-                    return DigestUtils.sha256Hex(inputStream);
-                case "SHA512":
-                    return DigestUtils.sha512Hex(inputStream);
-                default:
-                    throw new UnsupportedOperationException("Unsupported algorithm: " + algorithm);
-            }
+        return getChecksums(file, Collections.singletonList(algorithm)).get(algorithm);
+    }
+
+    /**
+     * Calculates the checksums of a file for several algorithms, reading the file only once.
+     *
+     * @param file       the file
+     * @param algorithms the algorithms, e.g. SHA1
+     * @return the checksums by algorithm
+     */
+    public static Map<String, String> getChecksums(Path file, Collection<String> algorithms) {
+        return getChecksums(file, algorithms, IoScheduler.UNLIMITED);
+    }
+
+    /**
+     * Calculates the checksums of a file for several algorithms, reading the file only once within the limits of the given I/O scheduler.
+     *
+     * @param file        the file
+     * @param algorithms  the algorithms, e.g. SHA1
+     * @param ioScheduler the I/O scheduler
+     * @return the checksums by algorithm
+     */
+    public static Map<String, String> getChecksums(Path file, Collection<String> algorithms, IoScheduler ioScheduler) {
+        ConversionEvents.ChecksumComputed event = new ConversionEvents.ChecksumComputed();
+        event.begin();
+        Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        for (String algorithm : algorithms) {
+            digests.put(algorithm, getDigest(algorithm));
+        }
+        long bytes;
+        try {
+            bytes = ioScheduler.runWithRetries("hash", () -> {
+                // Start over after a failed attempt
+                digests.values().forEach(MessageDigest::reset);
+                long total = 0;
+                try (InputStream inputStream = Files.newInputStream(file)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        ioScheduler.throttle(read, file);
+                        ThreadIoCounters.addBytesHashed(read);
+                        for (MessageDigest digest : digests.values()) {
+                            digest.update(buffer, 0, read);
+                        }
+                        total += read;
+                    }
+                }
+                return total;
+            }, file);
         }
         catch (IOException e) {
             throw new RuntimeException("Error reading file for checksum calculation", e);
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.datasetId = ConversionEvents.getCurrentDatasetId();
+            event.file = file.toString();
+            event.algorithms = String.join(",", algorithms);
+            event.bytes = bytes;
+            event.commit();
+        }
+        Map<String, String> checksums = new HashMap<>();
+        digests.forEach((algorithm, digest) -> checksums.put(algorithm, Hex.encodeHexString(digest.digest())));
+        return checksums;
+    }
+
+    static MessageDigest getDigest(String algorithm) {
+        switch (algorithm.toUpperCase()) {
+            case "MD5":
+                return DigestUtils.getMd5Digest();
+            case "SHA1":
+                return DigestUtils.getSha1Digest();
+            case "SHA256":
+                return DigestUtils.getSha256Digest();
+            case "SHA512":
+                return DigestUtils.getSha512Digest();
+            default:
+                throw new UnsupportedOperationException("Unsupported algorithm: " + algorithm);
+        }
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches an inbox directory for export batches and converts them one at a time. An export batch is a directory with the bag parents of one export by
+ * easy-fedora-to-bag; it must be moved into the inbox when it is complete, not copied there. Batches are queued in a bounded queue in the order of their
+ * names. When the queue is full, new batches stay in the inbox until there is room.
+ * <p>
+ * The converter must remove the batch from the inbox, e.g. by moving it to the staging directory. A batch that fails before it is removed is not picked
+ * up again until the watcher is restarted; it is listed in the status as left in the inbox. Besides the file system events, the inbox is rescanned at a fixed interval, so that no batch is missed when
+ * events are lost.
+ */
+@Slf4j
+public class InboxWatcher implements Closeable {
+    private static final String METRIC_PREFIX = "inbox";
+
+    private final Path inbox;
+    private final BlockingQueue<Path> queue;
+    private final long rescanIntervalMillis;
+    private final BatchConverter batchConverter;
+    private final MetricRegistry metricRegistry;
+    // Batches that are queued or being converted, and batches that could not be removed from the inbox
+    private final Set<Path> taken = ConcurrentHashMap.newKeySet();
+    private final Set<Path> leftInInbox = ConcurrentHashMap.newKeySet();
+    private volatile Path currentBatch;
+    private volatile boolean stopped;
+    private WatchService watchService;
+    private Thread watcherThread;
+    private Thread workerThread;
+
+    @FunctionalInterface
+    public interface BatchConverter {
+        void convert(Path batchDir) throws Exception;
+    }
+
+    /**
+     * @param inbox                the inbox directory
+     * @param queueCapacity        the maximum number of batches waiting to be converted
+     * @param rescanIntervalMillis the time between rescans of the inbox
+     * @param batchConverter       converts a batch and removes it from the inbox
+     * @param metricRegistry       the registry for the queue depth and the number of batches converted and failed
+     */
+    public InboxWatcher(Path inbox, int queueCapacity, long rescanIntervalMillis, BatchConverter batchConverter, MetricRegistry metricRegistry) {
+        this.inbox = inbox;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.rescanIntervalMillis = rescanIntervalMillis;
+        this.batchConverter = batchConverter;
+        this.metricRegistry = metricRegistry;
+        metricRegistry.register(MetricRegistry.name(METRIC_PREFIX, "queue-depth"), (Gauge<Integer>) queue::size);
+    }
+
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        workerThread = new Thread(this::convertBatches, "inbox-worker");
+        workerThread.start();
+        watcherThread = new Thread(this::watchInbox, "inbox-watcher");
+        watcherThread.start();
+        log.info("Watching inbox {}", inbox);
+    }
+
+    /**
+     * Returns the state of the watcher and the conversion, for reporting.
+     *
+     * @return the queue depth, the batch being converted, the batches left in the inbox after they failed, the datasets in the pipeline and the number of
+     * batches and datasets converted
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("queueDepth", queue.size());
+        status.put("currentBatch", currentBatch == null ? null : currentBatch.getFileName().toString());
+        status.put("batchesLeftInInbox", leftInInbox.stream().map(batch -> batch.getFileName().toString()).sorted().collect(Collectors.toList()));
+        status.put("inFlightDatasets", metricRegistry.counter(AvDatasetConverter.METRIC_DATASETS_IN_FLIGHT).getCount());
+        status.put("batchesConverted", metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "batches-converted")).getCount());
+        status.put("batchesFailed", metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "batches-failed")).getCount());
+        status.put("datasetsConverted", metricRegistry.meter(AvDatasetConverter.METRIC_DATASETS_CONVERTED).getCount());
+        status.put("datasetsFailed", metricRegistry.meter(AvDatasetConverter.METRIC_DATASETS_FAILED).getCount());
+        Meter bytesCopied = metricRegistry.meter(MetricRegistry.name("transfer", "bytes"));
+        status.put("bytesCopied", bytesCopied.getCount());
+        status.put("bytesCopiedPerSecond", Math.round(bytesCopied.getOneMinuteRate()));
+        return status;
+    }
+
+    /**
+     * Waits until the watcher has been closed.
+     */
+    public void awaitStop() throws InterruptedException {
+        workerThread.join();
+    }
+
+    /**
+     * Stops watching the inbox. The batch being converted is finished first; queued batches stay in the inbox.
+     */
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (workerThread != null) {
+            try {
+                workerThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watchInbox() {
+        try {
+            while (!stopped) {
+                queueNewBatches();
+                WatchKey key = watchService.poll(rescanIntervalMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // The events themselves are not needed, the inbox is rescanned anyway
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            log.debug("Watch service closed");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            log.error("Could not scan inbox {}; no longer watching it", inbox, e);
+        }
+    }
+
+    private void queueNewBatches() throws IOException, InterruptedException {
+        List<Path> batches;
+        try (Stream<Path> entries = Files.list(inbox)) {
+            batches = entries.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+        for (Path batch : batches) {
+            if (stopped) {
+                return;
+            }
+            if (taken.add(batch)) {
+                log.info("Queueing export batch {}", batch.getFileName());
+                while (!queue.offer(batch, rescanIntervalMillis, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        taken.remove(batch);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void convertBatches() {
+        while (!stopped) {
+            Path batch;
+            try {
+                batch = queue.poll(rescanIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch != null) {
+                convertBatch(batch);
+            }
+        }
+    }
+
+    private void convertBatch(Path batch) {
+        currentBatch = batch;
+        try {
+            log.info("Converting export batch {}", batch.getFileName());
+            batchConverter.convert(batch);
+            metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "batches-converted")).mark();
+            log.info("Converted export batch {}", batch.getFileName());
+        }
+        catch (Exception e) {
+            metricRegistry.meter(MetricRegistry.name(METRIC_PREFIX, "batches-failed")).mark();
+            log.error("Error converting export batch {}", batch.getFileName(), e);
+        }
+        finally {
+            currentBatch = null;
+            if (!Files.exists(batch)) {
+                taken.remove(batch);
+            }
+            else {
+                leftInInbox.add(batch);
+                log.warn("Export batch {} is still in the inbox; it will not be picked up again until restart", batch.getFileName());
+            }
+        }
+    }
+}
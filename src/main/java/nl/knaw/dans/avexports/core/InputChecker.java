@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.knaw.dans.bagit.domain.Bag;
+import nl.knaw.dans.bagit.domain.Manifest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Checks the payload of the input bags against their payload manifests before the conversion starts, so that corrupt input is found before it is
+ * converted. Several bags are checked at the same time, each in its own thread.
+ * <p>
+ * To bound the time the check takes, only a random sample of the payload files of each bag can be hashed, and a file is skipped if hashing it would
+ * take the number of bytes hashed for its bag over a maximum. Pseudo files, i.e. the files that are replaced by Springfield files according to {@link Sources}, are not hashed,
+ * because they are going to be replaced anyway. The tag manifests and the Payload-Oxum are not checked; the conversion rewrites them.
+ */
+@Slf4j
+public class InputChecker {
+    private final Sources sources;
+    private final double sampleRate;
+    private final long maxBytesPerBag;
+    private final int parallelism;
+    private final IoScheduler ioScheduler;
+    private final TaskExecutor taskExecutor;
+
+    /**
+     * @param sources        the sources, to find the pseudo files with
+     * @param sampleRate     the fraction of the payload files to hash, between 0 and 1
+     * @param maxBytesPerBag the maximum number of bytes to hash per bag
+     * @param parallelism    the number of bags to check at the same time
+     * @param ioScheduler    the I/O scheduler to read the files with
+     */
+    public InputChecker(Sources sources, double sampleRate, long maxBytesPerBag, int parallelism, IoScheduler ioScheduler) {
+        this(sources, sampleRate, maxBytesPerBag, parallelism, ioScheduler, TaskExecutor.PLATFORM);
+    }
+
+    /**
+     * @param sources        the sources, to find the pseudo files with
+     * @param sampleRate     the fraction of the payload files to hash, between 0 and 1
+     * @param maxBytesPerBag the maximum number of bytes to hash per bag
+     * @param parallelism    the number of bags to check at the same time
+     * @param ioScheduler    the I/O scheduler to read the files with
+     * @param taskExecutor   creates the threads to check the bags in
+     */
+    public InputChecker(Sources sources, double sampleRate, long maxBytesPerBag, int parallelism, IoScheduler ioScheduler, TaskExecutor taskExecutor) {
+        this.sources = sources;
+        this.sampleRate = sampleRate;
+        this.maxBytesPerBag = maxBytesPerBag;
+        this.parallelism = parallelism;
+        this.ioScheduler = ioScheduler;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Checks all bags of the given export.
+     *
+     * @param fedoraExports the export
+     * @return the results of the bags, in no particular order
+     */
+    public List<VerificationResult> check(FedoraExports fedoraExports) throws InterruptedException, ExecutionException {
+        log.info("Checking input bags, {} at a time", parallelism);
+        long start = System.nanoTime();
+        ExecutorService executor = taskExecutor.newExecutor("input-check", parallelism);
+        List<VerificationResult> results = new ArrayList<>();
+        try {
+            List<Future<VerificationResult>> futures = new ArrayList<>();
+            for (String datasetId : fedoraExports.getDatasetIds()) {
+                for (Path bagParent : fedoraExports.getBagParentsForDatasetId(datasetId)) {
+                    futures.add(executor.submit(() -> checkBag(datasetId, fedoraExports.getBagDir(bagParent))));
+                }
+            }
+            for (Future<VerificationResult> future : futures) {
+                results.add(future.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        logStatistics(results, System.nanoTime() - start);
+        return results;
+    }
+
+    private VerificationResult checkBag(String datasetId, Path bagDir) {
+        long start = System.nanoTime();
+        VerificationResult result = new VerificationResult(bagDir);
+        try {
+            Bag bag = BagUtil.readBag(bagDir);
+            OutputVerifier.checkPayloadStructure(bag, PayloadInventory.build(bagDir, 1), result);
+            Set<Path> pseudoFiles = getPseudoFiles(datasetId, bagDir);
+            for (Map.Entry<Path, Map<String, String>> entry : getExpectedChecksums(bag).entrySet()) {
+                Path file = entry.getKey();
+                if (pseudoFiles.contains(file) || ThreadLocalRandom.current().nextDouble() >= sampleRate || exceedsMaxBytes(file, result)) {
+                    result.filesSkipped++;
+                    continue;
+                }
+                result.bytesHashed += OutputVerifier.hashFile(file, entry.getValue(), bagDir, ioScheduler, result.errors);
+                result.filesHashed++;
+            }
+        }
+        catch (Exception e) {
+            result.errors.add("Could not check bag: " + e.getMessage());
+        }
+        result.nanos = System.nanoTime() - start;
+        if (result.isValid()) {
+            log.debug("Checked input bag {}: OK; {} files ({} bytes) hashed at {} MB/s, {} files skipped", bagDir, result.filesHashed, result.bytesHashed,
+                String.format("%.1f", result.getMegabytesPerSecond()), result.filesSkipped);
+        }
+        else {
+            log.error("Checked input bag {}: INVALID; {}", bagDir, String.join("; ", result.errors));
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether hashing the file would take the bytes hashed for its bag over the maximum. This is checked before hashing, so that a large file
+     * cannot overshoot the maximum.
+     */
+    private boolean exceedsMaxBytes(Path file, VerificationResult result) {
+        try {
+            return Files.size(file) > maxBytesPerBag - result.bytesHashed;
+        }
+        catch (IOException e) {
+            // Hashing the file reports it as unreadable
+            return false;
+        }
+    }
+
+    private Set<Path> getPseudoFiles(String datasetId, Path bagDir) throws Exception {
+        Set<Path> pseudoFiles = new HashSet<>();
+        Set<String> fileIds = sources.getSpringfieldFileIdsFor(datasetId);
+        if (fileIds == null || fileIds.isEmpty()) {
+            return pseudoFiles;
+        }
+        Map<String, String> filepaths = new StreamingFilesXml(bagDir.resolve("metadata/files.xml")).getFilepathsByFileId();
+        for (String fileId : fileIds) {
+            String filepath = filepaths.get(fileId);
+            if (filepath != null) {
+                pseudoFiles.add(bagDir.resolve(filepath));
+            }
+        }
+        return pseudoFiles;
+    }
+
+    private Map<Path, Map<String, String>> getExpectedChecksums(Bag bag) {
+        Map<Path, Map<String, String>> expected = new TreeMap<>();
+        for (Manifest manifest : bag.getPayLoadManifests()) {
+            manifest.getFileToChecksumMap()
+                .forEach((file, checksum) -> expected.computeIfAbsent(file, k -> new TreeMap<>()).put(manifest.getAlgorithm().toString(), checksum));
+        }
+        return expected;
+    }
+
+    private void logStatistics(List<VerificationResult> results, long nanos) {
+        long invalid = results.stream().filter(result -> !result.isValid()).count();
+        long files = results.stream().mapToLong(VerificationResult::getFilesHashed).sum();
+        long skipped = results.stream().mapToLong(VerificationResult::getFilesSkipped).sum();
+        long bytes = results.stream().mapToLong(VerificationResult::getBytesHashed).sum();
+        double seconds = nanos / 1e9;
+        log.info("Checked {} input bags, {} invalid; {} files ({} bytes) hashed, {} files skipped, in {} s ({} MB/s)", results.size(), invalid, files, bytes,
+            skipped, String.format("%.1f", seconds), String.format("%.1f", seconds == 0 ? 0 : bytes / 1e6 / seconds));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the I/O that the converter performs per group of files. A group is a directory tree, typically on its own storage, such as the Springfield
+ * directory, the staging directory or the output directory. Each group has a maximum number of concurrent streams and optionally a maximum bandwidth.
+ * Files outside all groups are not limited.
+ * <p>
+ * Copies and checksum calculations run through {@link #run(IoOperation, Path...)}, which holds a stream permit for the group of every path involved, and
+ * call {@link #throttle(long, Path...)} for every chunk of data they transfer. Operations that can safely be repeated go through
+ * {@link #runWithRetries(String, IoOperation, Path...)} instead, which tries them again after a transient error according to the {@link RetryPolicy}.
+ */
+public class IoScheduler {
+    public static final IoScheduler UNLIMITED = new IoScheduler(Collections.emptyList(), new MetricRegistry());
+
+    private final List<IoGroup> groups;
+    private final MetricRegistry metricRegistry;
+    private final RetryPolicy retryPolicy;
+    private final Watchdog watchdog;
+
+    @FunctionalInterface
+    public interface IoOperation<T> {
+        T run() throws IOException;
+    }
+
+    public IoScheduler(List<IoGroup> groups, MetricRegistry metricRegistry) {
+        this(groups, metricRegistry, RetryPolicy.NONE);
+    }
+
+    public IoScheduler(List<IoGroup> groups, MetricRegistry metricRegistry, RetryPolicy retryPolicy) {
+        this(groups, metricRegistry, retryPolicy, Watchdog.disabled());
+    }
+
+    public IoScheduler(List<IoGroup> groups, MetricRegistry metricRegistry, RetryPolicy retryPolicy, Watchdog watchdog) {
+        this.groups = groups;
+        this.metricRegistry = metricRegistry;
+        this.retryPolicy = retryPolicy;
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Runs an I/O operation on the given paths, waiting for a free stream in the group of each path first. The operation is watched by the
+     * {@link Watchdog}, if any.
+     *
+     * @param operation the operation
+     * @param paths     the files the operation reads or writes
+     * @param <T>       the type of the result
+     * @return the result of the operation
+     */
+    public <T> T run(IoOperation<T> operation, Path... paths) throws IOException {
+        // Always acquire in the order of the groups list, so that two operations cannot wait for each other
+        List<IoGroup> acquired = new ArrayList<>();
+        try {
+            for (IoGroup group : getGroups(paths)) {
+                long start = System.nanoTime();
+                group.streams.acquire();
+                acquired.add(group);
+                metricRegistry.timer(MetricRegistry.name("io", group.name, "stream-wait")).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            Watchdog.Watch watch = watchdog.watchOperation("I/O operation on " + Arrays.toString(paths));
+            try {
+                return operation.run();
+            }
+            finally {
+                watch.close();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free stream");
+        }
+        finally {
+            for (IoGroup group : acquired) {
+                group.streams.release();
+            }
+        }
+    }
+
+    /**
+     * Runs an I/O operation like {@link #run(IoOperation, Path...)}, and runs it again after a transient error. The streams are released while waiting
+     * for the next attempt. The operation must be idempotent: every attempt must start from scratch.
+     *
+     * @param kind      the kind of operation, e.g. copy or hash, used in the log and in metrics
+     * @param operation the operation
+     * @param paths     the files the operation reads or writes
+     * @param <T>       the type of the result
+     * @return the result of the operation
+     */
+    public <T> T runWithRetries(String kind, IoOperation<T> operation, Path... paths) throws IOException {
+        return retry(kind, () -> run(operation, paths), paths);
+    }
+
+    /**
+     * Runs an idempotent I/O operation that is not limited by the groups, such as listing a directory or reading the attributes of a file, and runs it
+     * again after a transient error.
+     *
+     * @param kind      the kind of operation, e.g. list or stat, used in the log and in metrics
+     * @param operation the operation
+     * @param paths     the files the operation reads, used in the log
+     * @param <T>       the type of the result
+     * @return the result of the operation
+     */
+    public <T> T retry(String kind, IoOperation<T> operation, Path... paths) throws IOException {
+        String description = paths.length == 0 ? kind : kind + " of " + paths[0];
+        try {
+            return retryPolicy.run(description, operation, (attempt, e) -> metricRegistry.counter(MetricRegistry.name("io", "retries", kind)).inc());
+        }
+        catch (IOException e) {
+            if (retryPolicy.getMaxAttempts() > 1 && RetryPolicy.isRetryable(e)) {
+                metricRegistry.counter(MetricRegistry.name("io", "retries-exhausted", kind)).inc();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the given number of bytes may be transferred from or to the given paths without exceeding the maximum bandwidth of their groups.
+     *
+     * @param bytes the number of bytes about to be transferred
+     * @param paths the files the bytes are transferred from or to
+     */
+    public void throttle(long bytes, Path... paths) throws InterruptedIOException {
+        long waitNanos = 0;
+        for (IoGroup group : getGroups(paths)) {
+            metricRegistry.meter(MetricRegistry.name("io", group.name, "bytes")).mark(bytes);
+            waitNanos = Math.max(waitNanos, group.reserve(bytes));
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling I/O");
+            }
+        }
+    }
+
+    private List<IoGroup> getGroups(Path... paths) {
+        List<IoGroup> result = new ArrayList<>();
+        for (IoGroup group : groups) {
+            for (Path path : paths) {
+                if (group.contains(path)) {
+                    result.add(group);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One or more directory trees with shared I/O limits.
+     */
+    public static class IoGroup {
+        @Getter
+        private final String name;
+        private final List<Path> roots = new ArrayList<>();
+        private final Semaphore streams;
+        private final long maxBytesPerSecond;
+        private long nextFreeNanos = System.nanoTime();
+
+        /**
+         * @param name                 the name of the group, used in metrics
+         * @param root                 the root directory of the group
+         * @param maxConcurrentStreams the maximum number of files that may be read or written concurrently
+         * @param maxBytesPerSecond    the maximum bandwidth, or 0 for no limit
+         */
+        public IoGroup(String name, Path root, int maxConcurrentStreams, long maxBytesPerSecond) {
+            this(name, Collections.singletonList(root), maxConcurrentStreams, maxBytesPerSecond);
+        }
+
+        /**
+         * @param name                 the name of the group, used in metrics
+         * @param roots                the root directories of the group, e.g. several output directories on the same storage
+         * @param maxConcurrentStreams the maximum number of files that may be read or written concurrently
+         * @param maxBytesPerSecond    the maximum bandwidth, or 0 for no limit
+         */
+        public IoGroup(String name, List<Path> roots, int maxConcurrentStreams, long maxBytesPerSecond) {
+            this.name = name;
+            for (Path root : roots) {
+                this.roots.add(root.toAbsolutePath().normalize());
+            }
+            this.streams = new Semaphore(maxConcurrentStreams, true);
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        private boolean contains(Path path) {
+            Path normalized = path.toAbsolutePath().normalize();
+            for (Path root : roots) {
+                if (normalized.startsWith(root)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reserves bandwidth for the given number of bytes.
+         *
+         * @return the number of nanoseconds to wait before the bytes may be transferred
+         */
+        private synchronized long reserve(long bytes) {
+            if (maxBytesPerSecond <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + (long) (bytes * 1e9 / maxBytesPerSecond);
+            return start - now;
+        }
+    }
+}
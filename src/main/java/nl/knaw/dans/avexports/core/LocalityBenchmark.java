@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compares the orders of {@link SpringfieldLocality} for a set of datasets. For every order it lists the Springfield files in the order they would be
+ * read and counts how often the next file is in a different directory than the previous one, and how far the inode numbers of consecutive files are apart.
+ * Optionally it also reads the files in that order and measures the throughput. Note that files read for one order may still be in the page cache when
+ * the next order is measured; use a set of files larger than the memory of the machine, or drop the caches in between, for a fair comparison.
+ */
+@Slf4j
+public class LocalityBenchmark {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path springfieldDir;
+    private final Sources sources;
+
+    public LocalityBenchmark(Path springfieldDir, Sources sources) {
+        this.springfieldDir = springfieldDir;
+        this.sources = sources;
+    }
+
+    @Getter
+    public static class Result {
+        private final SpringfieldLocality.Order order;
+        private int files;
+        private int directoryChanges;
+        private int backwardSeeks;
+        private long inodeDistance;
+        private long bytesRead;
+        private long readNanos;
+
+        private Result(SpringfieldLocality.Order order) {
+            this.order = order;
+        }
+
+        public double getMegabytesPerSecond() {
+            return readNanos == 0 ? 0 : bytesRead / 1e6 / (readNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s files=%d directoryChanges=%d backwardSeeks=%d inodeDistance=%d bytesRead=%d MB/s=%.1f", order, files, directoryChanges,
+                backwardSeeks, inodeDistance, bytesRead, getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * Measures one order.
+     *
+     * @param order      the order
+     * @param datasetIds the dataset ids in the order of the input
+     * @param read       whether to read the files and measure the throughput
+     * @return the result
+     */
+    public Result run(SpringfieldLocality.Order order, Collection<String> datasetIds, boolean read) throws IOException {
+        SpringfieldLocality locality = new SpringfieldLocality(springfieldDir, sources, order);
+        // A file shared by several datasets is read only the first time
+        Set<String> files = new LinkedHashSet<>();
+        for (String datasetId : locality.sortDatasets(datasetIds)) {
+            files.addAll(locality.sortFiles(locality.getSpringfieldFiles(datasetId)));
+        }
+        SpringfieldLocality inodes = order == SpringfieldLocality.Order.INODE ? locality : new SpringfieldLocality(springfieldDir, sources, SpringfieldLocality.Order.INODE);
+        Result result = new Result(order);
+        String previous = null;
+        for (String file : files) {
+            result.files++;
+            if (previous != null) {
+                if (!Objects.equals(Paths.get(previous).getParent(), Paths.get(file).getParent())) {
+                    result.directoryChanges++;
+                }
+                long previousInode = inodes.getInode(previous);
+                long inode = inodes.getInode(file);
+                if (previousInode != Long.MAX_VALUE && inode != Long.MAX_VALUE) {
+                    result.inodeDistance += Math.abs(inode - previousInode);
+                    if (inode < previousInode) {
+                        result.backwardSeeks++;
+                    }
+                }
+            }
+            previous = file;
+        }
+        if (read) {
+            long start = System.nanoTime();
+            for (String file : files) {
+                result.bytesRead += readFully(springfieldDir.resolve(file));
+            }
+            result.readNanos = System.nanoTime() - start;
+        }
+        log.info("Order {}", result);
+        return result;
+    }
+
+    /**
+     * Measures all orders.
+     *
+     * @param datasetIds the dataset ids in the order of the input
+     * @param read       whether to read the files and measure the throughput
+     * @return the results, one per order
+     */
+    public List<Result> runAll(Collection<String> datasetIds, boolean read) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (SpringfieldLocality.Order order : SpringfieldLocality.Order.values()) {
+            results.add(run(order, datasetIds, read));
+        }
+        return results;
+    }
+
+    private static long readFully(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                total += read;
+                // Through Buffer, so that the class also runs on Java 8 when compiled by a later JDK
+                ((Buffer) buffer).clear();
+            }
+        }
+        return total;
+    }
+}
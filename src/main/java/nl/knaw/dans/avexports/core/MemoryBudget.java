@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Limits the heap used by the datasets in the pipeline. Each dataset keeps its files.xml documents, the dataset.xml document of a new version 2 bag and
+ * the payload and tag manifests of its bags in memory from the moment it is scanned until it leaves the pipeline. Before a dataset is scanned, its
+ * footprint is estimated from the sizes of these files and the number of manifest entries (see {@link #estimate(Collection, long)}), and the dataset
+ * waits until the estimate fits in the budget next to the datasets already admitted. A dataset that is larger than the whole budget is admitted when
+ * no other dataset is, so that it is converted on its own instead of never. When the run is aborted, the budget is closed, so that no dataset waits for
+ * memory that is never returned.
+ * <p>
+ * The estimates are rough. Therefore the peak of the heap actually used is sampled every time a dataset is admitted or released, and reported next to
+ * the peak of the estimates, so that the budget can be tuned.
+ */
+@Slf4j
+public class MemoryBudget {
+    // Heap taken by a DOM per byte of XML
+    static final int DOM_BYTES_PER_XML_BYTE = 8;
+    // Heap taken per byte of a streamed files.xml, which keeps only the identifier, filepath and accessibility of each file element
+    static final int STREAMED_BYTES_PER_XML_BYTE = 1;
+    // Heap taken by one entry of a manifest in the Bag model: a Path, a checksum string and a map entry
+    static final int BYTES_PER_MANIFEST_ENTRY = 512;
+
+    /**
+     * The budget in bytes, or 0 for no limit.
+     */
+    @Getter
+    private final long maxBytes;
+    private long bytesInUse;
+    private long peakBytesInUse;
+    private long peakHeapUsed;
+    private long admitted;
+    private long waited;
+    private boolean closed;
+
+    /**
+     * @param maxBytes the budget in bytes, or 0 for no limit; the datasets are then only accounted for
+     */
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static MemoryBudget unlimited() {
+        return new MemoryBudget(0);
+    }
+
+    /**
+     * Estimates the heap a dataset takes while it is converted.
+     *
+     * @param bagDirs                    the bag directories of the dataset; a bag that is copied to create a new version is listed twice
+     * @param streamingFilesXmlThreshold the size from which files.xml files are streamed instead of loaded as a DOM
+     * @return the estimate in bytes
+     */
+    public static long estimate(Collection<Path> bagDirs, long streamingFilesXmlThreshold) throws IOException {
+        long bytes = 0;
+        for (Path bagDir : bagDirs) {
+            Path filesXml = bagDir.resolve("metadata/files.xml");
+            if (Files.exists(filesXml)) {
+                long size = Files.size(filesXml);
+                bytes += size * (size >= streamingFilesXmlThreshold ? STREAMED_BYTES_PER_XML_BYTE : DOM_BYTES_PER_XML_BYTE);
+            }
+            Path datasetXml = bagDir.resolve("metadata/dataset.xml");
+            if (Files.exists(datasetXml)) {
+                bytes += Files.size(datasetXml) * DOM_BYTES_PER_XML_BYTE;
+            }
+            try (DirectoryStream<Path> manifests = Files.newDirectoryStream(bagDir, "*manifest-*.txt")) {
+                for (Path manifest : manifests) {
+                    bytes += countLines(manifest) * BYTES_PER_MANIFEST_ENTRY;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    static long countLines(Path file) throws IOException {
+        long lines = 0;
+        int last = '\n';
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                last = buffer[n - 1];
+            }
+        }
+        // A last line without a line break
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    /**
+     * Waits until the given number of bytes fits in the budget and takes them.
+     *
+     * @param bytes the estimate of the dataset
+     * @throws CancellationException if the budget is closed, before or while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (!closed && !fits(bytes)) {
+            log.debug("Waiting for {} bytes of memory; {} of {} bytes in use", bytes, bytesInUse, maxBytes);
+            waited++;
+            while (!closed && !fits(bytes)) {
+                wait();
+            }
+        }
+        if (closed) {
+            throw new CancellationException("Memory budget was closed");
+        }
+        bytesInUse += bytes;
+        admitted++;
+        peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+        sampleHeap();
+    }
+
+    /**
+     * Returns bytes taken with {@link #acquire(long)}.
+     *
+     * @param bytes the estimate of the dataset
+     */
+    public synchronized void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        sampleHeap();
+        bytesInUse -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Stops admitting datasets. Waiting and later calls of {@link #acquire(long)} throw a {@link CancellationException}.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private boolean fits(long bytes) {
+        return maxBytes <= 0 || bytesInUse == 0 || bytesInUse + bytes <= maxBytes;
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeapUsed = Math.max(peakHeapUsed, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * @return the budget, the estimate in use and its peak, the peak of the sampled heap usage, in bytes, and the number of datasets admitted and of
+     * datasets that had to wait
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("maxBytes", maxBytes);
+        statistics.put("bytesInUse", bytesInUse);
+        statistics.put("peakBytesInUse", peakBytesInUse);
+        statistics.put("peakHeapUsed", peakHeapUsed);
+        statistics.put("admitted", admitted);
+        statistics.put("waited", waited);
+        return statistics;
+    }
+
+    public synchronized void logStatistics() {
+        log.info("Memory: peak estimate {} MiB of budget {}, peak heap used {} MiB of {} MiB maximum; {} of {} datasets waited for memory",
+            peakBytesInUse >> 20, maxBytes <= 0 ? "unlimited" : (maxBytes >> 20) + " MiB", peakHeapUsed >> 20, Runtime.getRuntime().maxMemory() >> 20,
+            waited, admitted);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.knaw.dans.bagit.domain.Bag;
+import nl.knaw.dans.bagit.domain.Manifest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the output bags of a run. The structure of each bag is checked: bagit.txt and the data directory must exist, every payload manifest must list
+ * exactly the payload files, every file in the tag manifests must exist and the Payload-Oxum must match the payload. Then the checksums in the manifests
+ * are checked.
+ * <p>
+ * Checksums that were calculated during the run, such as those of the staged Springfield files, the subtitles and the tag files, are recorded with
+ * {@link #record(String, String, FileInfo, Map)} and confirmed from the record, as long as the file still has the recorded size and modification time.
+ * The other files are hashed again: all of them, or a random sample of the payload files. Tag files that were not recorded are always hashed.
+ */
+@Slf4j
+public class OutputVerifier {
+    private final double sampleRate;
+    private final int parallelism;
+    private final IoScheduler ioScheduler;
+    private final TaskExecutor taskExecutor;
+    // Bag parent name to file path in the bag to recorded file
+    private final Map<String, Map<String, RecordedFile>> records = new ConcurrentHashMap<>();
+
+    private final AtomicInteger bagsVerified = new AtomicInteger();
+    private final AtomicInteger bagsInvalid = new AtomicInteger();
+    private final AtomicLong filesConfirmed = new AtomicLong();
+    private final AtomicLong filesHashed = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong bytesHashed = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * @param sampleRate  the fraction of the payload files that were not recorded to hash, between 0 and 1
+     * @param parallelism the number of files to hash concurrently; with 1 the files are hashed in the calling thread
+     * @param ioScheduler the I/O scheduler to read the files with
+     */
+    public OutputVerifier(double sampleRate, int parallelism, IoScheduler ioScheduler) {
+        this(sampleRate, parallelism, ioScheduler, TaskExecutor.PLATFORM);
+    }
+
+    /**
+     * @param sampleRate   the fraction of the payload files that were not recorded to hash, between 0 and 1
+     * @param parallelism  the number of files to hash concurrently; with 1 the files are hashed in the calling thread
+     * @param ioScheduler  the I/O scheduler to read the files with
+     * @param taskExecutor creates the threads to hash the files in
+     */
+    public OutputVerifier(double sampleRate, int parallelism, IoScheduler ioScheduler, TaskExecutor taskExecutor) {
+        this.sampleRate = sampleRate;
+        this.parallelism = parallelism;
+        this.ioScheduler = ioScheduler;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Records the checksums of a file that were calculated during the run.
+     *
+     * @param bagParentName the name of the bag parent
+     * @param localPath     the path of the file relative to the bag directory, e.g. data/file.txt or bag-info.txt
+     * @param fileInfo      the size and modification time of the file when the checksums were calculated
+     * @param checksums     the checksums by algorithm
+     */
+    public void record(String bagParentName, String localPath, FileInfo fileInfo, Map<String, String> checksums) {
+        records.computeIfAbsent(bagParentName, k -> new ConcurrentHashMap<>()).put(localPath, new RecordedFile(fileInfo, checksums));
+    }
+
+    /**
+     * Verifies a bag. The records for its bag parent are discarded afterwards.
+     *
+     * @param bagParentName the name of the bag parent
+     * @param bagDir        the bag directory
+     * @return the result
+     */
+    public VerificationResult verify(String bagParentName, Path bagDir) {
+        long start = System.nanoTime();
+        Map<String, RecordedFile> recordedFiles = Optional.ofNullable(records.remove(bagParentName)).orElse(Collections.emptyMap());
+        VerificationResult result = new VerificationResult(bagDir);
+        try {
+            Bag bag = BagUtil.readBag(bagDir);
+            PayloadInventory inventory = ioScheduler.retry("list", () -> PayloadInventory.build(bagDir, parallelism), bagDir);
+            checkStructure(bag, inventory, result);
+            List<Path> toHash = new ArrayList<>();
+            Map<Path, Map<String, String>> expected = getExpectedChecksums(bag);
+            for (Map.Entry<Path, Map<String, String>> entry : expected.entrySet()) {
+                Path file = entry.getKey();
+                String localPath = bagDir.relativize(file).toString();
+                if (!Files.exists(file)) {
+                    // Reported by checkStructure
+                    continue;
+                }
+                RecordedFile recordedFile = recordedFiles.get(localPath);
+                if (recordedFile != null && recordedFile.confirms(file, entry.getValue())) {
+                    result.filesConfirmed++;
+                }
+                else if (recordedFile == null && localPath.startsWith("data/") && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                    result.filesSkipped++;
+                }
+                else {
+                    toHash.add(file);
+                }
+            }
+            hash(toHash, expected, result);
+        }
+        catch (Exception e) {
+            result.errors.add("Could not verify bag: " + e.getMessage());
+        }
+        result.nanos = System.nanoTime() - start;
+        updateStatistics(result);
+        if (result.isValid()) {
+            log.info("Verified bag {}: OK; {} files confirmed from records, {} files ({} bytes) hashed at {} MB/s, {} files not sampled", bagDir,
+                result.filesConfirmed, result.filesHashed, result.bytesHashed, String.format("%.1f", result.getMegabytesPerSecond()), result.filesSkipped);
+        }
+        else {
+            log.error("Verified bag {}: INVALID; {}", bagDir, String.join("; ", result.errors));
+        }
+        return result;
+    }
+
+    private void checkStructure(Bag bag, PayloadInventory inventory, VerificationResult result) {
+        Path bagDir = bag.getRootDir();
+        if (!Files.isRegularFile(bagDir.resolve("bagit.txt"))) {
+            result.errors.add("bagit.txt is missing");
+        }
+        if (!Files.isDirectory(bagDir.resolve("data"))) {
+            result.errors.add("data directory is missing");
+        }
+        checkPayloadStructure(bag, inventory, result);
+        List<String> payloadOxum = bag.getMetadata().get("Payload-Oxum");
+        if (payloadOxum != null && !payloadOxum.isEmpty() && !payloadOxum.get(0).equals(inventory.getPayloadOxum())) {
+            result.errors.add("Payload-Oxum is " + payloadOxum.get(0) + ", but the payload has " + inventory.getPayloadOxum());
+        }
+        for (Manifest manifest : bag.getTagManifests()) {
+            for (Path file : manifest.getFileToChecksumMap().keySet()) {
+                if (!Files.isRegularFile(file)) {
+                    result.errors.add("File " + bagDir.relativize(file) + " in " + manifest.getAlgorithm() + " tag manifest does not exist");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that every payload manifest lists exactly the payload files.
+     */
+    static void checkPayloadStructure(Bag bag, PayloadInventory inventory, VerificationResult result) {
+        Path bagDir = bag.getRootDir();
+        for (Manifest manifest : bag.getPayLoadManifests()) {
+            for (Path file : manifest.getFileToChecksumMap().keySet()) {
+                if (!inventory.get(bagDir.relativize(file).toString()).isPresent()) {
+                    result.errors.add("File " + bagDir.relativize(file) + " in " + manifest.getAlgorithm() + " payload manifest does not exist");
+                }
+            }
+            if (manifest.getFileToChecksumMap().size() != inventory.size()) {
+                result.errors.add(manifest.getAlgorithm() + " payload manifest lists " + manifest.getFileToChecksumMap().size() + " files, but the payload has "
+                    + inventory.size());
+            }
+        }
+    }
+
+    private Map<Path, Map<String, String>> getExpectedChecksums(Bag bag) {
+        Map<Path, Map<String, String>> expected = new TreeMap<>();
+        for (Set<Manifest> manifests : Arrays.asList(bag.getPayLoadManifests(), bag.getTagManifests())) {
+            for (Manifest manifest : manifests) {
+                manifest.getFileToChecksumMap()
+                    .forEach((file, checksum) -> expected.computeIfAbsent(file, k -> new TreeMap<>()).put(manifest.getAlgorithm().toString(), checksum));
+            }
+        }
+        return expected;
+    }
+
+    private void hash(List<Path> files, Map<Path, Map<String, String>> expected, VerificationResult result) throws IOException, InterruptedException, ExecutionException {
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong bytes = new AtomicLong();
+        if (parallelism <= 1) {
+            for (Path file : files) {
+                bytes.addAndGet(hashFile(file, expected.get(file), result.getBagDir(), ioScheduler, errors));
+            }
+        }
+        else {
+            // The Hasher counts the bytes on the pool threads; they are handed over to the calling (dataset) thread below
+            AtomicLong bytesReadByPool = new AtomicLong();
+            ExecutorService executor = taskExecutor.newExecutor("verify-hash", parallelism);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Path file : files) {
+                    futures.add(executor.submit(() -> {
+                        long readBefore = ThreadIoCounters.get().getBytesHashed();
+                        bytes.addAndGet(hashFile(file, expected.get(file), result.getBagDir(), ioScheduler, errors));
+                        bytesReadByPool.addAndGet(ThreadIoCounters.get().getBytesHashed() - readBefore);
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+            finally {
+                executor.shutdownNow();
+                ThreadIoCounters.addBytesHashed(bytesReadByPool.get());
+            }
+        }
+        result.errors.addAll(errors);
+        result.filesHashed += files.size();
+        result.bytesHashed += bytes.get();
+    }
+
+    /**
+     * Hashes a file for all given algorithms in one pass and compares the checksums with the expected ones.
+     *
+     * @return the number of bytes hashed
+     */
+    static long hashFile(Path file, Map<String, String> expected, Path bagDir, IoScheduler ioScheduler, List<String> errors) {
+        Map<String, String> actual = Hasher.getChecksums(file, expected.keySet(), ioScheduler);
+        expected.forEach((algorithm, checksum) -> {
+            if (!checksum.equalsIgnoreCase(actual.get(algorithm))) {
+                errors.add(algorithm + " checksum of " + bagDir.relativize(file) + " is " + actual.get(algorithm) + ", expected " + checksum);
+            }
+        });
+        try {
+            return Files.size(file);
+        }
+        catch (IOException e) {
+            errors.add("Could not read size of " + bagDir.relativize(file));
+            return 0;
+        }
+    }
+
+    private void updateStatistics(VerificationResult result) {
+        bagsVerified.incrementAndGet();
+        if (!result.isValid()) {
+            bagsInvalid.incrementAndGet();
+        }
+        filesConfirmed.addAndGet(result.filesConfirmed);
+        filesHashed.addAndGet(result.filesHashed);
+        filesSkipped.addAndGet(result.filesSkipped);
+        bytesHashed.addAndGet(result.bytesHashed);
+        nanos.addAndGet(result.nanos);
+    }
+
+    public void logStatistics() {
+        double seconds = nanos.get() / 1e9;
+        log.info("Verified {} bags, {} invalid; {} files confirmed from records, {} files ({} bytes) hashed, {} files not sampled, in {} s ({} MB/s)",
+            bagsVerified.get(), bagsInvalid.get(), filesConfirmed.get(), filesHashed.get(), bytesHashed.get(), filesSkipped.get(),
+            String.format("%.1f", seconds), String.format("%.1f", seconds == 0 ? 0 : bytesHashed.get() / 1e6 / seconds));
+    }
+
+    private static class RecordedFile {
+        private final FileInfo fileInfo;
+        private final Map<String, String> checksums;
+
+        private RecordedFile(FileInfo fileInfo, Map<String, String> checksums) {
+            this.fileInfo = fileInfo;
+            this.checksums = checksums;
+        }
+
+        private boolean confirms(Path file, Map<String, String> expected) throws IOException {
+            if (!checksums.keySet().containsAll(expected.keySet())) {
+                return false;
+            }
+            if (!fileInfo.equals(FileInfo.of(Files.readAttributes(file, BasicFileAttributes.class)))) {
+                return false;
+            }
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                if (!entry.getValue().equalsIgnoreCase(checksums.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
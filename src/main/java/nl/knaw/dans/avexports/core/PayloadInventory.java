@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The size and modification time of every payload file of a bag, collected in a single walk over the data directory. Decisions that depend on the
+ * payload files, such as which files are empty and what the Payload-Oxum is, are made from the inventory instead of by reading the attributes of each
+ * file separately.
+ * <p>
+ * The inventory must be kept up-to-date by the code that changes the payload, through {@link #update(String)} and {@link #remove(String)}.
+ */
+public class PayloadInventory {
+    private final Path bagDir;
+    private final Map<String, FileInfo> files;
+
+    private PayloadInventory(Path bagDir, Map<String, FileInfo> files) {
+        this.bagDir = bagDir;
+        this.files = files;
+    }
+
+    /**
+     * Walks the data directory of a bag.
+     *
+     * @param bagDir      the bag directory
+     * @param parallelism the number of directories to list concurrently; with 1 the directory is walked in the calling thread
+     * @return the inventory
+     */
+    public static PayloadInventory build(Path bagDir, int parallelism) throws IOException {
+        PayloadInventory inventory = new PayloadInventory(bagDir, new ConcurrentHashMap<>());
+        Path dataDir = bagDir.resolve("data");
+        if (!Files.isDirectory(dataDir)) {
+            return inventory;
+        }
+        if (parallelism <= 1) {
+            Files.walkFileTree(dataDir, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    inventory.add(file, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(inventory.new ListDirectory(dataDir));
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * Returns the size and modification time of a payload file.
+     *
+     * @param localPath the path of the file relative to the bag directory, e.g. data/file.txt
+     * @return the file info, or empty if the file is not in the inventory
+     */
+    public Optional<FileInfo> get(String localPath) {
+        return Optional.ofNullable(files.get(localPath));
+    }
+
+    /**
+     * Reads the attributes of a payload file that was added or changed.
+     *
+     * @param localPath the path of the file relative to the bag directory
+     */
+    public void update(String localPath) throws IOException {
+        files.put(localPath, FileInfo.of(Files.readAttributes(bagDir.resolve(localPath), BasicFileAttributes.class)));
+    }
+
+    /**
+     * Removes a payload file that was deleted.
+     *
+     * @param localPath the path of the file relative to the bag directory
+     */
+    public void remove(String localPath) {
+        files.remove(localPath);
+    }
+
+    /**
+     * Returns the Payload-Oxum, i.e. the total size of the payload files and their number, separated by a dot.
+     *
+     * @return the Payload-Oxum
+     */
+    public String getPayloadOxum() {
+        return files.values().stream().mapToLong(FileInfo::getSize).sum() + "." + files.size();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    private void add(Path file, BasicFileAttributes attributes) {
+        if (!attributes.isDirectory()) {
+            files.put(bagDir.relativize(file).toString(), FileInfo.of(attributes));
+        }
+    }
+
+    private class ListDirectory extends RecursiveAction {
+        private final Path dir;
+
+        private ListDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<ListDirectory> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new ListDirectory(entry));
+                    }
+                    else {
+                        add(entry, attributes);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Error listing " + dir, e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A sequence of stages that items pass through in order. Each stage has its own number of worker threads and a bounded queue of items waiting for it, so
+ * that different items can be in different stages at the same time, while a slow stage holds back the stages before it instead of letting work pile up.
+ * <p>
+ * While the pipeline runs, the dispatch of new items can be paused and resumed, and the concurrency of each stage can be changed. A stage with fewer
+ * workers than its concurrency gets new ones at once; surplus workers stop when they have finished their current item.
+ * <p>
+ * An item that is stuck in a stage can be abandoned. It is handed to the failure handler at once, and the worker processing it is interrupted and
+ * replaced, so that the other items keep moving. Whatever the abandoned worker does afterwards is ignored; it stops when its action returns.
+ * <p>
+ * Every item that enters the pipeline leaves it exactly once: it passes the last stage, goes to the failure handler, or, if the pipeline was aborted
+ * before it got there, goes to the drop handler. A stage that gives up on an item because the pipeline was aborted throws a
+ * {@link CancellationException}; the item is then dropped instead of failed.
+ *
+ * @param <T> the type of the items
+ */
+@Slf4j
+public class Pipeline<T> {
+    private static final Object END = new Object();
+
+    private final int queueCapacity;
+    private final FailureHandler<T> failureHandler;
+    private final TaskExecutor taskExecutor;
+    private DropHandler<T> dropHandler = (item, stageName) -> {
+    };
+    private final List<Stage<T>> stages = new ArrayList<>();
+    private final AtomicReference<Exception> abortCause = new AtomicReference<>();
+    private final List<Thread> workers = new CopyOnWriteArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private boolean started;
+    private boolean paused;
+
+    @FunctionalInterface
+    public interface StageAction<T> {
+        void process(T item) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface FailureHandler<T> {
+        /**
+         * Handles the failure of an item in a stage. The item does not proceed to the next stage.
+         *
+         * @param item      the item
+         * @param stageName the name of the stage that failed
+         * @param e         the cause of the failure
+         * @return <code>true</code> to continue with the other items, <code>false</code> to abort the pipeline
+         */
+        boolean handle(T item, String stageName, Exception e);
+    }
+
+    @FunctionalInterface
+    public interface DropHandler<T> {
+        /**
+         * Handles an item that is not processed by a stage because the pipeline was aborted. The item does not proceed to the next stage.
+         *
+         * @param item      the item
+         * @param stageName the name of the stage the item was waiting for
+         */
+        void drop(T item, String stageName);
+    }
+
+    /**
+     * @param queueCapacity  the maximum number of items waiting for each stage
+     * @param failureHandler handles items that fail in a stage
+     */
+    public Pipeline(int queueCapacity, FailureHandler<T> failureHandler) {
+        this(queueCapacity, failureHandler, TaskExecutor.PLATFORM);
+    }
+
+    /**
+     * @param queueCapacity  the maximum number of items waiting for each stage
+     * @param failureHandler handles items that fail in a stage
+     * @param taskExecutor   creates the worker threads
+     */
+    public Pipeline(int queueCapacity, FailureHandler<T> failureHandler, TaskExecutor taskExecutor) {
+        this.queueCapacity = queueCapacity;
+        this.failureHandler = failureHandler;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline.
+     *
+     * @param name        the name of the stage, used in thread names and log messages
+     * @param concurrency the number of items the stage processes at the same time
+     * @param action      the action to perform on each item
+     * @return this pipeline
+     */
+    public Pipeline<T> stage(String name, int concurrency, StageAction<T> action) {
+        stages.add(new Stage<>(name, concurrency, action, new ArrayBlockingQueue<>(queueCapacity)));
+        return this;
+    }
+
+    /**
+     * Sets the handler for items that are dropped because the pipeline was aborted. By default they are ignored.
+     *
+     * @param dropHandler the handler
+     * @return this pipeline
+     */
+    public Pipeline<T> onDrop(DropHandler<T> dropHandler) {
+        this.dropHandler = dropHandler;
+        return this;
+    }
+
+    /**
+     * Stops passing new items to the first stage. Items that are already in the pipeline continue.
+     */
+    public synchronized void pause() {
+        if (!paused) {
+            log.info("Pausing dispatch of new items");
+            paused = true;
+        }
+    }
+
+    public synchronized void resume() {
+        if (paused) {
+            log.info("Resuming dispatch of new items");
+            paused = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Changes the number of items a stage processes at the same time.
+     *
+     * @param name        the name of the stage
+     * @param concurrency the new concurrency, at least 1
+     */
+    public void setConcurrency(String name, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).name.equals(name)) {
+                Stage<T> stage = stages.get(i);
+                synchronized (stage) {
+                    log.info("Changing concurrency of stage {} from {} to {}", name, stage.concurrency, concurrency);
+                    stage.concurrency = concurrency;
+                    startWorkersIfNeeded(i);
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No such stage: " + name);
+    }
+
+    /**
+     * @return the concurrency of each stage, by stage name
+     */
+    public Map<String, Integer> getConcurrency() {
+        Map<String, Integer> concurrency = new LinkedHashMap<>();
+        for (Stage<T> stage : stages) {
+            synchronized (stage) {
+                concurrency.put(stage.name, stage.concurrency);
+            }
+        }
+        return concurrency;
+    }
+
+    /**
+     * @return the number of items waiting for each stage, by stage name
+     */
+    public Map<String, Integer> getQueueSizes() {
+        Map<String, Integer> queueSizes = new LinkedHashMap<>();
+        for (Stage<T> stage : stages) {
+            // Without the end marker
+            queueSizes.put(stage.name, (int) stage.queue.stream().filter(item -> item != END).count());
+        }
+        return queueSizes;
+    }
+
+    /**
+     * Gives up on an item that is being processed by a stage. The item is passed to the failure handler with the given cause and does not proceed to
+     * the next stage. The worker processing it is interrupted and a new worker takes its place.
+     *
+     * @param item  the item
+     * @param cause the reason to give up on the item
+     * @return <code>false</code> if the item was not being processed by any stage
+     */
+    public boolean abandon(T item, Exception cause) {
+        for (int i = 0; i < stages.size(); i++) {
+            Stage<T> stage = stages.get(i);
+            Thread worker;
+            synchronized (stage) {
+                worker = stage.inProgress.remove(item);
+                if (worker == null) {
+                    continue;
+                }
+                log.warn("Abandoning {} in stage {}", item, stage.name);
+                stage.abandoned.add(worker);
+                stage.running--;
+                workers.remove(worker);
+                startWorkersIfNeeded(i);
+            }
+            worker.interrupt();
+            if (!failureHandler.handle(item, stage.name, cause)) {
+                abort(cause);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Passes the items through all stages and waits until they have left the last stage. If the failure handler aborts the pipeline, no new items are
+     * started, items in progress are dropped at the end of their current stage and passed to the drop handler, and the cause of the failure is thrown.
+     *
+     * @param items the items
+     */
+    public void run(Iterator<T> items) throws Exception {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Pipeline has already run");
+            }
+            started = true;
+        }
+        for (int i = 0; i < stages.size(); i++) {
+            synchronized (stages.get(i)) {
+                startWorkersIfNeeded(i);
+            }
+        }
+        try {
+            BlockingQueue<Object> first = stages.get(0).queue;
+            while (items.hasNext() && awaitDispatch()) {
+                first.put(items.next());
+            }
+            first.put(END);
+            finished.await();
+            for (Thread worker : workers) {
+                // A worker that is abandoned while we wait for it is not waited for any longer
+                while (worker.isAlive() && workers.contains(worker)) {
+                    worker.join(1000);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            workers.forEach(Thread::interrupt);
+            throw e;
+        }
+        if (abortCause.get() != null) {
+            throw abortCause.get();
+        }
+    }
+
+    /**
+     * Waits while dispatch is paused.
+     *
+     * @return <code>false</code> if the pipeline was aborted
+     */
+    private synchronized boolean awaitDispatch() throws InterruptedException {
+        while (paused && abortCause.get() == null) {
+            wait();
+        }
+        return abortCause.get() == null;
+    }
+
+    private void abort(Exception cause) {
+        abortCause.compareAndSet(null, cause);
+        synchronized (this) {
+            // Wake up the dispatcher if it is paused
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts workers for the stage at the given index until it has as many as its concurrency. Must be called with the lock of the stage held.
+     */
+    private void startWorkersIfNeeded(int index) {
+        Stage<T> stage = stages.get(index);
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+        }
+        BlockingQueue<Object> next = index + 1 < stages.size() ? stages.get(index + 1).queue : null;
+        while (!stage.ended && stage.running < stage.concurrency) {
+            Thread worker = taskExecutor.newThread("pipeline-" + stage.name + "-" + stage.workerCount++, () -> work(stage, next));
+            stage.running++;
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work(Stage<T> stage, BlockingQueue<Object> next) {
+        try {
+            while (true) {
+                Object item = stage.queue.take();
+                if (item == END) {
+                    // Leave the marker for the other workers of this stage; the last one to stop passes it on
+                    stage.queue.put(END);
+                    boolean last;
+                    synchronized (stage) {
+                        last = --stage.running == 0;
+                        stage.ended = last;
+                    }
+                    if (last) {
+                        if (next != null) {
+                            next.put(END);
+                        }
+                        else {
+                            finished.countDown();
+                        }
+                    }
+                    return;
+                }
+                boolean processed = false;
+                if (abortCause.get() == null) {
+                    processed = process(stage, (T) item);
+                }
+                else {
+                    drop(stage, (T) item);
+                }
+                synchronized (stage) {
+                    if (stage.abandoned.remove(Thread.currentThread())) {
+                        // The item was given up on and this worker was replaced; clear the interrupt that was meant for the item
+                        Thread.interrupted();
+                        return;
+                    }
+                    stage.inProgress.remove(item);
+                }
+                if (processed && next != null) {
+                    next.put(item);
+                }
+                synchronized (stage) {
+                    // Concurrency was lowered; the remaining workers are at least one, so this one is never the last
+                    if (stage.running > stage.concurrency) {
+                        stage.running--;
+                        return;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean process(Stage<T> stage, T item) {
+        synchronized (stage) {
+            stage.inProgress.put(item, Thread.currentThread());
+        }
+        try {
+            log.trace("Stage {} started for {}", stage.name, item);
+            stage.action.process(item);
+            return true;
+        }
+        catch (Exception e) {
+            if (isAbandoned(stage)) {
+                // The failure handler already had the item
+                return false;
+            }
+            if (e instanceof CancellationException && abortCause.get() != null) {
+                drop(stage, item);
+                return false;
+            }
+            if (!failureHandler.handle(item, stage.name, e)) {
+                abort(e);
+            }
+            return false;
+        }
+        catch (Error e) {
+            RuntimeException cause = new RuntimeException("Stage " + stage.name + " failed for " + item, e);
+            try {
+                if (!isAbandoned(stage)) {
+                    failureHandler.handle(item, stage.name, cause);
+                }
+            }
+            finally {
+                // Whatever the failure handler says, as the JVM may be in a bad state
+                abort(cause);
+            }
+            return false;
+        }
+    }
+
+    private void drop(Stage<T> stage, T item) {
+        log.debug("Dropping {} before stage {}, because the pipeline was aborted", item, stage.name);
+        try {
+            dropHandler.drop(item, stage.name);
+        }
+        catch (RuntimeException e) {
+            log.error("Error dropping {}", item, e);
+        }
+    }
+
+    private boolean isAbandoned(Stage<T> stage) {
+        synchronized (stage) {
+            return stage.abandoned.contains(Thread.currentThread());
+        }
+    }
+
+    private static class Stage<T> {
+        private final String name;
+        private final StageAction<T> action;
+        private final BlockingQueue<Object> queue;
+        // Guarded by the lock of the stage
+        private int concurrency;
+        private int running;
+        private int workerCount;
+        private boolean ended;
+        // Item to the worker processing it
+        private final Map<Object, Thread> inProgress = new IdentityHashMap<>();
+        // Workers whose item was abandoned and that have not noticed yet
+        private final Set<Thread> abandoned = new HashSet<>();
+
+        private Stage(String name, int concurrency, StageAction<T> action, BlockingQueue<Object> queue) {
+            this.name = name;
+            this.concurrency = concurrency;
+            this.action = action;
+            this.queue = queue;
+        }
+    }
+}
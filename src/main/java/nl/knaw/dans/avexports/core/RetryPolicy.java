@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries I/O operations that fail with an error that may be transient, such as a read error or a stale file handle on a network filesystem. The delay
+ * between attempts starts at the initial delay and doubles after every attempt, up to the maximum delay. Only operations that can safely be repeated
+ * from the start may be retried, e.g. copying a file to a target that is replaced, hashing a file, listing a directory or reading file attributes.
+ * <p>
+ * Errors that will not go away by trying again are not retried: a missing or already existing file, a denied access, an interrupted operation and a file
+ * that ended before it was expected to.
+ */
+@Slf4j
+@Getter
+public class RetryPolicy {
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxAttempts        the maximum number of attempts, including the first one
+     * @param initialDelayMillis the delay before the second attempt
+     * @param maxDelayMillis     the maximum delay between two attempts
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called before an operation is attempted again.
+         *
+         * @param attempt the number of the failed attempt
+         * @param e       the error of the failed attempt
+         */
+        void retrying(int attempt, IOException e);
+    }
+
+    /**
+     * Runs an operation, trying again after a retryable error until the maximum number of attempts is reached.
+     *
+     * @param description a description of the operation, for the log
+     * @param operation   the operation
+     * @param listener    called before every retry
+     * @param <T>         the type of the result
+     * @return the result of the operation
+     * @throws IOException the error of the last attempt, or the first error that is not retryable
+     */
+    public <T> T run(String description, IoScheduler.IoOperation<T> operation, Listener listener) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return operation.run();
+            }
+            catch (IOException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long delayMillis = getDelayMillis(attempt);
+                log.warn("{} failed (attempt {} of {}); retrying in {} ms: {}", description, attempt, maxAttempts, delayMillis, e.toString());
+                listener.retrying(attempt, e);
+                sleep(delayMillis);
+            }
+        }
+    }
+
+    /**
+     * Returns the delay after the given failed attempt.
+     *
+     * @param attempt the number of the failed attempt, starting at 1
+     * @return the delay in milliseconds
+     */
+    long getDelayMillis(int attempt) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < attempt && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelayMillis);
+    }
+
+    /**
+     * Tells whether an error may be transient, so that the operation may succeed when it is tried again.
+     *
+     * @param e the error
+     * @return <code>true</code> if the error is retryable
+     */
+    public static boolean isRetryable(IOException e) {
+        return !(e instanceof NoSuchFileException
+            || e instanceof FileNotFoundException
+            || e instanceof FileAlreadyExistsException
+            || e instanceof AccessDeniedException
+            || e instanceof NotDirectoryException
+            || e instanceof DirectoryNotEmptyException
+            || e instanceof EOFException
+            || e instanceof InterruptedIOException
+            || e instanceof ClosedByInterruptException);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
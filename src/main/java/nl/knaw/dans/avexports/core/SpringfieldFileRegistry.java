@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the Springfield files staged in the bags during a run. The same Springfield file may be referenced by several datasets. Only the first
+ * time it is copied from the Springfield directory and its checksums are calculated; later copies are hardlinked to the first one where the filesystem
+ * allows it, and the checksums are reused. Springfield files are identified by their path, size and modification time. A prefetched copy is hardlinked
+ * into the bag where the filesystem allows it, and copied otherwise.
+ */
+@Slf4j
+public class SpringfieldFileRegistry {
+    private final Path springfieldDir;
+    private final SpringfieldIndex springfieldIndex;
+    private final FileTransfer fileTransfer;
+    private final IoScheduler ioScheduler;
+    private final SpringfieldPrefetcher prefetcher;
+    private final boolean hardlink;
+    private final Map<String, StagedFile> stagedFiles = new ConcurrentHashMap<>();
+
+    private final AtomicInteger copied = new AtomicInteger();
+    private final AtomicInteger linked = new AtomicInteger();
+    private final AtomicInteger checksumsReused = new AtomicInteger();
+
+    public SpringfieldFileRegistry(Path springfieldDir, SpringfieldIndex springfieldIndex, FileTransfer fileTransfer, IoScheduler ioScheduler, boolean hardlink) {
+        this(springfieldDir, springfieldIndex, fileTransfer, ioScheduler, SpringfieldPrefetcher.disabled(), hardlink);
+    }
+
+    public SpringfieldFileRegistry(Path springfieldDir, SpringfieldIndex springfieldIndex, FileTransfer fileTransfer, IoScheduler ioScheduler,
+        SpringfieldPrefetcher prefetcher, boolean hardlink) {
+        this.springfieldDir = springfieldDir;
+        this.springfieldIndex = springfieldIndex;
+        this.fileTransfer = fileTransfer;
+        this.ioScheduler = ioScheduler;
+        this.prefetcher = prefetcher;
+        this.hardlink = hardlink;
+    }
+
+    /**
+     * Stages a Springfield file at the target location. If the file was staged before, the target is hardlinked to the earlier copy, otherwise the file
+     * is hardlinked to or copied from its prefetched copy, if any, or copied from the Springfield directory. An existing file at the target location is
+     * replaced.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     * @param target          the location to stage the file at
+     */
+    public void stage(String springfieldFile, Path target) throws IOException {
+        ConversionEvents.SpringfieldFileCopied event = new ConversionEvents.SpringfieldFileCopied();
+        event.begin();
+        StagedFile stagedFile = stagedFiles.computeIfAbsent(getContentIdentity(springfieldFile), k -> new StagedFile());
+        synchronized (stagedFile) {
+            // Never write through an existing file, as it may be a hardlink itself
+            Files.deleteIfExists(target);
+            if (hardlink && stagedFile.location != null && BagUtil.createLink(target, stagedFile.location)) {
+                log.debug("Hardlinked {} to earlier copy {}", target, stagedFile.location);
+                linked.incrementAndGet();
+                prefetcher.consumed(springfieldFile);
+                commit(event, springfieldFile, target, true, false);
+                return;
+            }
+            Optional<Path> prefetched = prefetcher.acquire(springfieldFile);
+            try {
+                if (!prefetched.isPresent()) {
+                    fileTransfer.copyFile(springfieldDir.resolve(springfieldFile), target);
+                }
+                // The prefetched copy is not needed any more, so the bag can take it over instead of writing its bytes again
+                else if (!BagUtil.createLink(target, prefetched.get())) {
+                    fileTransfer.copyFile(prefetched.get(), target);
+                }
+            }
+            finally {
+                if (prefetched.isPresent()) {
+                    prefetcher.release(springfieldFile);
+                }
+            }
+            copied.incrementAndGet();
+            stagedFile.location = target;
+            commit(event, springfieldFile, target, false, prefetched.isPresent());
+        }
+    }
+
+    private void commit(ConversionEvents.SpringfieldFileCopied event, String springfieldFile, Path target, boolean hardlinked, boolean prefetched) throws IOException {
+        event.end();
+        if (event.shouldCommit()) {
+            event.datasetId = ConversionEvents.getCurrentDatasetId();
+            event.springfieldFile = springfieldFile;
+            event.target = target.toString();
+            event.bytes = Files.size(target);
+            event.hardlinked = hardlinked;
+            event.prefetched = prefetched;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the checksums of a staged Springfield file. Checksums that were not calculated before are calculated from the given staged copy, in one pass
+     * over the file. The caller passes its own copy, because the copy the file was first staged at may be moved to the output directory concurrently.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     * @param stagedCopy      a location the file was staged at
+     * @param algorithms      the algorithms, e.g. SHA1
+     * @return the checksums by algorithm
+     */
+    public Map<String, String> getChecksums(String springfieldFile, Path stagedCopy, Collection<String> algorithms) throws IOException {
+        StagedFile stagedFile = stagedFiles.get(getContentIdentity(springfieldFile));
+        if (stagedFile == null) {
+            throw new IllegalStateException("Springfield file " + springfieldFile + " has not been staged");
+        }
+        synchronized (stagedFile) {
+            List<String> missing = new ArrayList<>();
+            for (String algorithm : algorithms) {
+                if (!stagedFile.checksums.containsKey(algorithm)) {
+                    missing.add(algorithm);
+                }
+            }
+            if (missing.isEmpty()) {
+                checksumsReused.incrementAndGet();
+            }
+            else {
+                stagedFile.checksums.putAll(Hasher.getChecksums(stagedCopy, missing, ioScheduler));
+            }
+            Map<String, String> checksums = new HashMap<>();
+            for (String algorithm : algorithms) {
+                checksums.put(algorithm, stagedFile.checksums.get(algorithm));
+            }
+            return checksums;
+        }
+    }
+
+    /**
+     * Updates the locations of the staged files after a directory containing them was moved.
+     *
+     * @param oldDir the old location of the directory
+     * @param newDir the new location of the directory
+     */
+    public void relocate(Path oldDir, Path newDir) {
+        for (StagedFile stagedFile : stagedFiles.values()) {
+            synchronized (stagedFile) {
+                if (stagedFile.location != null && stagedFile.location.startsWith(oldDir)) {
+                    stagedFile.location = newDir.resolve(oldDir.relativize(stagedFile.location));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of unique files staged, copied and hardlinked, and the number of times checksums were reused
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("unique", (long) stagedFiles.size());
+        statistics.put("copied", (long) copied.get());
+        statistics.put("hardlinked", (long) linked.get());
+        statistics.put("checksumsReused", (long) checksumsReused.get());
+        return statistics;
+    }
+
+    public void logStatistics() {
+        log.info("Staged Springfield files: {} unique, {} copied, {} hardlinked, checksums reused {} times", stagedFiles.size(), copied.get(), linked.get(), checksumsReused.get());
+    }
+
+    private String getContentIdentity(String springfieldFile) throws IOException {
+        FileInfo fileInfo = springfieldIndex.getFileInfo(springfieldFile).orElse(null);
+        if (fileInfo == null) {
+            Path file = springfieldDir.resolve(springfieldFile);
+            fileInfo = FileInfo.of(ioScheduler.retry("stat", () -> Files.readAttributes(file, BasicFileAttributes.class), file));
+        }
+        return springfieldDir.resolve(springfieldFile).normalize() + ":" + fileInfo.getSize() + ":" + fileInfo.getLastModified();
+    }
+
+    private static class StagedFile {
+        private Path location;
+        private final Map<String, String> checksums = new HashMap<>();
+    }
+}
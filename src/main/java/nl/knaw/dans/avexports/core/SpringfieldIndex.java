@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the Springfield directory. The index is built in a single walk over the directory tree and records, for every directory, the subtitle files
+ * it contains by language, and for every regular file its size and modification time. Subtitles for an AV file are looked up in the index instead of
+ * by listing the directory of each AV file separately, which is slow on network filesystems.
+ * <p>
+ * The index can be cached on disk. A cached index is only used if none of the directories it records has been modified since the index was built;
+ * otherwise it is rebuilt. An index that is kept in memory, e.g. by the server, can be brought up-to-date with {@link #refresh(int)}, which lists only
+ * the directories that were modified. Note that modifying the contents of an existing file does not change the modification time of its directory, so
+ * that is not detected.
+ */
+@Slf4j
+public class SpringfieldIndex {
+    private static final Pattern SUBTITLE_FILE_PATTERN = Pattern.compile(".*\\.(srt|vtt)");
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Path springfieldDir;
+    private final Map<String, Long> directoryModificationTimes;
+    private final Map<String, FileInfo> files;
+    private final Map<String, Map<String, String>> subtitles;
+
+    private SpringfieldIndex(Path springfieldDir, Map<String, Long> directoryModificationTimes, Map<String, FileInfo> files, Map<String, Map<String, String>> subtitles) {
+        this.springfieldDir = springfieldDir;
+        // Concurrent, also when read from the cache, because directories are indexed concurrently when the index is refreshed
+        this.directoryModificationTimes = new ConcurrentHashMap<>(directoryModificationTimes);
+        this.files = new ConcurrentHashMap<>(files);
+        this.subtitles = new ConcurrentHashMap<>(subtitles);
+    }
+
+    /**
+     * Builds the index by walking the Springfield directory.
+     *
+     * @param springfieldDir the Springfield directory
+     * @param parallelism    the number of directories to list concurrently
+     * @return the index
+     */
+    public static SpringfieldIndex build(Path springfieldDir, int parallelism) {
+        log.info("Building Springfield index for {}", springfieldDir);
+        SpringfieldIndex index = new SpringfieldIndex(springfieldDir, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(index.new IndexDirectory(springfieldDir));
+        }
+        finally {
+            pool.shutdown();
+        }
+        log.info("Indexed {} files in {} directories in {}", index.files.size(), index.directoryModificationTimes.size(), springfieldDir);
+        return index;
+    }
+
+    /**
+     * Loads the index from the cache file if it is still up-to-date, otherwise builds it and writes it to the cache file.
+     *
+     * @param springfieldDir the Springfield directory
+     * @param cacheFile      the cache file, or <code>null</code> to not use a cache
+     * @param parallelism    the number of directories to list concurrently when building the index
+     * @return the index
+     */
+    public static SpringfieldIndex load(Path springfieldDir, Path cacheFile, int parallelism) throws IOException {
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            Optional<SpringfieldIndex> cached = readCache(springfieldDir, cacheFile);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+        }
+        SpringfieldIndex index = build(springfieldDir, parallelism);
+        if (cacheFile != null) {
+            index.writeCache(cacheFile);
+        }
+        return index;
+    }
+
+    /**
+     * Brings the index up-to-date with the Springfield directory, without walking the whole tree again. The directories that were modified since they
+     * were indexed are listed again, directories that were added below them are indexed, and directories that are gone are removed with everything
+     * below them. Must not be called while the index is used.
+     *
+     * @param parallelism the number of directories to list concurrently
+     * @return the number of directories that were modified or are gone
+     */
+    public int refresh(int parallelism) {
+        Set<String> modified = new HashSet<>();
+        Set<String> gone = new HashSet<>();
+        directoryModificationTimes.entrySet().parallelStream()
+            .filter(e -> !e.getValue().equals(getModificationTime(springfieldDir.resolve(e.getKey()))))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList())
+            .forEach(dir -> (Files.isDirectory(springfieldDir.resolve(dir)) ? modified : gone).add(dir));
+        if (modified.isEmpty() && gone.isEmpty()) {
+            log.info("Springfield index is up-to-date");
+            return 0;
+        }
+        // Forget the files of the modified directories, and everything in and below the directories that are gone
+        directoryModificationTimes.keySet().removeIf(dir -> isInOrBelow(dir, gone));
+        files.keySet().removeIf(file -> modified.contains(getParent(file)) || isInOrBelow(file, gone));
+        subtitles.keySet().removeIf(dir -> modified.contains(dir) || isInOrBelow(dir, gone));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+
+                @Override
+                protected void compute() {
+                    invokeAll(modified.stream().map(dir -> new IndexDirectory(springfieldDir.resolve(dir), true)).collect(Collectors.toList()));
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        log.info("Refreshed Springfield index: {} directories modified, {} gone; {} files in {} directories", modified.size(), gone.size(), files.size(),
+            directoryModificationTimes.size());
+        return modified.size() + gone.size();
+    }
+
+    private static String getParent(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent == null ? "" : parent.toString();
+    }
+
+    private static boolean isInOrBelow(String path, Set<String> dirs) {
+        for (Path p = Paths.get(path); p != null; p = p.getParent()) {
+            if (dirs.contains(p.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the subtitles for the given Springfield file. These are the subtitle files in the great-grandparent directory of the file. If that
+     * directory is not in the index, e.g. because it was created after the index was built, it is listed instead.
+     *
+     * @param springfieldFile the path of the AV file relative to the Springfield directory
+     * @return the subtitles
+     * @throws UncheckedIOException if the directory is not in the index and cannot be listed
+     */
+    public Subtitles getSubtitles(String springfieldFile) {
+        String itemDir = Paths.get(springfieldFile).getParent().getParent().getParent().toString();
+        if (!directoryModificationTimes.containsKey(itemDir)) {
+            log.warn("Directory '{}' is not in the Springfield index; listing it to find the subtitles of {}", itemDir, springfieldFile);
+            return new Subtitles(springfieldDir.resolve(springfieldFile));
+        }
+        Map<String, Path> languageToSubtitles = new HashMap<>();
+        subtitles.getOrDefault(itemDir, Collections.emptyMap())
+            .forEach((language, subtitleFile) -> languageToSubtitles.put(language, springfieldDir.resolve(subtitleFile)));
+        return new Subtitles(springfieldDir.resolve(springfieldFile), languageToSubtitles);
+    }
+
+    /**
+     * Returns the size and modification time of the given Springfield file as recorded in the index.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     * @return the file info, or empty if the file was not found when the index was built
+     */
+    public Optional<FileInfo> getFileInfo(String springfieldFile) {
+        return Optional.ofNullable(files.get(springfieldFile));
+    }
+
+    private static Optional<SpringfieldIndex> readCache(Path springfieldDir, Path cacheFile) {
+        try {
+            CachedIndex cachedIndex = objectMapper.readValue(cacheFile.toFile(), CachedIndex.class);
+            if (!springfieldDir.toAbsolutePath().toString().equals(cachedIndex.getSpringfieldDir())) {
+                log.info("Cached Springfield index {} is for a different directory; rebuilding", cacheFile);
+                return Optional.empty();
+            }
+            String modifiedDir = findModifiedDirectory(springfieldDir, cachedIndex.getDirectories());
+            if (modifiedDir != null) {
+                log.info("Directory '{}' was modified since Springfield index {} was cached; rebuilding", modifiedDir, cacheFile);
+                return Optional.empty();
+            }
+            log.info("Using cached Springfield index {} with {} files", cacheFile, cachedIndex.getFiles().size());
+            return Optional.of(new SpringfieldIndex(springfieldDir, cachedIndex.getDirectories(), cachedIndex.getFiles(), cachedIndex.getSubtitles()));
+        }
+        catch (IOException e) {
+            log.warn("Could not read cached Springfield index {}; rebuilding", cacheFile, e);
+            return Optional.empty();
+        }
+    }
+
+    private static String findModifiedDirectory(Path springfieldDir, Map<String, Long> directoryModificationTimes) {
+        return directoryModificationTimes.entrySet().parallelStream()
+            .filter(e -> !e.getValue().equals(getModificationTime(springfieldDir.resolve(e.getKey()))))
+            .map(Map.Entry::getKey)
+            .findAny()
+            .orElse(null);
+    }
+
+    private static Long getModificationTime(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        }
+        catch (IOException e) {
+            // Treat a directory that is gone as modified
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a cache file, to be read by {@link #load(Path, Path, int)}.
+     *
+     * @param cacheFile the cache file
+     */
+    public void writeCache(Path cacheFile) throws IOException {
+        CachedIndex cachedIndex = new CachedIndex();
+        cachedIndex.setSpringfieldDir(springfieldDir.toAbsolutePath().toString());
+        cachedIndex.setDirectories(directoryModificationTimes);
+        cachedIndex.setFiles(files);
+        cachedIndex.setSubtitles(subtitles);
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        objectMapper.writeValue(tempFile.toFile(), cachedIndex);
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Wrote Springfield index to cache file {}", cacheFile);
+    }
+
+    private String relativize(Path path) {
+        return springfieldDir.relativize(path).toString();
+    }
+
+    private class IndexDirectory extends RecursiveAction {
+        private final Path dir;
+        // Only index the subdirectories that are not in the index yet, when refreshing
+        private final boolean onlyNewSubdirectories;
+
+        private IndexDirectory(Path dir) {
+            this(dir, false);
+        }
+
+        private IndexDirectory(Path dir, boolean onlyNewSubdirectories) {
+            this.dir = dir;
+            this.onlyNewSubdirectories = onlyNewSubdirectories;
+        }
+
+        @Override
+        protected void compute() {
+            List<IndexDirectory> subdirectories = new ArrayList<>();
+            try {
+                // Read the modification time before listing, so that changes made during the listing invalidate the cache
+                directoryModificationTimes.put(relativize(dir), Files.getLastModifiedTime(dir).toMillis());
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            if (!onlyNewSubdirectories || !directoryModificationTimes.containsKey(relativize(entry))) {
+                                subdirectories.add(new IndexDirectory(entry));
+                            }
+                        }
+                        else if (attributes.isRegularFile()) {
+                            addFile(entry, attributes);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Error indexing " + dir, e);
+            }
+            invokeAll(subdirectories);
+        }
+
+        private void addFile(Path file, BasicFileAttributes attributes) {
+            files.put(relativize(file), FileInfo.of(attributes));
+            String fileName = file.getFileName().toString();
+            if (SUBTITLE_FILE_PATTERN.matcher(fileName).matches()) {
+                // Language is the two-letter code at the start of the filename preceding underscore char
+                String language = fileName.split("_")[0];
+                subtitles.computeIfAbsent(relativize(dir), k -> new ConcurrentHashMap<>()).put(language, relativize(file));
+            }
+        }
+    }
+
+    @Data
+    private static class CachedIndex {
+        private String springfieldDir;
+        private Map<String, Long> directories;
+        private Map<String, FileInfo> files;
+        private Map<String, Map<String, String>> subtitles;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Orders work by where the Springfield files are on the source storage, so that they are read as sequentially as possible. This matters most for tape
+ * backed or hierarchical storage, where a read that jumps to a file far from the previous one is expensive. The files are ordered either by their path in
+ * the Springfield directory (<code>domain/dans/user/&lt;user&gt;/video/&lt;n&gt;/rawvideo/...</code>), comparing numeric path elements as numbers, or by
+ * their inode number, which on many filesystems follows the order in which the files were written. Java cannot read the physical extents of a file, so
+ * the inode number is the closest available approximation of its location.
+ * <p>
+ * A dataset is placed by the first of its Springfield files in that order. Datasets without Springfield files do not read from the Springfield directory
+ * and come first, in the order of the input.
+ */
+@Slf4j
+public class SpringfieldLocality {
+
+    public enum Order {
+        // The order of the input; no sorting
+        INPUT,
+        // By path in the Springfield directory
+        PATH,
+        // By inode number, and by path where the inode number is not available
+        INODE
+    }
+
+    private final Path springfieldDir;
+    private final Sources sources;
+    private final Order order;
+    private final Map<String, Long> inodes = new ConcurrentHashMap<>();
+
+    /**
+     * @param springfieldDir the Springfield directory
+     * @param sources        the Springfield files per dataset
+     * @param order          the order
+     */
+    public SpringfieldLocality(Path springfieldDir, Sources sources, Order order) {
+        this.springfieldDir = springfieldDir;
+        this.sources = sources;
+        this.order = order;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * Sorts datasets by the location of their Springfield files.
+     *
+     * @param datasetIds the dataset ids in the order of the input
+     * @return the dataset ids in the order to convert them
+     */
+    public List<String> sortDatasets(Collection<String> datasetIds) {
+        List<String> sorted = new ArrayList<>(datasetIds);
+        if (order == Order.INPUT) {
+            return sorted;
+        }
+        if (order == Order.INODE) {
+            // Read the inode numbers up front, many at a time, as this takes a stat of every file
+            datasetIds.parallelStream().flatMap(id -> getSpringfieldFiles(id).stream()).forEach(this::getInode);
+        }
+        Comparator<String> fileComparator = getFileComparator();
+        Map<String, String> firstFiles = new HashMap<>();
+        for (String datasetId : datasetIds) {
+            getSpringfieldFiles(datasetId).stream().min(fileComparator).ifPresent(file -> firstFiles.put(datasetId, file));
+        }
+        // A stable sort, so that datasets without Springfield files keep their order
+        sorted.sort(Comparator.comparing(firstFiles::get, Comparator.nullsFirst(fileComparator)));
+        log.info("Sorted {} datasets by {} of their Springfield files", sorted.size(), order.name().toLowerCase());
+        return sorted;
+    }
+
+    /**
+     * Sorts the Springfield files of one dataset.
+     *
+     * @param springfieldFiles the paths of the files relative to the Springfield directory
+     * @return the paths in the order to read them
+     */
+    public List<String> sortFiles(Collection<String> springfieldFiles) {
+        List<String> sorted = new ArrayList<>(springfieldFiles);
+        if (order != Order.INPUT) {
+            sorted.sort(getFileComparator());
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the comparator for paths relative to the Springfield directory in this order
+     */
+    public Comparator<String> getFileComparator() {
+        Comparator<String> byPath = SpringfieldLocality::comparePaths;
+        switch (order) {
+            case INODE:
+                return Comparator.comparing(this::getInode).thenComparing(byPath);
+            case PATH:
+                return byPath;
+            default:
+                return (a, b) -> 0;
+        }
+    }
+
+    List<String> getSpringfieldFiles(String datasetId) {
+        if (!sources.hasSpringfieldFilesFor(datasetId)) {
+            return new ArrayList<>();
+        }
+        return sources.getSpringfieldFileIdsFor(datasetId).stream().map(sources::getSpringfieldPathByFileId).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the inode number of the file, or {@link Long#MAX_VALUE} if it cannot be read
+     */
+    long getInode(String springfieldFile) {
+        return inodes.computeIfAbsent(springfieldFile, file -> {
+            try {
+                return ((Number) Files.getAttribute(springfieldDir.resolve(file), "unix:ino")).longValue();
+            }
+            catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                // Missing file or no unix attributes; sorted after the files with an inode number, by path
+                log.debug("Could not read the inode number of Springfield file {}", file, e);
+                return Long.MAX_VALUE;
+            }
+        });
+    }
+
+    /**
+     * Compares two relative paths element by element. Elements that are both numbers are compared as numbers, so that <code>video/9</code> comes before
+     * <code>video/10</code>.
+     */
+    static int comparePaths(String a, String b) {
+        Path pathA = Paths.get(a);
+        Path pathB = Paths.get(b);
+        int count = Math.min(pathA.getNameCount(), pathB.getNameCount());
+        for (int i = 0; i < count; i++) {
+            String elementA = pathA.getName(i).toString();
+            String elementB = pathB.getName(i).toString();
+            int result = isNumber(elementA) && isNumber(elementB)
+                ? compareNumbers(elementA, elementB)
+                : elementA.compareTo(elementB);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(pathA.getNameCount(), pathB.getNameCount());
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compareNumbers(String a, String b) {
+        // Without leading zeros, a longer number is a larger number
+        String strippedA = a.replaceFirst("^0+(?=.)", "");
+        String strippedB = b.replaceFirst("^0+(?=.)", "");
+        int result = Integer.compare(strippedA.length(), strippedB.length());
+        return result != 0 ? result : strippedA.compareTo(strippedB);
+    }
+}
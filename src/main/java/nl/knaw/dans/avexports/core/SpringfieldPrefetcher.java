@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the Springfield files of the next datasets to a local scratch directory while the current dataset is being converted, so that staging them
+ * later does not have to wait for the Springfield directory. The files are read one at a time, sequentially, which is what network filesystems handle
+ * best.
+ * <p>
+ * The scratch directory holds at most a configured number of bytes. Copies that have been consumed are evicted, least recently used first, to make room
+ * for new ones; copies that have not been consumed yet are never evicted. If there is no room, a file is not prefetched and is staged from the
+ * Springfield directory as usual. When a dataset leaves the conversion, also if it failed before its files were staged, its copies count as consumed,
+ * and copies that could not be made are evicted as well.
+ */
+@Slf4j
+public class SpringfieldPrefetcher {
+    // How long to wait for the copy in progress to stop, before the scratch directory is deleted
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private final Path springfieldDir;
+    private final SpringfieldIndex springfieldIndex;
+    private final Sources sources;
+    private final FileTransfer fileTransfer;
+    private final Path scratchDir;
+    private final int lookAhead;
+    private final long maxBytes;
+
+    private final ExecutorService executor;
+    // Access order, so that iteration starts at the least recently used entry
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> scheduled = new HashSet<>();
+    // Files of datasets that have finished, which need not be prefetched any more
+    private final Set<String> finished = new HashSet<>();
+    private final Map<String, Integer> datasetPositions = new HashMap<>();
+    private List<String> datasetIds = Collections.emptyList();
+    private long usedBytes;
+
+    private int hits;
+    private int misses;
+    private int evicted;
+    private int skipped;
+
+    /**
+     * @param springfieldDir   the Springfield directory
+     * @param springfieldIndex the index of the Springfield directory, used to look up file sizes
+     * @param sources          the Springfield files per dataset
+     * @param fileTransfer     used to copy the files
+     * @param scratchDir       the local directory to copy the files to
+     * @param lookAhead        the number of datasets after the current one to prefetch the files of
+     * @param maxBytes         the maximum number of bytes in the scratch directory
+     */
+    public SpringfieldPrefetcher(Path springfieldDir, SpringfieldIndex springfieldIndex, Sources sources, FileTransfer fileTransfer, Path scratchDir,
+        int lookAhead, long maxBytes) {
+        this.springfieldDir = springfieldDir;
+        this.springfieldIndex = springfieldIndex;
+        this.sources = sources;
+        this.fileTransfer = fileTransfer;
+        this.scratchDir = scratchDir;
+        this.lookAhead = lookAhead;
+        this.maxBytes = maxBytes;
+        this.executor = lookAhead > 0 ? Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "springfield-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Returns a prefetcher that does nothing.
+     *
+     * @return the prefetcher
+     */
+    public static SpringfieldPrefetcher disabled() {
+        return new SpringfieldPrefetcher(null, null, null, null, null, 0, 0);
+    }
+
+    /**
+     * Sets the order in which the datasets will be converted.
+     *
+     * @param datasetIds the dataset ids in order
+     */
+    public synchronized void setDatasetOrder(List<String> datasetIds) {
+        this.datasetIds = datasetIds;
+        datasetPositions.clear();
+        for (int i = 0; i < datasetIds.size(); i++) {
+            datasetPositions.put(datasetIds.get(i), i);
+        }
+    }
+
+    /**
+     * Signals that the conversion of a dataset has started, so that the files of the datasets after it can be prefetched.
+     *
+     * @param datasetId the dataset id
+     */
+    public synchronized void datasetStarted(String datasetId) {
+        Integer position = datasetPositions.get(datasetId);
+        if (executor == null || position == null) {
+            return;
+        }
+        for (String upcomingDatasetId : datasetIds.subList(position + 1, Math.min(datasetIds.size(), position + 1 + lookAhead))) {
+            if (!sources.hasSpringfieldFilesFor(upcomingDatasetId)) {
+                continue;
+            }
+            for (String fileId : sources.getSpringfieldFileIdsFor(upcomingDatasetId)) {
+                String springfieldFile = sources.getSpringfieldPathByFileId(fileId);
+                // Files that were prefetched before are not fetched again, even if they were evicted; by now they have been staged
+                if (scheduled.add(springfieldFile)) {
+                    executor.execute(() -> prefetch(springfieldFile));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the prefetched copy of a Springfield file, waiting for it if it is still being copied. The copy is not evicted until {@link #release(String)}
+     * is called.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     * @return the copy, or empty if the file was not prefetched
+     */
+    public Optional<Path> acquire(String springfieldFile) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(springfieldFile);
+            if (entry == null) {
+                misses++;
+                return Optional.empty();
+            }
+            entry.pins++;
+        }
+        try {
+            entry.done.get();
+            synchronized (this) {
+                hits++;
+            }
+            return Optional.of(entry.location);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            log.warn("Could not prefetch {}; reading it from the Springfield directory", springfieldFile, e.getCause());
+        }
+        release(springfieldFile);
+        return Optional.empty();
+    }
+
+    /**
+     * Releases a copy returned by {@link #acquire(String)}. The copy may now be evicted.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     */
+    public synchronized void release(String springfieldFile) {
+        Entry entry = entries.get(springfieldFile);
+        if (entry != null) {
+            entry.pins--;
+            entry.consumed = true;
+        }
+    }
+
+    /**
+     * Signals that a Springfield file has been staged without using the prefetched copy, e.g., because it was hardlinked to an earlier copy. The
+     * prefetched copy may now be evicted.
+     *
+     * @param springfieldFile the path of the file relative to the Springfield directory
+     */
+    public synchronized void consumed(String springfieldFile) {
+        Entry entry = entries.get(springfieldFile);
+        if (entry != null) {
+            entry.consumed = true;
+        }
+    }
+
+    /**
+     * Signals that a dataset has left the conversion, successfully or not. Its prefetched copies may now be evicted, and its files that have not been
+     * prefetched yet are not prefetched any more.
+     *
+     * @param datasetId the dataset id
+     */
+    public synchronized void datasetFinished(String datasetId) {
+        if (executor == null || !sources.hasSpringfieldFilesFor(datasetId)) {
+            return;
+        }
+        for (String fileId : sources.getSpringfieldFileIdsFor(datasetId)) {
+            String springfieldFile = sources.getSpringfieldPathByFileId(fileId);
+            finished.add(springfieldFile);
+            consumed(springfieldFile);
+        }
+    }
+
+    /**
+     * Stops prefetching and deletes the scratch directory. The copy in progress, if any, is interrupted and waited for, so that it cannot recreate files
+     * in the scratch directory while it is deleted.
+     */
+    public void close() throws IOException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Prefetching did not stop within {} s; scratch directory {} may not be deleted completely", SHUTDOWN_TIMEOUT_SECONDS, scratchDir);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        FileUtils.deleteDirectory(scratchDir.toFile());
+    }
+
+    // For testing purposes
+    void awaitScheduledPrefetches() throws InterruptedException, ExecutionException {
+        executor.submit(() -> {
+        }).get();
+    }
+
+    /**
+     * @return the number of hits, misses, evicted and skipped files, and the bytes in the scratch directory
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("hits", (long) hits);
+        statistics.put("misses", (long) misses);
+        statistics.put("evicted", (long) evicted);
+        statistics.put("skipped", (long) skipped);
+        statistics.put("usedBytes", usedBytes);
+        return statistics;
+    }
+
+    public synchronized void logStatistics() {
+        if (executor != null) {
+            log.info("Springfield prefetch: {} hits, {} misses, {} evicted, {} skipped for lack of space", hits, misses, evicted, skipped);
+        }
+    }
+
+    private void prefetch(String springfieldFile) {
+        Entry entry;
+        synchronized (this) {
+            if (finished.contains(springfieldFile)) {
+                return;
+            }
+            long size = springfieldIndex.getFileInfo(springfieldFile).map(FileInfo::getSize).orElse(0L);
+            if (!makeRoom(size)) {
+                skipped++;
+                return;
+            }
+            entry = new Entry(scratchDir.resolve(springfieldFile), size);
+            entries.put(springfieldFile, entry);
+            usedBytes += size;
+        }
+        try {
+            fileTransfer.copyFile(springfieldDir.resolve(springfieldFile), entry.location);
+            log.debug("Prefetched {}", springfieldFile);
+            entry.done.complete(null);
+        }
+        catch (IOException | RuntimeException e) {
+            entry.done.completeExceptionally(e);
+        }
+    }
+
+    private boolean makeRoom(long size) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (usedBytes + size > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if ((entry.consumed || entry.done.isCompletedExceptionally()) && entry.pins == 0) {
+                iterator.remove();
+                usedBytes -= entry.size;
+                evicted++;
+                try {
+                    Files.deleteIfExists(entry.location);
+                }
+                catch (IOException e) {
+                    log.warn("Could not delete prefetched copy {}", entry.location, e);
+                }
+            }
+        }
+        return usedBytes + size <= maxBytes;
+    }
+
+    private static class Entry {
+        private final Path location;
+        private final long size;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private int pins;
+        private boolean consumed;
+
+        private Entry(Path location, long size) {
+            this.location = location;
+            this.size = size;
+        }
+    }
+}
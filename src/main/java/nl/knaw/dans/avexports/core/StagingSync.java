@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Brings the staging directory in line with the input directory by copying only the bag parents that are new or have changed, and removing the ones
+ * that are no longer in the input. A bag parent that is already in the output directory, as a directory or as an archive, was converted by an earlier
+ * run and is neither copied nor converted again; it is removed from the staging directory if it is still there. This makes a rerun on the same input,
+ * e.g. after a run that was aborted, cost time in proportion to what is left to convert and what changed. To convert a bag parent again, remove it from
+ * the output directory.
+ * <p>
+ * A bag parent in the staging directory is considered unchanged if it contains the same files as the one in the input and
+ * <ul>
+ *     <li>{@link Comparison#ATTRIBUTES}: all files have the same size and modification time, which copies made by {@link FileTransfer} preserve;</li>
+ *     <li>{@link Comparison#MANIFESTS}: all files have the same size and the payload and tag manifests have the same content. Use this if the
+ *     modification times in the input are not reliable.</li>
+ * </ul>
+ * A bag parent that was partly converted in an earlier run always differs from the input, because the conversion removes files.
+ */
+@Slf4j
+public class StagingSync {
+    private static final Pattern MANIFEST_PATTERN = Pattern.compile("(tag)?manifest-.*\\.txt");
+
+    public enum Comparison {
+        ATTRIBUTES,
+        MANIFESTS
+    }
+
+    private final FileTransfer fileTransfer;
+    private final Comparison comparison;
+
+    public StagingSync(FileTransfer fileTransfer, Comparison comparison) {
+        this.fileTransfer = fileTransfer;
+        this.comparison = comparison;
+    }
+
+    /**
+     * Synchronizes the staging directory with the input directory.
+     *
+     * @param inputDir   the input directory
+     * @param stagingDir the staging directory; created if it does not exist
+     * @param outputDir  the output directory, with the bag parents converted by earlier runs
+     */
+    public void sync(Path inputDir, Path stagingDir, Path outputDir) throws IOException {
+        Files.createDirectories(stagingDir);
+        Set<String> inputNames = listNames(inputDir);
+        int added = 0;
+        int changed = 0;
+        int unchanged = 0;
+        int removed = 0;
+        int converted = 0;
+        for (String name : listNames(stagingDir)) {
+            if (!inputNames.contains(name)) {
+                log.debug("Removing {} from staging directory; it is no longer in the input", name);
+                delete(stagingDir.resolve(name));
+                removed++;
+            }
+        }
+        for (String name : inputNames) {
+            if (isConverted(name, outputDir)) {
+                if (Files.exists(stagingDir.resolve(name))) {
+                    log.debug("Removing {} from staging directory; it is already in the output", name);
+                    delete(stagingDir.resolve(name));
+                }
+                converted++;
+                continue;
+            }
+            Path source = inputDir.resolve(name);
+            Path target = stagingDir.resolve(name);
+            if (Files.exists(target)) {
+                if (isUnchanged(source, target)) {
+                    unchanged++;
+                    continue;
+                }
+                log.debug("Recopying changed {} to staging directory", name);
+                delete(target);
+                changed++;
+            }
+            else {
+                added++;
+            }
+            if (Files.isDirectory(source)) {
+                fileTransfer.copyDirectory(source, target);
+            }
+            else {
+                fileTransfer.copyFile(source, target);
+            }
+        }
+        log.info("Synchronized staging directory {}: {} added, {} changed, {} unchanged, {} removed, {} already converted", stagingDir, added, changed,
+            unchanged, removed, converted);
+    }
+
+    // The version 1 bag parent is published last, so once it is in the output, the whole dataset is
+    private boolean isConverted(String name, Path outputDir) {
+        if (Files.exists(outputDir.resolve(name))) {
+            return true;
+        }
+        for (BagArchiver.Format format : BagArchiver.Format.values()) {
+            if (Files.exists(outputDir.resolve(name + format.getExtension()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isUnchanged(Path source, Path target) throws IOException {
+        Map<String, FileInfo> sourceFiles = listFiles(source);
+        Map<String, FileInfo> targetFiles = listFiles(target);
+        if (!sourceFiles.keySet().equals(targetFiles.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, FileInfo> entry : sourceFiles.entrySet()) {
+            FileInfo sourceFile = entry.getValue();
+            FileInfo targetFile = targetFiles.get(entry.getKey());
+            if (comparison == Comparison.ATTRIBUTES && !sourceFile.equals(targetFile)) {
+                return false;
+            }
+            if (comparison == Comparison.MANIFESTS) {
+                if (sourceFile.getSize() != targetFile.getSize()) {
+                    return false;
+                }
+                if (MANIFEST_PATTERN.matcher(source.resolve(entry.getKey()).getFileName().toString()).matches()
+                    && !FileUtils.contentEquals(source.resolve(entry.getKey()).toFile(), target.resolve(entry.getKey()).toFile())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Map<String, FileInfo> listFiles(Path root) throws IOException {
+        Map<String, FileInfo> files = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.put(root.relativize(file).toString(), FileInfo.of(attrs));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private Set<String> listNames(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.map(p -> p.getFileName().toString()).collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            FileUtils.deleteDirectory(path.toFile());
+        }
+        else {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.servlets.MetricsServlet;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * HTTP endpoint for monitoring the converter in server mode. It serves:
+ * <ul>
+ *     <li><code>/status</code>: a JSON object with the queue depth, the batch being converted, the datasets in flight and the throughput</li>
+ *     <li><code>/metrics</code>: all metrics of the run as JSON, e.g. the I/O per storage location and the copy and checksum throughput</li>
+ * </ul>
+ */
+@Slf4j
+public class StatusServer implements Closeable {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Server server;
+
+    /**
+     * @param port           the port to listen on, or 0 for any free port
+     * @param metricRegistry the metrics to serve
+     * @param status         supplies the status
+     */
+    public StatusServer(int port, MetricRegistry metricRegistry, Supplier<Map<String, Object>> status) {
+        server = new Server(port);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new MetricsServlet(metricRegistry)), "/metrics");
+        context.addServlet(new ServletHolder(new HttpServlet() {
+
+            @Override
+            protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                objectMapper.writeValue(response.getOutputStream(), status.get());
+            }
+        }), "/status");
+        server.setHandler(context);
+    }
+
+    public void start() {
+        try {
+            server.start();
+            log.info("Serving status on port {}", getPort());
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Could not start status server", e);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.stop();
+        }
+        catch (Exception e) {
+            throw new IOException("Could not stop status server", e);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Alternative to {@link FilesXml} for very large files.xml files. Instead of a DOM, it keeps only the identifier, filepath and accessibility of each file
+ * element, which it reads in one streaming pass when it is opened. Changes are made to these entries and applied to the document in a second streaming pass
+ * when it is written, copying all other content unchanged. The result is equivalent to that of {@link FilesXml}, except for indentation.
+ */
+@Slf4j
+public class StreamingFilesXml implements FilesXmlDocument {
+    private static final String FILE = "file";
+    private static final String FILEPATH = "filepath";
+    private static final String ACCESSIBLE_TO_RIGHTS = "accessibleToRights";
+
+    private final Path path;
+    private final List<FileEntry> entries = new ArrayList<>();
+    private final Map<String, FileEntry> entriesById = new HashMap<>();
+    private final int originalEntryCount;
+
+    public StreamingFilesXml(Path path) throws IOException, XMLStreamException {
+        this.path = path;
+        readEntries();
+        this.originalEntryCount = entries.size();
+    }
+
+    private void readEntries() throws IOException, XMLStreamException {
+        Map<String, FileEntry> lastEntriesById = new HashMap<>();
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+            try {
+                FileEntry current = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (isFileElement(reader.getPrefix(), reader.getLocalName())) {
+                            current = new FileEntry(reader.getAttributeValue(null, FILEPATH));
+                            entries.add(current);
+                        }
+                        else if (current != null && current.id == null && XmlNamespaces.NAMESPACE_DCTERMS.equals(reader.getNamespaceURI())
+                            && "identifier".equals(reader.getLocalName())) {
+                            current.id = reader.getElementText();
+                            FileEntry previous = lastEntriesById.put(current.id, current);
+                            if (previous == null) {
+                                entriesById.put(current.id, current);
+                            }
+                            else {
+                                previous.nextWithSameId = current;
+                            }
+                        }
+                        else if (current != null && current.accessibility == null && isUnprefixed(reader.getPrefix())
+                            && ACCESSIBLE_TO_RIGHTS.equals(reader.getLocalName())) {
+                            current.accessibility = reader.getElementText();
+                        }
+                    }
+                    else if (event == XMLStreamConstants.END_ELEMENT && isFileElement(reader.getPrefix(), reader.getLocalName())) {
+                        current = null;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        log.debug("Read {} file entries from {}", entries.size(), path);
+    }
+
+    @Override
+    public String getFilepathForFileId(String id) {
+        return getEntry(id).filepath;
+    }
+
+    @Override
+    public void setFilepathForFileId(String id, String path) {
+        getEntry(id).filepath = path;
+    }
+
+    @Override
+    public void deleteFileElementForFilepath(String path) {
+        for (FileEntry entry : entries) {
+            if (!entry.removed && path.equals(entry.filepath)) {
+                entry.removed = true;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String getAccessibilityForFileId(String id) {
+        FileEntry entry = getEntry(id);
+        if (entry.accessibility == null) {
+            throw new IllegalStateException("No accessibleToRights element found for file with id " + id);
+        }
+        return entry.accessibility;
+    }
+
+    @Override
+    public void addFile(String filepath, String accessibility) {
+        FileEntry entry = new FileEntry(filepath);
+        entry.accessibility = accessibility;
+        entries.add(entry);
+    }
+
+    @Override
+    public Map<String, String> getFilepathsByFileId() {
+        Map<String, String> filepaths = new LinkedHashMap<>();
+        for (FileEntry entry : entries) {
+            if (!entry.removed && entry.id != null) {
+                filepaths.put(entry.id, entry.filepath);
+            }
+        }
+        return filepaths;
+    }
+
+    @Override
+    public void removeFiles(Collection<String> ids) {
+        Set<String> remaining = new HashSet<>(ids);
+        List<FileEntry> toRemove = new ArrayList<>();
+        for (FileEntry entry : entries) {
+            if (!entry.removed && entry.id != null && remaining.remove(entry.id)) {
+                toRemove.add(entry);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            throw new IllegalArgumentException("No file with id " + remaining.iterator().next() + " found in files.xml");
+        }
+        for (FileEntry entry : toRemove) {
+            entry.removed = true;
+        }
+    }
+
+    private FileEntry getEntry(String id) {
+        FileEntry entry = entriesById.get(id);
+        while (entry != null && entry.removed) {
+            entry = entry.nextWithSameId;
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("No file with id " + id + " found in files.xml");
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the changes to the file, by copying it to a temporary file with the changes applied and moving that over the original.
+     */
+    @Override
+    public void write() {
+        ConversionEvents.FilesXmlRewritten event = new ConversionEvents.FilesXmlRewritten();
+        event.begin();
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (InputStream in = Files.newInputStream(path); OutputStream out = Files.newOutputStream(tempFile)) {
+                copyWithChanges(in, out);
+            }
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            event.end();
+            if (event.shouldCommit()) {
+                event.datasetId = ConversionEvents.getCurrentDatasetId();
+                event.bagParent = ConversionEvents.getBagParentName(path.toAbsolutePath().getParent().getParent());
+                event.streaming = true;
+                event.bytes = Files.size(path);
+                event.commit();
+            }
+        }
+        catch (IOException | XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                }
+                catch (IOException e) {
+                    log.warn("Could not delete temporary file {}", tempFile, e);
+                }
+            }
+        }
+    }
+
+    private void copyWithChanges(InputStream in, OutputStream out) throws XMLStreamException {
+        XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+        XMLEventReader reader = createInputFactory().createXMLEventReader(in);
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+        try {
+            Iterator<FileEntry> originalEntries = entries.subList(0, originalEntryCount).iterator();
+            // Whitespace is held back until it is known whether the element following it is removed
+            List<XMLEvent> pendingWhitespace = new ArrayList<>();
+            int depth = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+                    pendingWhitespace.add(event);
+                    continue;
+                }
+                if (event.isStartElement() && isFile(event.asStartElement())) {
+                    FileEntry entry = originalEntries.next();
+                    if (entry.removed) {
+                        pendingWhitespace.clear();
+                        skipElement(reader);
+                        continue;
+                    }
+                    event = withFilepath(eventFactory, event.asStartElement(), entry.filepath);
+                }
+                if (event.isEndElement() && depth == 1) {
+                    writeAddedFiles(eventFactory, writer);
+                }
+                for (XMLEvent whitespace : pendingWhitespace) {
+                    writer.add(whitespace);
+                }
+                pendingWhitespace.clear();
+                if (event.isStartDocument()) {
+                    StartDocument startDocument = (StartDocument) event;
+                    event = eventFactory.createStartDocument("UTF-8", startDocument.getVersion());
+                }
+                if (event.isStartElement()) {
+                    depth++;
+                }
+                else if (event.isEndElement()) {
+                    depth--;
+                }
+                writer.add(event);
+            }
+            for (XMLEvent whitespace : pendingWhitespace) {
+                writer.add(whitespace);
+            }
+            writer.flush();
+        }
+        finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    private void writeAddedFiles(XMLEventFactory eventFactory, XMLEventWriter writer) throws XMLStreamException {
+        for (FileEntry entry : entries.subList(originalEntryCount, entries.size())) {
+            if (entry.removed) {
+                continue;
+            }
+            // No namespace declarations, so that the elements are in the default namespace of the document, as with FilesXml
+            writer.add(eventFactory.createCharacters("\n  "));
+            writer.add(eventFactory.createStartElement("", XmlNamespaces.NAMESPACE_FILES_XML, FILE,
+                singletonIterator(eventFactory.createAttribute(FILEPATH, entry.filepath)), null));
+            writer.add(eventFactory.createCharacters("\n    "));
+            writer.add(eventFactory.createStartElement("", XmlNamespaces.NAMESPACE_FILES_XML, ACCESSIBLE_TO_RIGHTS));
+            writer.add(eventFactory.createCharacters(entry.accessibility));
+            writer.add(eventFactory.createEndElement("", XmlNamespaces.NAMESPACE_FILES_XML, ACCESSIBLE_TO_RIGHTS));
+            writer.add(eventFactory.createCharacters("\n  "));
+            writer.add(eventFactory.createEndElement("", XmlNamespaces.NAMESPACE_FILES_XML, FILE));
+        }
+    }
+
+    private static StartElement withFilepath(XMLEventFactory eventFactory, StartElement element, String filepath) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = (Attribute) it.next();
+            if (isUnprefixed(attribute.getName().getPrefix()) && FILEPATH.equals(attribute.getName().getLocalPart())) {
+                attribute = eventFactory.createAttribute(FILEPATH, filepath);
+            }
+            attributes.add(attribute);
+        }
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static void skipElement(XMLEventReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            }
+            else if (event.isEndElement()) {
+                depth--;
+            }
+        }
+    }
+
+    private static <T> Iterator<T> singletonIterator(T value) {
+        List<T> list = new ArrayList<>();
+        list.add(value);
+        return list.iterator();
+    }
+
+    private static boolean isFile(StartElement element) {
+        return isFileElement(element.getName().getPrefix(), element.getName().getLocalPart());
+    }
+
+    // Like FilesXml, which looks up file elements by their qualified name
+    private static boolean isFileElement(String prefix, String localName) {
+        return isUnprefixed(prefix) && FILE.equals(localName);
+    }
+
+    private static boolean isUnprefixed(String prefix) {
+        return prefix == null || prefix.isEmpty();
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    private static class FileEntry {
+        private String id;
+        private String filepath;
+        private String accessibility;
+        private boolean removed;
+        private FileEntry nextWithSameId;
+
+        private FileEntry(String filepath) {
+            this.filepath = filepath;
+        }
+    }
+}
@@ -24,6 +24,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Stream;
 
+/**
+ * The subtitle files for an AV file in the Springfield directory, by language.
+ */
 public class Subtitles {
     private final Map<String, Path> languageToSubtitles = new HashMap<>();
 
@@ -46,6 +49,11 @@ public class Subtitles {
         }
     }
 
+    Subtitles(Path springfieldFile, Map<String, Path> languageToSubtitles) {
+        this.springfieldFile = springfieldFile;
+        this.languageToSubtitles.putAll(languageToSubtitles);
+    }
+
     public Set<String> getLanguages() {
         return languageToSubtitles.keySet();
     }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads the converter runs its work on. Most of that work blocks on filesystem I/O, for which virtual threads are a better fit than
+ * platform threads. Virtual threads are used if the runtime supports them (Java 21 and later); otherwise platform threads are used. The code is compiled
+ * for Java 8, so the virtual thread API is looked up by reflection.
+ * <p>
+ * The number of threads is not what limits the use of resources: {@link #newExecutor(String, int)} bounds the number of tasks that run at the same time
+ * with a semaphore, and the I/O itself is limited by the {@link IoScheduler}.
+ */
+@Slf4j
+public abstract class TaskExecutor {
+    public static final TaskExecutor PLATFORM = new PlatformTaskExecutor();
+
+    public enum Threads {
+        // Virtual threads if available, platform threads otherwise
+        AUTO,
+        PLATFORM,
+        VIRTUAL
+    }
+
+    /**
+     * Returns the task executor for the given kind of threads.
+     *
+     * @param threads the kind of threads
+     * @return the task executor
+     * @throws IllegalStateException if virtual threads are requested, but the runtime does not support them
+     */
+    public static TaskExecutor create(Threads threads) {
+        if (threads == Threads.PLATFORM) {
+            return PLATFORM;
+        }
+        VirtualTaskExecutor virtual = VirtualTaskExecutor.create();
+        if (virtual != null) {
+            return virtual;
+        }
+        if (threads == Threads.VIRTUAL) {
+            throw new IllegalStateException("Virtual threads are not supported by Java " + System.getProperty("java.version"));
+        }
+        log.debug("Virtual threads are not supported by Java {}; using platform threads", System.getProperty("java.version"));
+        return PLATFORM;
+    }
+
+    /**
+     * @return "platform" or "virtual"
+     */
+    public abstract String getName();
+
+    /**
+     * Creates a thread, which is not started yet.
+     *
+     * @param name the name of the thread
+     * @param task the task to run in the thread
+     * @return the thread
+     */
+    public abstract Thread newThread(String name, Runnable task);
+
+    /**
+     * Creates an executor that runs at most the given number of tasks at the same time.
+     *
+     * @param namePrefix    the prefix of the names of the threads
+     * @param maxConcurrent the maximum number of tasks running at the same time
+     * @return the executor
+     */
+    public abstract ExecutorService newExecutor(String namePrefix, int maxConcurrent);
+
+    private static class PlatformTaskExecutor extends TaskExecutor {
+
+        @Override
+        public String getName() {
+            return "platform";
+        }
+
+        @Override
+        public Thread newThread(String name, Runnable task) {
+            return new Thread(task, name);
+        }
+
+        @Override
+        public ExecutorService newExecutor(String namePrefix, int maxConcurrent) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxConcurrent, task -> newThread(namePrefix + "-" + count.getAndIncrement(), task));
+        }
+    }
+
+    private static class VirtualTaskExecutor extends TaskExecutor {
+        private final Method ofVirtual;
+        private final Method name;
+        private final Method nameWithCounter;
+        private final Method unstarted;
+        private final Method factory;
+        private final Method newThreadPerTaskExecutor;
+
+        private VirtualTaskExecutor() throws ReflectiveOperationException {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class);
+            nameWithCounter = builderClass.getMethod("name", String.class, long.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            factory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+
+        /**
+         * @return the task executor, or <code>null</code> if the runtime does not support virtual threads
+         */
+        private static VirtualTaskExecutor create() {
+            try {
+                VirtualTaskExecutor executor = new VirtualTaskExecutor();
+                // Virtual threads were a preview feature in Java 19 and 20, in which case this fails
+                executor.newThread("probe", () -> {
+                });
+                return executor;
+            }
+            catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "virtual";
+        }
+
+        @Override
+        public Thread newThread(String threadName, Runnable task) {
+            // Thread builders are not thread-safe, so every call gets its own
+            return (Thread) invoke(unstarted, invoke(name, invoke(ofVirtual, null), threadName), task);
+        }
+
+        @Override
+        public ExecutorService newExecutor(String namePrefix, int maxConcurrent) {
+            ThreadFactory threadFactory = (ThreadFactory) invoke(factory, invoke(nameWithCounter, invoke(ofVirtual, null), namePrefix + "-", 0L));
+            return new BoundedExecutorService((ExecutorService) invoke(newThreadPerTaskExecutor, null, threadFactory), maxConcurrent);
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            }
+            catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs every task in a thread of its own, but lets only a limited number of them proceed at the same time. The other threads wait for a permit, which
+     * costs next to nothing for virtual threads.
+     */
+    static class BoundedExecutorService extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        BoundedExecutorService(ExecutorService delegate, int maxConcurrent) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                }
+                catch (InterruptedException e) {
+                    // The executor was shut down; make sure whoever waits for the result of the task does not wait forever
+                    if (command instanceof Future) {
+                        ((Future<?>) command).cancel(false);
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    command.run();
+                }
+                finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+/**
+ * The number of bytes the current thread has hashed and copied. A pipeline stage processes one dataset per thread at a time, so the difference between
+ * the counters before and after a stage is what the stage did for that dataset.
+ */
+final class ThreadIoCounters {
+    private static final ThreadLocal<ThreadIoCounters> counters = ThreadLocal.withInitial(ThreadIoCounters::new);
+
+    private long bytesHashed;
+    private long bytesCopied;
+
+    private ThreadIoCounters() {
+    }
+
+    static ThreadIoCounters get() {
+        return counters.get();
+    }
+
+    static void addBytesHashed(long bytes) {
+        counters.get().bytesHashed += bytes;
+    }
+
+    static void addBytesCopied(long bytes) {
+        counters.get().bytesCopied += bytes;
+    }
+
+    long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    long getBytesCopied() {
+        return bytesCopied;
+    }
+}
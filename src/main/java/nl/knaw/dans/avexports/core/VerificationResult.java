@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The verdict for one bag and what it took to reach it.
+ */
+@Getter
+public class VerificationResult {
+    private final Path bagDir;
+    final List<String> errors = new ArrayList<>();
+    long filesConfirmed;
+    long filesHashed;
+    long filesSkipped;
+    long bytesHashed;
+    long nanos;
+
+    VerificationResult(Path bagDir) {
+        this.bagDir = bagDir;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    public double getMegabytesPerSecond() {
+        return nanos == 0 ? 0 : bytesHashed / 1e6 / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches I/O operations and datasets that take too long. A hung read on a network filesystem can block a thread indefinitely, and Java cannot abort
+ * it. The watchdog at least makes it visible: an I/O operation that runs longer than the operation timeout is reported with the stack trace of the
+ * thread that runs it. A dataset that is in the pipeline longer than the dataset timeout is reported in the same way and then given up on, so that the
+ * other datasets can continue.
+ * <p>
+ * Every watched activity is reported only once. The watchdog checks the activities in a daemon thread, at a quarter of the shortest timeout, but at least
+ * every second.
+ */
+@Slf4j
+public class Watchdog implements Closeable {
+    public static final String METRIC_STALLED_OPERATIONS = MetricRegistry.name("watchdog", "stalled-operations");
+    public static final String METRIC_TIMED_OUT_DATASETS = MetricRegistry.name("watchdog", "timed-out-datasets");
+
+    private final long operationTimeoutMillis;
+    private final long datasetTimeoutMillis;
+    private final MetricRegistry metricRegistry;
+    private final Map<Long, Watch> watches = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Thread thread;
+
+    /**
+     * @param operationTimeoutMillis the time after which an I/O operation is reported, or 0 to not watch I/O operations
+     * @param datasetTimeoutMillis   the time after which a dataset is given up on, or 0 to not watch datasets
+     * @param metricRegistry         the registry to count the stalled operations and timed out datasets in
+     */
+    public Watchdog(long operationTimeoutMillis, long datasetTimeoutMillis, MetricRegistry metricRegistry) {
+        this.operationTimeoutMillis = operationTimeoutMillis;
+        this.datasetTimeoutMillis = datasetTimeoutMillis;
+        this.metricRegistry = metricRegistry;
+        if (operationTimeoutMillis > 0 || datasetTimeoutMillis > 0) {
+            long shortestTimeout = Math.min(operationTimeoutMillis > 0 ? operationTimeoutMillis : Long.MAX_VALUE,
+                datasetTimeoutMillis > 0 ? datasetTimeoutMillis : Long.MAX_VALUE);
+            long intervalMillis = Math.max(1, Math.min(1000, shortestTimeout / 4));
+            thread = new Thread(() -> checkPeriodically(intervalMillis), "watchdog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Returns a watchdog that watches nothing.
+     *
+     * @return the watchdog
+     */
+    public static Watchdog disabled() {
+        return new Watchdog(0, 0, new MetricRegistry());
+    }
+
+    /**
+     * Starts watching an I/O operation in the current thread.
+     *
+     * @param description a description of the operation, for the log
+     * @return the watch, to be closed when the operation is done
+     */
+    public Watch watchOperation(String description) {
+        if (operationTimeoutMillis <= 0) {
+            return Watch.NONE;
+        }
+        return register(new Watch(description, operationTimeoutMillis, () -> metricRegistry.counter(METRIC_STALLED_OPERATIONS).inc()));
+    }
+
+    /**
+     * Starts watching a dataset. The dataset is processed by the current thread until {@link Watch#setThread(Thread)} says otherwise.
+     *
+     * @param datasetId the dataset id
+     * @param onTimeout what to do when the dataset times out, e.g. give up on it
+     * @return the watch, to be closed when the dataset leaves the pipeline
+     */
+    public Watch watchDataset(String datasetId, Runnable onTimeout) {
+        if (datasetTimeoutMillis <= 0) {
+            return Watch.NONE;
+        }
+        return register(new Watch("dataset " + datasetId, datasetTimeoutMillis, () -> {
+            metricRegistry.counter(METRIC_TIMED_OUT_DATASETS).inc();
+            onTimeout.run();
+        }));
+    }
+
+    private Watch register(Watch watch) {
+        long id = nextId.getAndIncrement();
+        watch.onClose = () -> watches.remove(id);
+        watches.put(id, watch);
+        return watch;
+    }
+
+    private void checkPeriodically(long intervalMillis) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+                check();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void check() {
+        long now = System.nanoTime();
+        for (Watch watch : watches.values()) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - watch.startNanos);
+            if (elapsedMillis >= watch.timeoutMillis && !watch.timedOut) {
+                watch.timedOut = true;
+                Thread watchedThread = watch.thread;
+                log.warn("{} has been running for {} s, longer than the timeout of {} s; thread {} is at:{}", watch.description, elapsedMillis / 1000,
+                    watch.timeoutMillis / 1000, watchedThread.getName(), formatStackTrace(watchedThread.getStackTrace()));
+                try {
+                    watch.onTimeout.run();
+                }
+                catch (RuntimeException e) {
+                    log.error("Error handling the timeout of {}", watch.description, e);
+                }
+            }
+        }
+    }
+
+    private static String formatStackTrace(StackTraceElement[] stackTrace) {
+        StringBuilder builder = new StringBuilder();
+        for (StackTraceElement element : stackTrace) {
+            builder.append(System.lineSeparator()).append("\tat ").append(element);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void close() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * An activity that is being watched.
+     */
+    public static class Watch implements AutoCloseable {
+        static final Watch NONE = new Watch("nothing", Long.MAX_VALUE, () -> {
+        });
+
+        private final String description;
+        private final long timeoutMillis;
+        private final Runnable onTimeout;
+        private final long startNanos = System.nanoTime();
+        private volatile Thread thread = Thread.currentThread();
+        private volatile boolean timedOut;
+        private Runnable onClose = () -> {
+        };
+
+        private Watch(String description, long timeoutMillis, Runnable onTimeout) {
+            this.description = description;
+            this.timeoutMillis = timeoutMillis;
+            this.onTimeout = onTimeout;
+        }
+
+        /**
+         * Sets the thread that now works on the activity, e.g. the worker of the next stage of the pipeline.
+         *
+         * @param thread the thread
+         */
+        public void setThread(Thread thread) {
+            this.thread = thread;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public void close() {
+            onClose.run();
+        }
+    }
+}
@@ -40,7 +40,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 
 public class XmlUtil {
-    private static final XPathFactory xPathFactory = XPathFactory.newInstance();
+    // XPathFactory is not thread-safe, and datasets are converted concurrently
+    private static final ThreadLocal<XPathFactory> xPathFactory = ThreadLocal.withInitial(XPathFactory::newInstance);
 
     public static Document readXml(Path path) throws ParserConfigurationException, IOException, SAXException {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -65,13 +66,13 @@ public class XmlUtil {
     }
 
     public static NodeList getNodeListByXPath(Node node, String xpath) throws XPathExpressionException {
-        XPath path = xPathFactory.newXPath();
+        XPath path = xPathFactory.get().newXPath();
         path.setNamespaceContext(XmlNamespacesContext.getInstance());
         return (NodeList) path.compile(xpath).evaluate(node, XPathConstants.NODESET);
     }
 
     public static Node getNodeByXPath(Node node, String xpath) throws XPathExpressionException {
-        XPath path = xPathFactory.newXPath();
+        XPath path = xPathFactory.get().newXPath();
         path.setNamespaceContext(XmlNamespacesContext.getInstance());
         return (Node) path.compile(xpath).evaluate(node, XPathConstants.NODE);
     }
@@ -15,5 +15,76 @@
  */
 package nl.knaw.dans.avexports.core;
 
-public class AvDatasetConverterTest {
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AvDatasetConverterTest extends AbstractTestWithTestDir {
+    private final Path integrationDir = Paths.get("src/test/resources/integration");
+
+    @Test
+    public void convert_should_write_each_export_batch_to_its_own_output_dir() throws Exception {
+        Path batchA = testDir.resolve("staging/a");
+        Path batchB = testDir.resolve("staging/b");
+        FileUtils.copyDirectory(integrationDir.resolve("input-bags").toFile(), batchA.toFile());
+        Files.createDirectories(batchB);
+        // Move the bag parents of every other dataset to the second batch
+        List<String> datasetIds = new ArrayList<>(new FedoraExports(batchA).getDatasetIds());
+        List<String> datasetIdsB = new ArrayList<>();
+        FedoraExports exportsA = new FedoraExports(batchA);
+        for (int i = 1; i < datasetIds.size(); i += 2) {
+            datasetIdsB.add(datasetIds.get(i));
+            for (Path bagParent : exportsA.getBagParentsForDatasetId(datasetIds.get(i))) {
+                Files.move(bagParent, batchB.resolve(bagParent.getFileName()));
+            }
+        }
+        Path outA = testDir.resolve("out-a");
+        Path outB = testDir.resolve("out-b");
+        Path reportFile = testDir.resolve("report.csv");
+
+        Path springfieldDir = integrationDir.resolve("springfield");
+        SpringfieldIndex springfieldIndex = SpringfieldIndex.build(springfieldDir, 1);
+        FileTransfer fileTransfer = FileTransfer.builder().build();
+        try (DatasetReport datasetReport = new DatasetReport(reportFile, Arrays.asList(AvDatasetConverter.STAGE_SCAN, AvDatasetConverter.STAGE_PUBLISH))) {
+            AvDatasetConverter.builder()
+                .exportBatches(Arrays.asList(new ExportBatch(new FedoraExports(batchA), outA), new ExportBatch(new FedoraExports(batchB), outB)))
+                .sources(new Sources(integrationDir.resolve("sources.csv")))
+                .springfieldIndex(springfieldIndex)
+                .springfieldFileRegistry(new SpringfieldFileRegistry(springfieldDir, springfieldIndex, fileTransfer, IoScheduler.UNLIMITED, true))
+                .fileTransfer(fileTransfer)
+                .datasetReport(datasetReport)
+                .failFast(true)
+                .build()
+                .convert();
+        }
+
+        List<String> lines = Files.readAllLines(reportFile);
+        assertThat(lines).hasSize(datasetIds.size() + 1);
+        List<String> bagParentsA = new ArrayList<>();
+        List<String> bagParentsB = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] values = line.split(",");
+            boolean inB = datasetIdsB.contains(values[0]);
+            assertThat(values[1]).isEqualTo(inB ? outB.toString() : outA.toString());
+            (inB ? bagParentsB : bagParentsA).addAll(Arrays.asList(values[3].split(" ")));
+        }
+        assertThat(listNames(outA)).containsExactlyInAnyOrderElementsOf(bagParentsA);
+        assertThat(listNames(outB)).isNotEmpty().containsExactlyInAnyOrderElementsOf(bagParentsB);
+    }
+
+    private static List<String> listNames(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackgroundDeleterTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void delete_should_move_directory_aside_at_once_and_delete_it_in_background() throws Exception {
+        Path staging = testDir.resolve("staging");
+        for (int i = 0; i < 20; i++) {
+            FileUtils.write(staging.resolve("parent" + i + "/bag/data/file.txt").toFile(), "content", "UTF-8");
+        }
+        BackgroundDeleter deleter = new BackgroundDeleter(4);
+
+        deleter.delete(staging);
+        assertThat(staging).doesNotExist();
+        Files.createDirectories(staging);
+
+        assertThat(deleter.awaitCompletion()).isTrue();
+        try (Stream<Path> entries = Files.list(testDir)) {
+            assertThat(entries).containsExactly(staging);
+        }
+    }
+
+    @Test
+    public void delete_should_also_delete_leftovers_of_earlier_run() throws Exception {
+        Path leftover = testDir.resolve("staging.deleting-12345");
+        FileUtils.write(leftover.resolve("parent/bag/bagit.txt").toFile(), "content", "UTF-8");
+        BackgroundDeleter deleter = new BackgroundDeleter(2);
+
+        deleter.delete(testDir.resolve("staging"));
+
+        assertThat(deleter.awaitCompletion()).isTrue();
+        assertThat(leftover).doesNotExist();
+    }
+
+    @Test
+    public void delete_should_not_follow_symbolic_links() throws Exception {
+        Path outside = testDir.resolve("outside/keep.txt");
+        FileUtils.write(outside.toFile(), "keep", "UTF-8");
+        Path staging = Files.createDirectories(testDir.resolve("staging"));
+        Files.createSymbolicLink(staging.resolve("link"), outside.getParent().toAbsolutePath());
+        BackgroundDeleter deleter = new BackgroundDeleter(2);
+
+        deleter.delete(staging);
+
+        assertThat(deleter.awaitCompletion()).isTrue();
+        assertThat(outside).hasContent("keep");
+    }
+}
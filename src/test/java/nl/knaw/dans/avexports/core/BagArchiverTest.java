@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BagArchiverTest extends AbstractTestWithTestDir {
+
+    private Path createBagParent() throws Exception {
+        Path bagParent = testDir.resolve("bag-parent");
+        FileUtils.write(bagParent.resolve("bag/bagit.txt").toFile(), "BagIt-Version: 0.97\n", StandardCharsets.UTF_8);
+        FileUtils.write(bagParent.resolve("bag/data/video.mp4").toFile(), "video content", StandardCharsets.UTF_8);
+        FileUtils.write(bagParent.resolve("bag/data/sub/readme.txt").toFile(), "readme", StandardCharsets.UTF_8);
+        return bagParent;
+    }
+
+    @Test
+    public void zip_should_contain_all_files_and_store_media_files() throws Exception {
+        Path bagParent = createBagParent();
+        Path payloadDir = bagParent.resolve("bag/data");
+        BagArchiver archiver = new BagArchiver(BagArchiver.Format.ZIP, IoScheduler.UNLIMITED);
+        Path archiveFile = archiver.getArchiveFile(bagParent, testDir);
+
+        try (BagArchiver.Archive archive = archiver.create(bagParent, archiveFile)) {
+            archive.addDirectory(payloadDir, null, Collections.emptySet(), Collections.emptyList());
+            archive.addDirectory(bagParent, payloadDir, Collections.emptySet(), Collections.emptyList());
+            archive.commit();
+        }
+
+        assertThat(archiveFile).hasFileName("bag-parent.zip");
+        assertThat(testDir.resolve("bag-parent.zip.part")).doesNotExist();
+        try (ZipFile zipFile = new ZipFile(archiveFile)) {
+            List<String> names = new ArrayList<>();
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                names.add(entry.getName());
+            }
+            assertThat(names).containsExactly("bag-parent/bag/data/", "bag-parent/bag/data/sub/", "bag-parent/bag/data/sub/readme.txt",
+                "bag-parent/bag/data/video.mp4", "bag-parent/", "bag-parent/bag/", "bag-parent/bag/bagit.txt");
+            ZipArchiveEntry video = zipFile.getEntry("bag-parent/bag/data/video.mp4");
+            assertThat(video.getMethod()).isEqualTo(ZipArchiveEntry.STORED);
+            assertThat(zipFile.getEntry("bag-parent/bag/data/sub/readme.txt").getMethod()).isEqualTo(ZipArchiveEntry.DEFLATED);
+            try (InputStream in = zipFile.getInputStream(video)) {
+                assertThat(IOUtils.toString(in, StandardCharsets.UTF_8)).isEqualTo("video content");
+            }
+        }
+    }
+
+    @Test
+    public void addDirectory_should_calculate_checksums_of_the_requested_files() throws Exception {
+        Path bagParent = createBagParent();
+        Path video = bagParent.resolve("bag/data/video.mp4");
+        BagArchiver archiver = new BagArchiver(BagArchiver.Format.TAR, IoScheduler.UNLIMITED);
+        Path archiveFile = archiver.getArchiveFile(bagParent, testDir);
+
+        Map<Path, Map<String, String>> checksums;
+        try (BagArchiver.Archive archive = archiver.create(bagParent, archiveFile)) {
+            checksums = archive.addDirectory(bagParent, null, Collections.singleton(video), Arrays.asList("MD5", "SHA1"));
+            archive.commit();
+        }
+
+        assertThat(checksums).containsOnlyKeys(video);
+        assertThat(checksums.get(video))
+            .containsEntry("MD5", DigestUtils.md5Hex("video content"))
+            .containsEntry("SHA1", DigestUtils.sha1Hex("video content"));
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream in = new TarArchiveInputStream(Files.newInputStream(archiveFile))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        assertThat(names).contains("bag-parent/bag/bagit.txt", "bag-parent/bag/data/video.mp4");
+    }
+
+    @Test
+    public void close_should_discard_an_uncommitted_archive() throws Exception {
+        Path bagParent = createBagParent();
+        BagArchiver archiver = new BagArchiver(BagArchiver.Format.ZIP, IoScheduler.UNLIMITED);
+        Path archiveFile = archiver.getArchiveFile(bagParent, testDir);
+
+        try (BagArchiver.Archive archive = archiver.create(bagParent, archiveFile)) {
+            archive.addDirectory(bagParent, null, Collections.emptySet(), Collections.emptyList());
+        }
+
+        assertThat(archiveFile).doesNotExist();
+        assertThat(testDir.resolve("bag-parent.zip.part")).doesNotExist();
+    }
+}
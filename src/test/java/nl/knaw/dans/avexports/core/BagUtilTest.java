@@ -21,6 +21,7 @@ import nl.knaw.dans.bagit.reader.BagReader;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -63,4 +64,40 @@ public class BagUtilTest extends AbstractTestWithTestDir {
         }
 
     }
+
+    @Test
+    public void copyBagWithLinkedPayload_should_hardlink_payload_files_and_copy_tag_files() throws Exception {
+        Path testBag = testDir.resolve("bag");
+        FileUtils.copyDirectory(Paths.get("src/test/resources/test-bags/bag1").toFile(), testBag.toFile());
+        Path copy = testDir.resolve("copy");
+
+        BagUtil.copyBagWithLinkedPayload(testBag, copy, FileTransfer.builder().build());
+
+        assertThat(Files.isSameFile(testBag.resolve("data/file1.txt"), copy.resolve("data/file1.txt"))).isTrue();
+        assertThat(Files.isSameFile(testBag.resolve("data/file2.txt"), copy.resolve("data/file2.txt"))).isTrue();
+        assertThat(Files.isSameFile(testBag.resolve("bag-info.txt"), copy.resolve("bag-info.txt"))).isFalse();
+        assertThat(Files.isSameFile(testBag.resolve("manifest-sha256.txt"), copy.resolve("manifest-sha256.txt"))).isFalse();
+        assertThat(copy.resolve("bag-info.txt")).hasSameTextualContentAs(testBag.resolve("bag-info.txt"));
+    }
+
+    @Test
+    public void writeBag_with_inventory_should_write_valid_payload_oxum_and_tag_manifests() throws Exception {
+        Path testBag = testDir.resolve("bag");
+        FileUtils.copyDirectory(Paths.get("src/test/resources/test-bags/bag1").toFile(), testBag.toFile());
+        Bag bag = new BagReader().read(testBag);
+        PayloadInventory inventory = PayloadInventory.build(testBag, 1);
+        Files.delete(testBag.resolve("data/file1.txt"));
+        inventory.remove("data/file1.txt");
+        BagUtil.removePayloadManifestEntriesForPath(bag, "data/file1.txt");
+
+        BagUtil.writeBag(bag, inventory, IoScheduler.UNLIMITED);
+
+        Bag written = new BagReader().read(testBag);
+        assertThat(written.getMetadata().get("Payload-Oxum")).containsExactly(inventory.getPayloadOxum());
+        for (Manifest tagManifest : written.getTagManifests()) {
+            for (Path tagFile : tagManifest.getFileToChecksumMap().keySet()) {
+                assertThat(tagManifest.getFileToChecksumMap().get(tagFile)).isEqualTo(new Hasher(tagFile, tagManifest.getAlgorithm().toString()).getChecksum());
+            }
+        }
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConversionEventsTest extends AbstractTestWithTestDir {
+
+    private List<RecordedEvent> readEvents(Path recordingFile, String name) throws Exception {
+        return RecordingFile.readAllEvents(recordingFile).stream()
+            .filter(event -> event.getEventType().getName().equals(name))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void recording_should_contain_checksum_event_with_current_dataset_id() throws Exception {
+        Path file = testDir.resolve("test.txt");
+        FileUtils.write(file.toFile(), "test", "UTF-8");
+        Path recordingFile = testDir.resolve("recording.jfr");
+
+        try (Recording recording = ConversionEvents.startRecording(recordingFile)) {
+            ConversionEvents.setCurrentDatasetId("easy-dataset:1");
+            try {
+                Hasher.getChecksums(file, Arrays.asList("MD5", "SHA1"));
+            }
+            finally {
+                ConversionEvents.setCurrentDatasetId(null);
+            }
+            recording.stop();
+        }
+
+        List<RecordedEvent> events = readEvents(recordingFile, "nl.knaw.dans.avexports.ChecksumComputed");
+        assertThat(events).hasSize(1);
+        RecordedEvent event = events.get(0);
+        assertThat(event.getString("datasetId")).isEqualTo("easy-dataset:1");
+        assertThat(event.getString("file")).isEqualTo(file.toString());
+        assertThat(event.getString("algorithms")).isEqualTo("MD5,SHA1");
+        assertThat(event.getLong("bytes")).isEqualTo(4);
+    }
+
+    @Test
+    public void events_should_not_be_recorded_without_recording() throws Exception {
+        Path file = testDir.resolve("test.txt");
+        FileUtils.write(file.toFile(), "test", "UTF-8");
+        Hasher.getChecksums(file, Arrays.asList("MD5"));
+        Path recordingFile = testDir.resolve("recording.jfr");
+
+        try (Recording recording = ConversionEvents.startRecording(recordingFile)) {
+            recording.stop();
+        }
+
+        assertThat(readEvents(recordingFile, "nl.knaw.dans.avexports.ChecksumComputed")).isEmpty();
+    }
+}
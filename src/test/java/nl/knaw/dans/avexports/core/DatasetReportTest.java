@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DatasetReportTest extends AbstractTestWithTestDir {
+
+    private DatasetRecord createRecord(String datasetId) {
+        DatasetRecord record = new DatasetRecord();
+        record.setDatasetId(datasetId);
+        record.setOutputDir("out");
+        record.setCodePath(AvDatasetConverter.CODE_PATH_NEW_VERSION_2);
+        record.getBagParents().addAll(Arrays.asList("parent-1", "parent-2"));
+        record.setSpringfieldFiles(2);
+        record.setSubtitles(1);
+        record.setBytesCopied(1000);
+        record.setBytesHashed(900);
+        record.setEmptyFilesRemoved(3);
+        record.getStageMillis().put("scan", 5L);
+        record.getStageMillis().put("fetch", 50L);
+        record.setStatus(DatasetRecord.STATUS_OK);
+        return record;
+    }
+
+    @Test
+    public void jsonl_report_should_contain_one_json_object_per_record() throws Exception {
+        Path file = testDir.resolve("report.jsonl");
+        DatasetRecord failed = createRecord("easy-dataset:2");
+        failed.setStatus(DatasetRecord.STATUS_FAILED);
+        failed.setFailedStage("fetch");
+        failed.setError("NoSuchFileException: video.mp4");
+
+        try (DatasetReport report = new DatasetReport(file, Arrays.asList("scan", "fetch"))) {
+            report.write(createRecord("easy-dataset:1"));
+            report.write(failed);
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(2);
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode first = objectMapper.readTree(lines.get(0));
+        assertThat(first.get("datasetId").asText()).isEqualTo("easy-dataset:1");
+        assertThat(first.get("bagParents").size()).isEqualTo(2);
+        assertThat(first.get("bytesCopied").asLong()).isEqualTo(1000);
+        assertThat(first.get("stageMillis").get("fetch").asLong()).isEqualTo(50);
+        JsonNode second = objectMapper.readTree(lines.get(1));
+        assertThat(second.get("status").asText()).isEqualTo("FAILED");
+        assertThat(second.get("failedStage").asText()).isEqualTo("fetch");
+        assertThat(second.get("error").asText()).isEqualTo("NoSuchFileException: video.mp4");
+    }
+
+    @Test
+    public void csv_report_should_have_a_column_per_stage() throws Exception {
+        Path file = testDir.resolve("report.csv");
+
+        try (DatasetReport report = new DatasetReport(file, Arrays.asList("scan", "fetch", "publish"))) {
+            report.write(createRecord("easy-dataset:1"));
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).containsExactly(
+            "dataset_id,output_dir,code_path,bag_parents,springfield_files,subtitles,bytes_copied,bytes_hashed,empty_files_removed,estimated_memory,status,failed_stage,error,"
+                + "scan_millis,fetch_millis,publish_millis",
+            "easy-dataset:1,out,springfield-new-version-2,parent-1 parent-2,2,1,1000,900,3,0,OK,,,5,50,");
+    }
+
+    @Test
+    public void records_should_be_flushed_when_written() throws Exception {
+        Path file = testDir.resolve("report.jsonl");
+
+        try (DatasetReport report = new DatasetReport(file, Arrays.asList("scan", "fetch"))) {
+            report.write(createRecord("easy-dataset:1"));
+            assertThat(Files.readAllLines(file, StandardCharsets.UTF_8)).hasSize(1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DurabilityTest extends AbstractTestWithTestDir {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private Path bagParent;
+    private Path bagDir;
+
+    @BeforeEach
+    public void createBag() throws Exception {
+        bagParent = testDir.resolve("bag-parent");
+        bagDir = bagParent.resolve("bag");
+        Files.createDirectories(bagDir.resolve("data/sub"));
+        Files.createDirectories(bagDir.resolve("metadata"));
+        Files.write(bagDir.resolve("data/sub/video.mp4"), new byte[10]);
+        Files.write(bagDir.resolve("metadata/files.xml"), new byte[10]);
+        Files.write(bagDir.resolve("bagit.txt"), new byte[10]);
+    }
+
+    @Test
+    public void bagWritten_should_force_all_files_and_directories_with_per_bag() throws Exception {
+        Durability durability = new Durability(Durability.Policy.PER_BAG, metricRegistry);
+        durability.fileWritten(bagDir.resolve("metadata/files.xml"));
+        durability.tagFilesWritten(bagDir);
+        durability.bagWritten(bagParent);
+
+        assertThat(metricRegistry.timer(Durability.METRIC_FILE_SYNC).getCount()).isEqualTo(3);
+        // bag-parent, bag, data, data/sub and metadata
+        assertThat(metricRegistry.timer(Durability.METRIC_DIRECTORY_SYNC).getCount()).isEqualTo(5);
+        assertThat(metricRegistry.timer(Durability.METRIC_BAG_SYNC).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter(Durability.METRIC_NANOS).getCount()).isPositive();
+    }
+
+    @Test
+    public void per_file_should_force_files_when_written_and_only_the_directories_of_the_bag() throws Exception {
+        Durability durability = new Durability(Durability.Policy.PER_FILE, metricRegistry);
+        durability.fileWritten(bagDir.resolve("data/sub/video.mp4"));
+        // files.xml and bagit.txt, not the payload
+        durability.tagFilesWritten(bagDir);
+        assertThat(metricRegistry.timer(Durability.METRIC_FILE_SYNC).getCount()).isEqualTo(3);
+
+        durability.bagWritten(bagParent);
+        assertThat(metricRegistry.timer(Durability.METRIC_FILE_SYNC).getCount()).isEqualTo(3);
+        assertThat(metricRegistry.timer(Durability.METRIC_DIRECTORY_SYNC).getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void bagWritten_should_record_the_time_of_a_failed_pass() throws Exception {
+        Durability durability = new Durability(Durability.Policy.PER_BAG, metricRegistry);
+
+        assertThatThrownBy(() -> durability.bagWritten(testDir.resolve("missing")))
+            .isInstanceOf(NoSuchFileException.class);
+        assertThat(metricRegistry.timer(Durability.METRIC_BAG_SYNC).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void none_should_force_nothing() throws Exception {
+        Durability durability = new Durability(Durability.Policy.NONE, metricRegistry);
+        durability.fileWritten(bagDir.resolve("metadata/files.xml"));
+        durability.tagFilesWritten(bagDir);
+        durability.bagWritten(bagParent);
+        durability.published(testDir);
+
+        assertThat(metricRegistry.counter(Durability.METRIC_NANOS).getCount()).isZero();
+        assertThat(metricRegistry.timer(Durability.METRIC_BAG_SYNC).getCount()).isZero();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FileTransferTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void copyFile_should_copy_content_in_chunks_and_preserve_modification_time() throws Exception {
+        Path source = testDir.resolve("source.txt");
+        FileUtils.write(source.toFile(), "some content that is longer than one chunk", "UTF-8");
+        Files.setLastModifiedTime(source, FileTime.fromMillis(1000000000000L));
+        Path target = testDir.resolve("subdir/target.txt");
+        MetricRegistry metricRegistry = new MetricRegistry();
+        long bytesCopied = ThreadIoCounters.get().getBytesCopied();
+
+        FileTransfer.builder().chunkSize(5).metricRegistry(metricRegistry).build().copyFile(source, target);
+
+        assertThat(target).hasSameBinaryContentAs(source);
+        assertThat(Files.getLastModifiedTime(target)).isEqualTo(Files.getLastModifiedTime(source));
+        assertThat(metricRegistry.meter("transfer.bytes").getCount()).isEqualTo(Files.size(source));
+        assertThat(ThreadIoCounters.get().getBytesCopied() - bytesCopied).isEqualTo(Files.size(source));
+    }
+
+    @Test
+    public void copyFile_should_replace_leftover_of_an_interrupted_copy() throws Exception {
+        Path source = testDir.resolve("source.txt");
+        FileUtils.write(source.toFile(), "complete content", "UTF-8");
+        Path target = testDir.resolve("target.txt");
+        FileUtils.write(testDir.resolve("target.txt" + FileTransfer.PART_SUFFIX).toFile(), "compl", "UTF-8");
+
+        FileTransfer.builder().extendToFinalSize(true).build().copyFile(source, target);
+
+        assertThat(target).hasContent("complete content");
+        assertThat(testDir.resolve("target.txt" + FileTransfer.PART_SUFFIX)).doesNotExist();
+    }
+
+    @Test
+    public void copyFile_should_record_the_time_of_a_failed_copy() throws Exception {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        FileTransfer fileTransfer = FileTransfer.builder().metricRegistry(metricRegistry).build();
+
+        assertThatThrownBy(() -> fileTransfer.copyFile(testDir.resolve("missing.txt"), testDir.resolve("target.txt")))
+            .isInstanceOf(NoSuchFileException.class);
+        assertThat(metricRegistry.timer("transfer.files").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter("transfer.nanos").getCount()).isPositive();
+        assertThat(metricRegistry.meter("transfer.bytes").getCount()).isZero();
+    }
+
+    @Test
+    public void copyFile_should_copy_empty_file() throws Exception {
+        Path source = Files.createFile(testDir.resolve("empty.txt"));
+        Path target = testDir.resolve("target.txt");
+
+        FileTransfer.builder().build().copyFile(source, target);
+
+        assertThat(target).isEmptyFile();
+    }
+
+    @Test
+    public void copyFile_should_not_write_through_existing_hardlink() throws Exception {
+        Path source = testDir.resolve("source.txt");
+        FileUtils.write(source.toFile(), "new content", "UTF-8");
+        Path original = testDir.resolve("original.txt");
+        FileUtils.write(original.toFile(), "original content", "UTF-8");
+        Path target = Files.createLink(testDir.resolve("target.txt"), original);
+
+        FileTransfer.builder().build().copyFile(source, target);
+
+        assertThat(target).hasContent("new content");
+        assertThat(original).hasContent("original content");
+    }
+
+    @Test
+    public void copyDirectory_should_copy_all_files() throws Exception {
+        Path sourceDir = testDir.resolve("source");
+        FileUtils.write(sourceDir.resolve("a.txt").toFile(), "a", "UTF-8");
+        FileUtils.write(sourceDir.resolve("sub/b.txt").toFile(), "b", "UTF-8");
+        Path targetDir = testDir.resolve("target");
+
+        FileTransfer.builder().build().copyDirectory(sourceDir, targetDir);
+
+        assertThat(targetDir.resolve("a.txt")).hasContent("a");
+        assertThat(targetDir.resolve("sub/b.txt")).hasContent("b");
+    }
+}
@@ -19,9 +19,12 @@ import org.junit.jupiter.api.Test;
 import org.w3c.dom.Document;
 
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 
 public class FilesXmlTest extends AbstractTestWithTestDir {
     private static final String namespaceBindings =
@@ -217,4 +220,52 @@ public class FilesXmlTest extends AbstractTestWithTestDir {
         assertThat(filesXml.getFileIds()).containsExactly("easy-file:2");
     }
 
+    @Test
+    public void getFilepathsByFileId_should_return_all_filepaths_in_document_order() throws Exception {
+        String xml = "<files " + namespaceBindings + ">"
+            + " <file filepath=\"path/to/file1\">"
+            + "  <dct:identifier>easy-file:1</dct:identifier>"
+            + " </file>"
+            + " <file filepath=\"path/to/subtitles.vtt\">"
+            + "  <accessibleToRights>ANONYMOUS</accessibleToRights>"
+            + " </file>"
+            + " <file filepath=\"path/to/file2\">"
+            + "  <dct:identifier>easy-file:2</dct:identifier>"
+            + " </file>"
+            + "</files>";
+
+        FilesXml filesXml = new FilesXml(xml, null);
+        assertThat(filesXml.getFilepathsByFileId()).containsExactly(
+            entry("easy-file:1", "path/to/file1"),
+            entry("easy-file:2", "path/to/file2"));
+    }
+
+    @Test
+    public void removeFiles_should_remove_all_given_files() throws Exception {
+        String xml = "<files " + namespaceBindings + ">"
+            + " <file filepath=\"path/to/file1\">"
+            + "  <dct:identifier>easy-file:1</dct:identifier>"
+            + " </file>"
+            + " <file filepath=\"path/to/file2\">"
+            + "  <dct:identifier>easy-file:2</dct:identifier>"
+            + " </file>"
+            + " <file filepath=\"path/to/file3\">"
+            + "  <dct:identifier>easy-file:3</dct:identifier>"
+            + " </file>"
+            + "</files>";
+
+        FilesXml filesXml = new FilesXml(xml, null);
+        filesXml.removeFiles(Arrays.asList("easy-file:1", "easy-file:3"));
+
+        assertThat(filesXml.getFilepathsByFileId()).containsOnlyKeys("easy-file:2");
+    }
+
+    @Test
+    public void removeFiles_should_throw_exception_when_file_not_found() throws Exception {
+        String xml = "<files " + namespaceBindings + "></files>";
+        FilesXml filesXml = new FilesXml(xml, null);
+        assertThatThrownBy(() -> filesXml.removeFiles(Collections.singletonList("easy-file:1")))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("No file with id easy-file:1 found in files.xml");
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InboxWatcherTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void batches_should_be_converted_in_order_of_name_including_those_added_later() throws Exception {
+        Path inbox = testDir.resolve("inbox");
+        Path done = testDir.resolve("done");
+        Files.createDirectories(inbox.resolve("batch-2"));
+        Files.createDirectories(inbox.resolve("batch-1"));
+        Files.createDirectories(done);
+        List<String> converted = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        InboxWatcher watcher = new InboxWatcher(inbox, 1, 100, batchDir -> {
+            converted.add(batchDir.getFileName().toString());
+            Files.move(batchDir, done.resolve(batchDir.getFileName()));
+            latch.countDown();
+        }, new MetricRegistry());
+
+        try {
+            watcher.start();
+            FileUtils.forceMkdir(testDir.resolve("batch-3-incoming").toFile());
+            Files.move(testDir.resolve("batch-3-incoming"), inbox.resolve("batch-3"));
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            watcher.close();
+        }
+
+        assertThat(converted.subList(0, 2)).containsExactly("batch-1", "batch-2");
+        assertThat(converted).contains("batch-3");
+        assertThat(watcher.getStatus().get("batchesConverted")).isEqualTo(3L);
+    }
+
+    @Test
+    public void failed_batch_left_in_inbox_should_not_be_converted_again() throws Exception {
+        Path inbox = testDir.resolve("inbox");
+        Files.createDirectories(inbox.resolve("batch-1"));
+        List<String> converted = new CopyOnWriteArrayList<>();
+        InboxWatcher watcher = new InboxWatcher(inbox, 1, 50, batchDir -> {
+            converted.add(batchDir.getFileName().toString());
+            throw new IllegalStateException("Cannot convert");
+        }, new MetricRegistry());
+
+        try {
+            watcher.start();
+            Thread.sleep(500);
+        }
+        finally {
+            watcher.close();
+        }
+
+        assertThat(converted).containsExactly("batch-1");
+        assertThat(watcher.getStatus().get("batchesFailed")).isEqualTo(1L);
+        assertThat(watcher.getStatus().get("batchesLeftInInbox")).isEqualTo(Collections.singletonList("batch-1"));
+    }
+
+    @Test
+    public void status_server_should_serve_status_of_watcher_and_metrics() throws Exception {
+        Path inbox = testDir.resolve("inbox");
+        Files.createDirectories(inbox);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.counter(AvDatasetConverter.METRIC_DATASETS_IN_FLIGHT).inc(2);
+        InboxWatcher watcher = new InboxWatcher(inbox, 4, 100, batchDir -> {
+        }, metricRegistry);
+        StatusServer statusServer = new StatusServer(0, metricRegistry, watcher::getStatus);
+
+        try {
+            statusServer.start();
+            ObjectMapper objectMapper = new ObjectMapper();
+            JsonNode status = objectMapper.readTree(new URL("http://localhost:" + statusServer.getPort() + "/status"));
+            JsonNode metrics = objectMapper.readTree(new URL("http://localhost:" + statusServer.getPort() + "/metrics"));
+
+            assertThat(status.get("queueDepth").asInt()).isEqualTo(0);
+            assertThat(status.get("inFlightDatasets").asLong()).isEqualTo(2);
+            assertThat(metrics.get("gauges").has("inbox.queue-depth")).isTrue();
+        }
+        finally {
+            statusServer.close();
+        }
+    }
+}
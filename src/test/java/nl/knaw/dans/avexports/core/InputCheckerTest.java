@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InputCheckerTest extends AbstractTestWithTestDir {
+    private static final String bagDirName = "eaa33307-4795-40a3-9051-e7d91a21838e/f0b85307-268a-4238-a813-b361ea93feb1";
+
+    private Path inputDir;
+    private Sources sources;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        inputDir = testDir.resolve("input");
+        FileUtils.copyDirectory(Paths.get("src/test/resources/integration/input-bags").toFile(), inputDir.toFile());
+        sources = new Sources(Paths.get("src/test/resources/integration/sources.csv"));
+    }
+
+    private VerificationResult getResult(List<VerificationResult> results, Path bagDir) {
+        return results.stream().filter(result -> result.getBagDir().equals(bagDir)).findFirst().orElseThrow(IllegalStateException::new);
+    }
+
+    @Test
+    public void check_should_find_all_integration_input_bags_valid() throws Exception {
+        List<VerificationResult> results = new InputChecker(sources, 1.0, Long.MAX_VALUE, 4, IoScheduler.UNLIMITED).check(new FedoraExports(inputDir));
+
+        assertThat(results).hasSize(5).allMatch(VerificationResult::isValid);
+    }
+
+    @Test
+    public void check_should_skip_pseudo_files() throws Exception {
+        List<VerificationResult> results = new InputChecker(sources, 1.0, Long.MAX_VALUE, 1, IoScheduler.UNLIMITED).check(new FedoraExports(inputDir));
+
+        // The .mov file is replaced by a Springfield file
+        VerificationResult result = getResult(results, inputDir.resolve(bagDirName));
+        assertThat(result.getFilesSkipped()).isEqualTo(1);
+        assertThat(result.getFilesHashed()).isEqualTo(5);
+    }
+
+    @Test
+    public void check_should_report_a_corrupt_payload_file() throws Exception {
+        Path file = inputDir.resolve(bagDirName).resolve("data/ICA_DeJager_KroniekvaneenBazenbondje_Interview_Peter_Essenberg_0.txt");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.write('#');
+        }
+
+        List<VerificationResult> results = new InputChecker(sources, 1.0, Long.MAX_VALUE, 4, IoScheduler.UNLIMITED).check(new FedoraExports(inputDir));
+
+        VerificationResult result = getResult(results, inputDir.resolve(bagDirName));
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getErrors()).anyMatch(error -> error.contains("checksum of data/ICA_DeJager_KroniekvaneenBazenbondje_Interview_Peter_Essenberg_0.txt"));
+        assertThat(results.stream().filter(VerificationResult::isValid)).hasSize(4);
+    }
+
+    @Test
+    public void check_should_not_hash_more_than_the_size_cap() throws Exception {
+        List<VerificationResult> results = new InputChecker(sources, 1.0, 0, 1, IoScheduler.UNLIMITED).check(new FedoraExports(inputDir));
+
+        assertThat(results).allMatch(result -> result.getBytesHashed() == 0 && result.getFilesSkipped() > 0);
+    }
+
+    @Test
+    public void check_should_skip_files_that_would_take_the_bytes_hashed_over_the_size_cap() throws Exception {
+        List<VerificationResult> results = new InputChecker(sources, 1.0, 500_000, 1, IoScheduler.UNLIMITED).check(new FedoraExports(inputDir));
+
+        assertThat(results).allMatch(result -> result.getBytesHashed() <= 500_000);
+        assertThat(results).anyMatch(result -> result.getFilesHashed() > 0);
+    }
+}
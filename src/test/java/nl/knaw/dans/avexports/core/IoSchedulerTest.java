@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.avexports.core.IoScheduler.IoGroup;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IoSchedulerTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void run_should_not_exceed_max_concurrent_streams_of_group() throws Exception {
+        Path root = testDir.resolve("springfield");
+        IoScheduler ioScheduler = new IoScheduler(Collections.singletonList(new IoGroup("springfield", root, 2, 0)), new MetricRegistry());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 8; i++) {
+                executor.submit(() -> {
+                    ioScheduler.run(() -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+                        running.decrementAndGet();
+                        return null;
+                    }, root.resolve("file.mp4"));
+                    done.countDown();
+                    return null;
+                });
+            }
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void run_should_not_limit_paths_outside_all_groups() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(Collections.singletonList(new IoGroup("springfield", testDir.resolve("springfield"), 1, 0)),
+            new MetricRegistry());
+
+        String result = ioScheduler.run(() -> ioScheduler.run(() -> "nested", testDir.resolve("other/b")), testDir.resolve("other/a"));
+
+        assertThat(result).isEqualTo("nested");
+    }
+
+    @Test
+    public void throttle_should_limit_bandwidth_of_group() throws Exception {
+        Path root = testDir.resolve("output");
+        MetricRegistry metricRegistry = new MetricRegistry();
+        IoScheduler ioScheduler = new IoScheduler(Arrays.asList(
+            new IoGroup("springfield", testDir.resolve("springfield"), 4, 0),
+            new IoGroup("output", root, 4, 1000)), metricRegistry);
+
+        long start = System.nanoTime();
+        ioScheduler.throttle(100, root.resolve("a"));
+        ioScheduler.throttle(100, root.resolve("b"));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The first 100 bytes go through immediately, the second 100 bytes wait for 100 ms at 1000 bytes per second
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(90);
+        assertThat(metricRegistry.meter("io.output.bytes").getCount()).isEqualTo(200);
+        assertThat(metricRegistry.meter("io.springfield.bytes").getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void runWithRetries_should_count_retries_per_kind_of_operation() throws Exception {
+        Path root = testDir.resolve("springfield");
+        MetricRegistry metricRegistry = new MetricRegistry();
+        IoScheduler ioScheduler = new IoScheduler(Collections.singletonList(new IoGroup("springfield", root, 1, 0)), metricRegistry,
+            new RetryPolicy(3, 1, 1));
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = ioScheduler.runWithRetries("copy", () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("Input/output error");
+            }
+            return "copied";
+        }, root.resolve("file.mp4"));
+
+        assertThat(result).isEqualTo("copied");
+        assertThat(metricRegistry.counter("io.retries.copy").getCount()).isEqualTo(1);
+        assertThatThrownBy(() -> ioScheduler.runWithRetries("hash", () -> {
+            throw new IOException("Input/output error");
+        }, root.resolve("file.mp4"))).isInstanceOf(IOException.class);
+        assertThat(metricRegistry.counter("io.retries.hash").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.counter("io.retries-exhausted.hash").getCount()).isEqualTo(1);
+    }
+}
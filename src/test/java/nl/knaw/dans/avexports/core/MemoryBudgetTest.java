@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryBudgetTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void estimate_should_count_the_xml_documents_and_the_manifest_entries() throws Exception {
+        Path bagDir = testDir.resolve("bag");
+        Files.createDirectories(bagDir.resolve("metadata"));
+        Files.write(bagDir.resolve("metadata/files.xml"), new byte[1000]);
+        Files.write(bagDir.resolve("metadata/dataset.xml"), new byte[100]);
+        Files.write(bagDir.resolve("manifest-sha1.txt"), "a  data/a\nb  data/b\nc  data/c".getBytes(StandardCharsets.UTF_8));
+        Files.write(bagDir.resolve("tagmanifest-sha1.txt"), "d  bagit.txt\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(bagDir.resolve("bagit.txt"), "BagIt-Version: 0.97\n".getBytes(StandardCharsets.UTF_8));
+
+        long dom = 1100 * MemoryBudget.DOM_BYTES_PER_XML_BYTE + 4 * MemoryBudget.BYTES_PER_MANIFEST_ENTRY;
+        assertThat(MemoryBudget.estimate(Collections.singletonList(bagDir), Long.MAX_VALUE)).isEqualTo(dom);
+        // A copied bag counts twice
+        assertThat(MemoryBudget.estimate(Arrays.asList(bagDir, bagDir), Long.MAX_VALUE)).isEqualTo(2 * dom);
+        // A streamed files.xml takes less
+        assertThat(MemoryBudget.estimate(Collections.singletonList(bagDir), 1000))
+            .isEqualTo(1000 * MemoryBudget.STREAMED_BYTES_PER_XML_BYTE + 100 * MemoryBudget.DOM_BYTES_PER_XML_BYTE + 4 * MemoryBudget.BYTES_PER_MANIFEST_ENTRY);
+    }
+
+    @Test
+    public void acquire_should_wait_until_the_bytes_fit_in_the_budget() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(100);
+        memoryBudget.acquire(60);
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                memoryBudget.acquire(60);
+                admitted.countDown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+
+        assertThat(admitted.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        memoryBudget.release(60);
+        assertThat(admitted.await(5, TimeUnit.SECONDS)).isTrue();
+        thread.join();
+        assertThat(memoryBudget.getStatistics())
+            .containsEntry("bytesInUse", 60L)
+            .containsEntry("peakBytesInUse", 60L)
+            .containsEntry("admitted", 2L)
+            .containsEntry("waited", 1L);
+    }
+
+    @Test
+    public void acquire_should_throw_when_the_budget_is_closed_while_waiting() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(100);
+        memoryBudget.acquire(60);
+        AtomicReference<Exception> thrown = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                memoryBudget.acquire(60);
+            }
+            catch (Exception e) {
+                thrown.set(e);
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+
+        memoryBudget.close();
+        thread.join(5000);
+        assertThat(thread.isAlive()).isFalse();
+        assertThat(thrown.get()).isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    public void aborted_pipeline_should_return_the_memory_of_all_items() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(25);
+        // Id and estimate
+        List<long[]> items = Arrays.asList(new long[] { 1, 10 }, new long[] { 2, 10 }, new long[] { 3, 16 });
+        Pipeline<long[]> pipeline = new Pipeline<long[]>(2, (item, stage, e) -> {
+            memoryBudget.release(item[1]);
+            return false;
+        })
+            .onDrop((item, stage) -> {
+                memoryBudget.close();
+                memoryBudget.release(item[1]);
+            })
+            .stage("scan", 1, item -> memoryBudget.acquire(item[1]))
+            .stage("fetch", 1, item -> {
+                if (item[0] == 2) {
+                    Thread.sleep(100);
+                    throw new IllegalStateException("fetch failed");
+                }
+            })
+            .stage("publish", 1, item -> {
+                Thread.sleep(200);
+                memoryBudget.release(item[1]);
+            });
+        AtomicReference<Exception> thrown = new AtomicReference<>();
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(items.iterator());
+            }
+            catch (Exception e) {
+                thrown.set(e);
+            }
+        });
+
+        runner.start();
+        runner.join(10000);
+        assertThat(runner.isAlive()).isFalse();
+        assertThat(thrown.get()).hasMessage("fetch failed");
+        assertThat(memoryBudget.getStatistics()).containsEntry("bytesInUse", 0L);
+    }
+
+    @Test
+    public void acquire_should_admit_more_than_the_budget_when_nothing_else_is_admitted() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(100);
+        memoryBudget.acquire(500);
+
+        assertThat(memoryBudget.getStatistics()).containsEntry("peakBytesInUse", 500L);
+        assertThat(memoryBudget.getStatistics().get("peakHeapUsed")).isPositive();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OutputVerifierTest extends AbstractTestWithTestDir {
+
+    private Path copyTestBag() throws Exception {
+        Path bagDir = testDir.resolve("bag-parent/bag");
+        FileUtils.copyDirectory(Paths.get("src/test/resources/test-bags/bag1").toFile(), bagDir.toFile());
+        return bagDir;
+    }
+
+    private FileInfo getFileInfo(Path file) throws Exception {
+        return FileInfo.of(Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    @Test
+    public void verify_should_hash_all_files_of_a_valid_bag() throws Exception {
+        Path bagDir = copyTestBag();
+
+        VerificationResult result = new OutputVerifier(1.0, 2, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        assertThat(result.getErrors()).isEmpty();
+        assertThat(result.isValid()).isTrue();
+        // Two payload files and four tag files
+        assertThat(result.getFilesHashed()).isEqualTo(6);
+        assertThat(result.getFilesConfirmed()).isEqualTo(0);
+    }
+
+    @Test
+    public void verify_should_count_bytes_hashed_in_parallel_on_the_calling_thread() throws Exception {
+        Path bagDir = copyTestBag();
+        long hashedBefore = ThreadIoCounters.get().getBytesHashed();
+
+        VerificationResult result = new OutputVerifier(1.0, 4, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        assertThat(result.isValid()).isTrue();
+        assertThat(ThreadIoCounters.get().getBytesHashed() - hashedBefore).isEqualTo(result.getBytesHashed());
+    }
+
+    @Test
+    public void verify_should_report_a_changed_payload_file() throws Exception {
+        Path bagDir = copyTestBag();
+        FileUtils.write(bagDir.resolve("data/file2.txt").toFile(), "other", "UTF-8");
+
+        VerificationResult result = new OutputVerifier(1.0, 1, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getErrors()).anyMatch(error -> error.startsWith("SHA256 checksum of data/file2.txt is"));
+    }
+
+    @Test
+    public void verify_should_confirm_recorded_files_without_hashing_them() throws Exception {
+        Path bagDir = copyTestBag();
+        Path file1 = bagDir.resolve("data/file1.txt");
+        OutputVerifier verifier = new OutputVerifier(1.0, 1, IoScheduler.UNLIMITED);
+        verifier.record("bag-parent", "data/file1.txt", getFileInfo(file1), Hasher.getChecksums(file1, Arrays.asList("SHA256", "SHA512")));
+
+        VerificationResult result = verifier.verify("bag-parent", bagDir);
+
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getFilesConfirmed()).isEqualTo(1);
+        assertThat(result.getFilesHashed()).isEqualTo(5);
+    }
+
+    @Test
+    public void verify_should_hash_a_recorded_file_that_changed_since_it_was_recorded() throws Exception {
+        Path bagDir = copyTestBag();
+        Path file1 = bagDir.resolve("data/file1.txt");
+        OutputVerifier verifier = new OutputVerifier(1.0, 1, IoScheduler.UNLIMITED);
+        Map<String, String> checksums = Hasher.getChecksums(file1, Arrays.asList("SHA256", "SHA512"));
+        verifier.record("bag-parent", "data/file1.txt", getFileInfo(file1), checksums);
+        FileUtils.write(file1.toFile(), "changed!!!", "UTF-8");
+
+        VerificationResult result = verifier.verify("bag-parent", bagDir);
+
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getFilesConfirmed()).isEqualTo(0);
+    }
+
+    @Test
+    public void verify_should_only_hash_tag_files_with_sample_rate_zero() throws Exception {
+        Path bagDir = copyTestBag();
+        FileUtils.write(bagDir.resolve("data/file2.txt").toFile(), "other", "UTF-8");
+
+        VerificationResult result = new OutputVerifier(0.0, 1, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        // The changed file has the same size and is not sampled, so the change goes unnoticed
+        assertThat(result.getFilesHashed()).isEqualTo(4);
+        assertThat(result.getFilesSkipped()).isEqualTo(2);
+        assertThat(result.isValid()).isTrue();
+    }
+
+    @Test
+    public void verify_should_report_payload_files_missing_from_the_manifests() throws Exception {
+        Path bagDir = copyTestBag();
+        FileUtils.write(bagDir.resolve("data/extra.txt").toFile(), "", "UTF-8");
+
+        VerificationResult result = new OutputVerifier(1.0, 1, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        assertThat(result.getErrors()).contains("SHA256 payload manifest lists 2 files, but the payload has 3");
+    }
+
+    @Test
+    public void verify_should_report_a_bag_that_cannot_be_read() throws Exception {
+        Path bagDir = Files.createDirectories(testDir.resolve("bag-parent/not-a-bag"));
+
+        VerificationResult result = new OutputVerifier(1.0, 1, IoScheduler.UNLIMITED).verify("bag-parent", bagDir);
+
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getErrors()).hasSize(1).allMatch(error -> error.startsWith("Could not verify bag"));
+    }
+}
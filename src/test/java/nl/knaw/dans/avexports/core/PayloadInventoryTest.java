@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PayloadInventoryTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void build_should_find_same_files_walking_sequentially_and_in_parallel() throws Exception {
+        Path bagDir = testDir.resolve("bag");
+        FileUtils.write(bagDir.resolve("data/a.txt").toFile(), "abc", "UTF-8");
+        FileUtils.write(bagDir.resolve("data/sub/b.txt").toFile(), "de", "UTF-8");
+        Files.createFile(bagDir.resolve("data/sub/empty.txt"));
+        FileUtils.write(bagDir.resolve("bag-info.txt").toFile(), "not payload", "UTF-8");
+
+        for (int parallelism : new int[] { 1, 4 }) {
+            PayloadInventory inventory = PayloadInventory.build(bagDir, parallelism);
+
+            assertThat(inventory.size()).isEqualTo(3);
+            assertThat(inventory.get("data/sub/b.txt")).hasValueSatisfying(info -> assertThat(info.getSize()).isEqualTo(2));
+            assertThat(inventory.get("data/sub/empty.txt")).hasValueSatisfying(info -> assertThat(info.getSize()).isEqualTo(0));
+            assertThat(inventory.get("bag-info.txt")).isEmpty();
+            assertThat(inventory.getPayloadOxum()).isEqualTo("5.3");
+        }
+    }
+
+    @Test
+    public void getPayloadOxum_should_reflect_updates_and_removals() throws Exception {
+        Path bagDir = testDir.resolve("bag");
+        FileUtils.write(bagDir.resolve("data/a.txt").toFile(), "abc", "UTF-8");
+        Files.createFile(bagDir.resolve("data/empty.txt"));
+        PayloadInventory inventory = PayloadInventory.build(bagDir, 1);
+
+        FileUtils.write(bagDir.resolve("data/new.txt").toFile(), "1234567", "UTF-8");
+        inventory.update("data/new.txt");
+        inventory.remove("data/empty.txt");
+
+        assertThat(inventory.getPayloadOxum()).isEqualTo("10.2");
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PipelineTest {
+
+    @Test
+    public void run_should_pass_all_items_through_all_stages() throws Exception {
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+
+        new Pipeline<StringBuilder>(1, (item, stage, e) -> false)
+            .stage("first", 2, item -> item.append("-a"))
+            .stage("second", 3, item -> item.append("-b"))
+            .stage("third", 1, item -> published.add(item.toString()))
+            .run(Arrays.asList(new StringBuilder("1"), new StringBuilder("2"), new StringBuilder("3"), new StringBuilder("4")).iterator());
+
+        assertThat(published).containsExactlyInAnyOrder("1-a-b", "2-a-b", "3-a-b", "4-a-b");
+    }
+
+    @Test
+    public void run_should_drop_failed_item_and_continue_if_failure_handler_returns_true() throws Exception {
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+
+        new Pipeline<String>(2, (item, stage, e) -> failed.add(item + "@" + stage))
+            .stage("check", 2, item -> {
+                if (item.equals("bad")) {
+                    throw new IllegalStateException("bad item");
+                }
+            })
+            .stage("publish", 1, published::add)
+            .run(Arrays.asList("good1", "bad", "good2").iterator());
+
+        assertThat(failed).containsExactly("bad@check");
+        assertThat(published).containsExactlyInAnyOrder("good1", "good2");
+    }
+
+    @Test
+    public void run_should_throw_cause_and_stop_starting_items_if_failure_handler_returns_false() {
+        AtomicInteger started = new AtomicInteger();
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(1, (item, stage, e) -> false)
+            .stage("fail", 1, item -> {
+                started.incrementAndGet();
+                throw new IllegalStateException("failed " + item);
+            });
+
+        assertThatThrownBy(() -> pipeline.run(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10).iterator()))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessage("failed 1");
+        assertThat(started.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void run_should_pass_items_in_progress_to_drop_handler_if_pipeline_is_aborted() {
+        List<String> left = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(2, (item, stage, e) -> left.add(item + " failed in " + stage) && false)
+            .onDrop((item, stage) -> left.add(item + " dropped before " + stage))
+            .stage("first", 1, item -> {
+            })
+            .stage("second", 1, item -> {
+                if (item == 1) {
+                    Thread.sleep(100);
+                    throw new IllegalStateException("failed " + item);
+                }
+            })
+            .stage("third", 1, item -> left.add(item + " done"));
+
+        assertThatThrownBy(() -> pipeline.run(Arrays.asList(1, 2, 3).iterator()))
+            .hasMessage("failed 1");
+        assertThat(left).containsExactlyInAnyOrder("1 failed in second", "2 dropped before second", "3 dropped before second");
+    }
+
+    @Test
+    public void run_should_pass_item_to_failure_handler_and_abort_on_error() {
+        List<String> left = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(2, (item, stage, e) -> left.add(item + " failed in " + stage))
+            .onDrop((item, stage) -> left.add(item + " dropped before " + stage))
+            .stage("first", 1, item -> {
+                if (item == 1) {
+                    Thread.sleep(100);
+                    throw new AssertionError("error " + item);
+                }
+            });
+
+        assertThatThrownBy(() -> pipeline.run(Arrays.asList(1, 2).iterator()))
+            .hasRootCauseInstanceOf(AssertionError.class);
+        assertThat(left).containsExactly("1 failed in first", "2 dropped before first");
+    }
+
+    @Test
+    public void paused_pipeline_should_finish_items_in_progress_but_not_start_new_ones_until_resumed() throws Exception {
+        List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(1, (item, stage, e) -> false)
+            .stage("publish", 1, published::add);
+        pipeline.pause();
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(Arrays.asList(1, 2, 3).iterator());
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        runner.start();
+        Thread.sleep(200);
+        assertThat(published).isEmpty();
+        assertThat(pipeline.isPaused()).isTrue();
+        pipeline.resume();
+        runner.join(5000);
+
+        assertThat(runner.isAlive()).isFalse();
+        assertThat(published).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void setConcurrency_should_add_workers_to_running_stage() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(10, (item, stage, e) -> false)
+            .stage("slow", 1, item -> {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                firstStarted.countDown();
+                Thread.sleep(100);
+                active.decrementAndGet();
+            })
+            .stage("publish", 1, published::add);
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(IntStream.range(0, 12).boxed().collect(Collectors.toList()).iterator());
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        runner.start();
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        pipeline.setConcurrency("slow", 4);
+        assertThat(pipeline.getConcurrency()).containsEntry("slow", 4).containsEntry("publish", 1);
+        runner.join(10000);
+
+        assertThat(runner.isAlive()).isFalse();
+        assertThat(maxActive.get()).isGreaterThan(1).isLessThanOrEqualTo(4);
+        assertThat(published).hasSize(12);
+    }
+
+    @Test
+    public void setConcurrency_should_retire_surplus_workers_after_their_current_item() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActiveAfterLowering = new AtomicInteger();
+        CountDownLatch lowered = new CountDownLatch(1);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(10, (item, stage, e) -> false)
+            .stage("slow", 4, item -> {
+                int now = active.incrementAndGet();
+                if (lowered.getCount() == 0) {
+                    maxActiveAfterLowering.accumulateAndGet(now, Math::max);
+                }
+                firstStarted.countDown();
+                Thread.sleep(50);
+                active.decrementAndGet();
+            })
+            .stage("publish", 1, published::add);
+        Thread runner = new Thread(() -> {
+            try {
+                pipeline.run(IntStream.range(0, 40).boxed().collect(Collectors.toList()).iterator());
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        runner.start();
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        pipeline.setConcurrency("slow", 1);
+        // Let the workers that were busy when the concurrency was lowered finish their items
+        Thread.sleep(200);
+        lowered.countDown();
+        runner.join(10000);
+
+        assertThat(runner.isAlive()).isFalse();
+        assertThat(maxActiveAfterLowering.get()).isEqualTo(1);
+        assertThat(published).hasSize(40);
+    }
+
+    @Test
+    public void setConcurrency_should_reject_unknown_stage() {
+        Pipeline<Integer> pipeline = new Pipeline<Integer>(1, (item, stage, e) -> false)
+            .stage("publish", 1, item -> {
+            });
+
+        assertThatThrownBy(() -> pipeline.setConcurrency("other", 2)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void abandon_should_fail_a_stuck_item_and_let_the_other_items_continue() throws Exception {
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Pipeline<String> pipeline = new Pipeline<String>(1, (item, stage, e) -> failed.add(item + "@" + stage + ":" + e.getMessage()))
+            .stage("fetch", 1, item -> {
+                if (item.equals("hang")) {
+                    stuck.countDown();
+                    // Like a hung read, ignore interrupts
+                    while (true) {
+                        try {
+                            release.await();
+                            break;
+                        }
+                        catch (InterruptedException e) {
+                            // still stuck
+                        }
+                    }
+                }
+            })
+            .stage("publish", 1, published::add);
+        Thread abandoner = new Thread(() -> {
+            try {
+                stuck.await();
+                pipeline.abandon("hang", new TimeoutException("timed out"));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        abandoner.start();
+
+        try {
+            pipeline.run(Arrays.asList("a", "hang", "b", "c").iterator());
+        }
+        finally {
+            release.countDown();
+        }
+
+        abandoner.join();
+        assertThat(failed).containsExactly("hang@fetch:timed out");
+        assertThat(published).containsExactly("a", "b", "c");
+        assertThat(pipeline.abandon("a", new TimeoutException("too late"))).isFalse();
+    }
+}
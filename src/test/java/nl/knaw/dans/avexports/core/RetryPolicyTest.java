@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void run_should_retry_transient_errors_until_the_operation_succeeds() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 1, 10);
+        AtomicInteger attempts = new AtomicInteger();
+        List<Integer> retried = new ArrayList<>();
+
+        String result = retryPolicy.run("test", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new FileSystemException("file", null, "Stale file handle");
+            }
+            return "ok";
+        }, (attempt, e) -> retried.add(attempt));
+
+        assertThat(result).isEqualTo("ok");
+        assertThat(retried).containsExactly(1, 2);
+    }
+
+    @Test
+    public void run_should_throw_the_last_error_when_all_attempts_fail() {
+        RetryPolicy retryPolicy = new RetryPolicy(2, 1, 10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> retryPolicy.run("test", () -> {
+            throw new IOException("Input/output error " + attempts.incrementAndGet());
+        }, (attempt, e) -> {
+        })).hasMessage("Input/output error 2");
+    }
+
+    @Test
+    public void run_should_not_retry_errors_that_are_not_transient() {
+        RetryPolicy retryPolicy = new RetryPolicy(5, 1, 10);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> retryPolicy.run("test", () -> {
+            attempts.incrementAndGet();
+            throw new NoSuchFileException("file");
+        }, (attempt, e) -> {
+        })).isInstanceOf(NoSuchFileException.class);
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void getDelayMillis_should_double_the_delay_up_to_the_maximum() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000);
+
+        assertThat(retryPolicy.getDelayMillis(1)).isEqualTo(100);
+        assertThat(retryPolicy.getDelayMillis(2)).isEqualTo(200);
+        assertThat(retryPolicy.getDelayMillis(4)).isEqualTo(800);
+        assertThat(retryPolicy.getDelayMillis(5)).isEqualTo(1000);
+        assertThat(retryPolicy.getDelayMillis(9)).isEqualTo(1000);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpringfieldFileRegistryTest extends AbstractTestWithTestDir {
+    private static final Path springfieldDir = Paths.get("src/test/resources/integration/springfield");
+    private static final String springfieldFile = "domain/dans/user/nini/video/12/rawvideo/2/NH173.mp4";
+
+    @Test
+    public void stage_should_hardlink_file_that_was_staged_before() throws Exception {
+        SpringfieldFileRegistry registry = new SpringfieldFileRegistry(springfieldDir, SpringfieldIndex.build(springfieldDir, 1), FileTransfer.builder().build(), IoScheduler.UNLIMITED, true);
+        Path first = Files.createDirectories(testDir.resolve("bag1")).resolve("NH173.mp4");
+        Path second = Files.createDirectories(testDir.resolve("bag2")).resolve("NH173.mp4");
+
+        registry.stage(springfieldFile, first);
+        registry.stage(springfieldFile, second);
+
+        assertThat(Files.isSameFile(first, second)).isTrue();
+        assertThat(second).hasSameBinaryContentAs(springfieldDir.resolve(springfieldFile));
+    }
+
+    @Test
+    public void stage_should_copy_file_if_hardlinking_is_disabled() throws Exception {
+        SpringfieldFileRegistry registry = new SpringfieldFileRegistry(springfieldDir, SpringfieldIndex.build(springfieldDir, 1), FileTransfer.builder().build(), IoScheduler.UNLIMITED, false);
+        Path first = Files.createDirectories(testDir.resolve("bag1")).resolve("NH173.mp4");
+        Path second = Files.createDirectories(testDir.resolve("bag2")).resolve("NH173.mp4");
+
+        registry.stage(springfieldFile, first);
+        registry.stage(springfieldFile, second);
+
+        assertThat(Files.isSameFile(first, second)).isFalse();
+        assertThat(second).hasSameBinaryContentAs(springfieldDir.resolve(springfieldFile));
+    }
+
+    @Test
+    public void stage_should_hardlink_prefetched_copy() throws Exception {
+        Path sourcesCsv = testDir.resolve("sources.csv");
+        FileUtils.write(sourcesCsv.toFile(), "easy_file_id,dataset_id,path_in_springfield_dir\n"
+            + "easy-file:1,easy-dataset:2," + springfieldFile + "\n", "UTF-8");
+        SpringfieldIndex springfieldIndex = SpringfieldIndex.build(springfieldDir, 1);
+        Path scratchDir = testDir.resolve("scratch");
+        SpringfieldPrefetcher prefetcher = new SpringfieldPrefetcher(springfieldDir, springfieldIndex, new Sources(sourcesCsv),
+            FileTransfer.builder().build(), scratchDir, 1, Long.MAX_VALUE);
+        prefetcher.setDatasetOrder(Arrays.asList("easy-dataset:1", "easy-dataset:2"));
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+        SpringfieldFileRegistry registry = new SpringfieldFileRegistry(springfieldDir, springfieldIndex, FileTransfer.builder().build(), IoScheduler.UNLIMITED,
+            prefetcher, false);
+        Path staged = Files.createDirectories(testDir.resolve("bag")).resolve("NH173.mp4");
+
+        registry.stage(springfieldFile, staged);
+
+        assertThat(Files.isSameFile(staged, scratchDir.resolve(springfieldFile))).isTrue();
+        assertThat(staged).hasSameBinaryContentAs(springfieldDir.resolve(springfieldFile));
+        assertThat(prefetcher.getStatistics()).containsEntry("hits", 1L);
+    }
+
+    @Test
+    public void getChecksums_should_return_checksums_of_staged_file() throws Exception {
+        SpringfieldFileRegistry registry = new SpringfieldFileRegistry(springfieldDir, SpringfieldIndex.build(springfieldDir, 1), FileTransfer.builder().build(), IoScheduler.UNLIMITED, true);
+        Path staged = testDir.resolve("NH173.mp4");
+        registry.stage(springfieldFile, staged);
+
+        Map<String, String> checksums = registry.getChecksums(springfieldFile, staged, Arrays.asList("SHA1", "MD5"));
+
+        assertThat(checksums).containsEntry("SHA1", new Hasher(staged, "SHA1").getChecksum());
+        assertThat(checksums).containsEntry("MD5", new Hasher(staged, "MD5").getChecksum());
+    }
+
+    @Test
+    public void stage_should_hardlink_to_new_location_after_relocate() throws Exception {
+        SpringfieldFileRegistry registry = new SpringfieldFileRegistry(springfieldDir, SpringfieldIndex.build(springfieldDir, 1), FileTransfer.builder().build(), IoScheduler.UNLIMITED, true);
+        Path oldDir = Files.createDirectories(testDir.resolve("staging/bag"));
+        Path newDir = testDir.resolve("output/bag");
+        registry.stage(springfieldFile, oldDir.resolve("NH173.mp4"));
+        Files.createDirectories(newDir.getParent());
+        Files.move(oldDir, newDir);
+
+        registry.relocate(oldDir, newDir);
+        Path second = Files.createDirectories(testDir.resolve("staging/bag2")).resolve("NH173.mp4");
+        registry.stage(springfieldFile, second);
+
+        assertThat(Files.isSameFile(second, newDir.resolve("NH173.mp4"))).isTrue();
+    }
+}
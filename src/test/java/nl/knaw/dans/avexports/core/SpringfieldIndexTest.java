@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpringfieldIndexTest extends AbstractTestWithTestDir {
+    private static final Path springfieldDir = Paths.get("src/test/resources/integration/springfield");
+    private static final String avFile = "domain/dans/user/Caleidoscoop_Film/video/31/rawvideo/2/GV_CaleidoscoopFilm_ingekwartierd_08.mp4";
+
+    @Test
+    public void getSubtitles_should_find_the_same_subtitles_as_listing_the_directory() {
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldDir, 2);
+        Subtitles subtitles = index.getSubtitles(avFile);
+        Subtitles expected = new Subtitles(springfieldDir.resolve(avFile));
+
+        assertThat(subtitles.getLanguages()).containsExactlyInAnyOrderElementsOf(expected.getLanguages());
+        assertThat(subtitles.getSubtitleFile("en")).isEqualTo(expected.getSubtitleFile("en"));
+        assertThat(subtitles.getSubtitleFile("nl")).isEqualTo(expected.getSubtitleFile("nl"));
+    }
+
+    @Test
+    public void getSubtitles_should_return_no_languages_for_file_without_subtitles() {
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldDir, 2);
+        assertThat(index.getSubtitles("domain/dans/user/nini/video/12/rawvideo/2/NH173.mp4").getLanguages()).isEmpty();
+    }
+
+    @Test
+    public void getSubtitles_should_list_directory_that_is_not_in_the_index() throws Exception {
+        Path springfieldCopy = testDir.resolve("springfield");
+        Files.createDirectories(springfieldCopy);
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldCopy, 2);
+        FileUtils.copyDirectory(springfieldDir.toFile(), springfieldCopy.toFile());
+
+        assertThat(index.getSubtitles(avFile).getLanguages()).containsExactlyInAnyOrder("en", "nl");
+    }
+
+    @Test
+    public void getSubtitles_should_throw_for_missing_directory() {
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldDir, 2);
+        assertThatThrownBy(() -> index.getSubtitles("domain/dans/user/nobody/video/1/rawvideo/2/missing.mp4"))
+            .isInstanceOf(UncheckedIOException.class);
+    }
+
+    @Test
+    public void getFileInfo_should_return_size_of_file() throws Exception {
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldDir, 2);
+        long expectedSize = Files.size(springfieldDir.resolve(avFile));
+        assertThat(index.getFileInfo(avFile)).hasValueSatisfying(info -> assertThat(info.getSize()).isEqualTo(expectedSize));
+        assertThat(index.getFileInfo("domain/dans/user/nini/video/12/rawvideo/2/nonexistent.mp4")).isEmpty();
+    }
+
+    @Test
+    public void load_should_use_cache_file_until_a_directory_is_modified() throws Exception {
+        Path springfieldCopy = testDir.resolve("springfield");
+        FileUtils.copyDirectory(springfieldDir.toFile(), springfieldCopy.toFile());
+        Path cacheFile = testDir.resolve("index.json");
+
+        SpringfieldIndex index = SpringfieldIndex.load(springfieldCopy, cacheFile, 2);
+        assertThat(cacheFile).exists();
+        assertThat(index.getSubtitles(avFile).getLanguages()).containsExactlyInAnyOrder("en", "nl");
+
+        SpringfieldIndex cachedIndex = SpringfieldIndex.load(springfieldCopy, cacheFile, 2);
+        assertThat(cachedIndex.getSubtitles(avFile).getLanguages()).containsExactlyInAnyOrder("en", "nl");
+        assertThat(cachedIndex.getSubtitles(avFile).getSubtitleFile("en")).isEqualTo(index.getSubtitles(avFile).getSubtitleFile("en"));
+
+        Path itemDir = springfieldCopy.resolve(avFile).getParent().getParent().getParent();
+        Files.write(itemDir.resolve("de_GV_CaleidoscoopFilm_ingekwartierd_08_conversation.srt.vtt"), "WEBVTT".getBytes());
+        // Make sure the change is visible even on filesystems with a coarse timestamp granularity
+        Files.setLastModifiedTime(itemDir, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        SpringfieldIndex rebuiltIndex = SpringfieldIndex.load(springfieldCopy, cacheFile, 2);
+        assertThat(rebuiltIndex.getSubtitles(avFile).getLanguages()).containsExactlyInAnyOrder("de", "en", "nl");
+    }
+
+    @Test
+    public void refresh_should_list_only_modified_directories_again() throws Exception {
+        Path springfieldCopy = testDir.resolve("springfield");
+        FileUtils.copyDirectory(springfieldDir.toFile(), springfieldCopy.toFile());
+        SpringfieldIndex index = SpringfieldIndex.build(springfieldCopy, 2);
+        // Make sure the changes are visible even on filesystems with a coarse timestamp granularity
+        FileTime later = FileTime.fromMillis(System.currentTimeMillis() + 10000);
+        Path itemDir = springfieldCopy.resolve(avFile).getParent().getParent().getParent();
+        Files.write(itemDir.resolve("de_GV_CaleidoscoopFilm_ingekwartierd_08_conversation.srt.vtt"), "WEBVTT".getBytes());
+        Files.setLastModifiedTime(itemDir, later);
+        String addedFile = "domain/dans/user/added/video/1/rawvideo/2/added.mp4";
+        FileUtils.write(springfieldCopy.resolve(addedFile).toFile(), "added", "UTF-8");
+        Files.setLastModifiedTime(springfieldCopy.resolve("domain/dans/user"), later);
+        String removedFile = "domain/dans/user/nini/video/12/rawvideo/2/NH173.mp4";
+        FileUtils.deleteDirectory(springfieldCopy.resolve("domain/dans/user/nini/video/12").toFile());
+        Files.setLastModifiedTime(springfieldCopy.resolve("domain/dans/user/nini/video"), later);
+
+        // The item directory, domain/dans/user and nini/video are modified; nini/video/12 and its two subdirectories are gone
+        assertThat(index.refresh(2)).isEqualTo(6);
+
+        assertThat(index.getSubtitles(avFile).getLanguages()).containsExactlyInAnyOrder("de", "en", "nl");
+        assertThat(index.getFileInfo(addedFile)).hasValueSatisfying(info -> assertThat(info.getSize()).isEqualTo(5));
+        assertThat(index.getFileInfo(removedFile)).isEmpty();
+        assertThat(index.getFileInfo(avFile)).isPresent();
+        assertThat(index.refresh(2)).isZero();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpringfieldLocalityTest extends AbstractTestWithTestDir {
+
+    private Sources writeSources() throws Exception {
+        Path sourcesCsv = testDir.resolve("sources.csv");
+        Files.write(sourcesCsv, Arrays.asList(
+            "easy_file_id,dataset_id,path_in_springfield_dir",
+            "easy-file:1,easy-dataset:1,domain/dans/user/b/video/10/rawvideo/2/file.mp4",
+            "easy-file:2,easy-dataset:2,domain/dans/user/a/video/9/rawvideo/2/file.mp4",
+            "easy-file:3,easy-dataset:2,domain/dans/user/b/video/2/rawvideo/2/file.mp4",
+            "easy-file:4,easy-dataset:3,domain/dans/user/a/video/10/rawvideo/2/file.mp4"));
+        return new Sources(sourcesCsv);
+    }
+
+    @Test
+    public void sortDatasets_should_order_by_first_springfield_path_and_put_datasets_without_springfield_files_first() throws Exception {
+        SpringfieldLocality locality = new SpringfieldLocality(testDir, writeSources(), SpringfieldLocality.Order.PATH);
+
+        List<String> sorted = locality.sortDatasets(Arrays.asList("easy-dataset:1", "easy-dataset:2", "easy-dataset:3", "easy-dataset:4"));
+
+        assertThat(sorted).containsExactly("easy-dataset:4", "easy-dataset:2", "easy-dataset:3", "easy-dataset:1");
+    }
+
+    @Test
+    public void sortDatasets_should_keep_the_input_order_for_order_input() throws Exception {
+        SpringfieldLocality locality = new SpringfieldLocality(testDir, writeSources(), SpringfieldLocality.Order.INPUT);
+
+        assertThat(locality.sortDatasets(Arrays.asList("easy-dataset:3", "easy-dataset:1", "easy-dataset:2")))
+            .containsExactly("easy-dataset:3", "easy-dataset:1", "easy-dataset:2");
+    }
+
+    @Test
+    public void sortFiles_should_order_by_inode_number_if_available() throws Exception {
+        SpringfieldLocality locality = new SpringfieldLocality(testDir, writeSources(), SpringfieldLocality.Order.INODE);
+        List<String> files = Arrays.asList("z.mp4", "a.mp4", "m.mp4");
+        for (String file : files) {
+            Files.createFile(testDir.resolve(file));
+        }
+
+        List<String> sorted = locality.sortFiles(Arrays.asList("a.mp4", "m.mp4", "missing.mp4", "z.mp4"));
+
+        // Files without an inode number come last
+        assertThat(sorted).hasSize(4).endsWith("missing.mp4");
+        for (int i = 0; i < 2; i++) {
+            assertThat(locality.getInode(sorted.get(i))).isLessThanOrEqualTo(locality.getInode(sorted.get(i + 1)));
+        }
+    }
+
+    @Test
+    public void comparePaths_should_compare_numeric_elements_as_numbers() {
+        assertThat(SpringfieldLocality.comparePaths("video/9/a.mp4", "video/10/a.mp4")).isNegative();
+        assertThat(SpringfieldLocality.comparePaths("video/010/a.mp4", "video/9/a.mp4")).isPositive();
+        assertThat(SpringfieldLocality.comparePaths("video/b", "video/a/x")).isPositive();
+        assertThat(SpringfieldLocality.comparePaths("video", "video/a")).isNegative();
+    }
+}
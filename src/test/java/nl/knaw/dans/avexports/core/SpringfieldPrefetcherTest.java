@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpringfieldPrefetcherTest extends AbstractTestWithTestDir {
+    private Path springfieldDir;
+    private Sources sources;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        springfieldDir = testDir.resolve("springfield");
+        FileUtils.write(springfieldDir.resolve("a/1.mp4").toFile(), "0123456789", "UTF-8");
+        FileUtils.write(springfieldDir.resolve("b/2.mp4").toFile(), "abcdefghij", "UTF-8");
+        FileUtils.write(springfieldDir.resolve("c/3.mp4").toFile(), "ABCDEFGHIJ", "UTF-8");
+        Path sourcesCsv = testDir.resolve("sources.csv");
+        FileUtils.write(sourcesCsv.toFile(), "easy_file_id,dataset_id,path_in_springfield_dir\n"
+            + "easy-file:1,easy-dataset:1,a/1.mp4\n"
+            + "easy-file:2,easy-dataset:2,b/2.mp4\n"
+            + "easy-file:3,easy-dataset:3,c/3.mp4\n", "UTF-8");
+        sources = new Sources(sourcesCsv);
+    }
+
+    private SpringfieldPrefetcher createPrefetcher(int lookAhead, long maxBytes) {
+        SpringfieldPrefetcher prefetcher = new SpringfieldPrefetcher(springfieldDir, SpringfieldIndex.build(springfieldDir, 1), sources,
+            FileTransfer.builder().build(), testDir.resolve("scratch"), lookAhead, maxBytes);
+        prefetcher.setDatasetOrder(Arrays.asList("easy-dataset:1", "easy-dataset:2", "easy-dataset:3"));
+        return prefetcher;
+    }
+
+    @Test
+    public void datasetStarted_should_prefetch_files_of_next_datasets_only() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(1, 1000);
+
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+
+        assertThat(prefetcher.acquire("a/1.mp4")).isEmpty();
+        assertThat(prefetcher.acquire("b/2.mp4")).hasValueSatisfying(copy -> assertThat(copy).hasContent("abcdefghij"));
+        assertThat(prefetcher.acquire("c/3.mp4")).isEmpty();
+    }
+
+    @Test
+    public void prefetch_should_evict_consumed_copy_to_make_room() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(1, 10);
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+        Path copy = prefetcher.acquire("b/2.mp4").orElseThrow(IllegalStateException::new);
+        prefetcher.release("b/2.mp4");
+
+        prefetcher.datasetStarted("easy-dataset:2");
+        prefetcher.awaitScheduledPrefetches();
+
+        assertThat(copy).doesNotExist();
+        assertThat(prefetcher.acquire("c/3.mp4")).isPresent();
+    }
+
+    @Test
+    public void prefetch_should_not_evict_copy_that_was_not_consumed() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(2, 10);
+
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+
+        assertThat(prefetcher.acquire("b/2.mp4")).isPresent();
+        assertThat(prefetcher.acquire("c/3.mp4")).isEmpty();
+    }
+
+    @Test
+    public void datasetFinished_should_make_copies_of_a_failed_dataset_evictable() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(1, 10);
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+
+        // Failed before its file was staged
+        prefetcher.datasetFinished("easy-dataset:2");
+        prefetcher.datasetStarted("easy-dataset:2");
+        prefetcher.awaitScheduledPrefetches();
+
+        assertThat(prefetcher.acquire("b/2.mp4")).isEmpty();
+        assertThat(prefetcher.acquire("c/3.mp4")).isPresent();
+    }
+
+    @Test
+    public void prefetch_should_evict_copy_that_could_not_be_made() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(1, 10);
+        // Gone after the index was built
+        Files.delete(springfieldDir.resolve("b/2.mp4"));
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+
+        prefetcher.datasetStarted("easy-dataset:2");
+        prefetcher.awaitScheduledPrefetches();
+
+        assertThat(prefetcher.acquire("c/3.mp4")).isPresent();
+        assertThat(prefetcher.getStatistics()).containsEntry("evicted", 1L);
+    }
+
+    @Test
+    public void close_should_delete_scratch_directory() throws Exception {
+        SpringfieldPrefetcher prefetcher = createPrefetcher(1, 1000);
+        prefetcher.datasetStarted("easy-dataset:1");
+        prefetcher.awaitScheduledPrefetches();
+
+        prefetcher.close();
+
+        assertThat(Files.exists(testDir.resolve("scratch"))).isFalse();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StagingSyncTest extends AbstractTestWithTestDir {
+    private Path inputDir;
+    private Path stagingDir;
+    private Path outputDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        inputDir = testDir.resolve("input");
+        stagingDir = testDir.resolve("staging");
+        outputDir = Files.createDirectories(testDir.resolve("output"));
+        FileUtils.write(inputDir.resolve("parent1/bag/data/a.txt").toFile(), "a", "UTF-8");
+        FileUtils.write(inputDir.resolve("parent1/bag/manifest-sha1.txt").toFile(), "x  data/a.txt\n", "UTF-8");
+        FileUtils.write(inputDir.resolve("parent2/bag/data/b.txt").toFile(), "b", "UTF-8");
+        FileUtils.write(inputDir.resolve("parent2/bag/manifest-sha1.txt").toFile(), "y  data/b.txt\n", "UTF-8");
+    }
+
+    @Test
+    public void sync_should_copy_everything_to_empty_staging_directory() throws Exception {
+        new StagingSync(FileTransfer.builder().build(), StagingSync.Comparison.ATTRIBUTES).sync(inputDir, stagingDir, outputDir);
+
+        assertThat(stagingDir.resolve("parent1/bag/data/a.txt")).hasContent("a");
+        assertThat(stagingDir.resolve("parent2/bag/data/b.txt")).hasContent("b");
+    }
+
+    @Test
+    public void sync_should_recopy_changed_bag_parent_only() throws Exception {
+        StagingSync stagingSync = new StagingSync(FileTransfer.builder().build(), StagingSync.Comparison.ATTRIBUTES);
+        stagingSync.sync(inputDir, stagingDir, outputDir);
+        // Simulate a partly converted bag parent and a marker in an untouched one
+        Files.delete(stagingDir.resolve("parent1/bag/data/a.txt"));
+        FileTime parent2Modified = Files.getLastModifiedTime(stagingDir.resolve("parent2/bag/data/b.txt"));
+
+        stagingSync.sync(inputDir, stagingDir, outputDir);
+
+        assertThat(stagingDir.resolve("parent1/bag/data/a.txt")).hasContent("a");
+        assertThat(Files.getLastModifiedTime(stagingDir.resolve("parent2/bag/data/b.txt"))).isEqualTo(parent2Modified);
+    }
+
+    @Test
+    public void sync_should_remove_bag_parents_that_are_no_longer_in_input() throws Exception {
+        FileUtils.write(stagingDir.resolve("created-by-earlier-run/bag/data/c.txt").toFile(), "c", "UTF-8");
+
+        new StagingSync(FileTransfer.builder().build(), StagingSync.Comparison.ATTRIBUTES).sync(inputDir, stagingDir, outputDir);
+
+        assertThat(stagingDir.resolve("created-by-earlier-run")).doesNotExist();
+    }
+
+    @Test
+    public void sync_should_skip_bag_parents_that_are_already_in_the_output() throws Exception {
+        FileUtils.write(stagingDir.resolve("parent1/bag/data/a.txt").toFile(), "partly converted", "UTF-8");
+        Files.createDirectories(outputDir.resolve("parent1/bag"));
+        Files.createFile(outputDir.resolve("parent2.zip"));
+
+        new StagingSync(FileTransfer.builder().build(), StagingSync.Comparison.ATTRIBUTES).sync(inputDir, stagingDir, outputDir);
+
+        assertThat(stagingDir.resolve("parent1")).doesNotExist();
+        assertThat(stagingDir.resolve("parent2")).doesNotExist();
+    }
+
+    @Test
+    public void sync_with_manifest_comparison_should_ignore_modification_times_but_detect_changed_manifest() throws Exception {
+        FileUtils.copyDirectory(inputDir.toFile(), stagingDir.toFile(), false);
+        Files.setLastModifiedTime(stagingDir.resolve("parent1/bag/data/a.txt"), FileTime.fromMillis(0));
+        FileUtils.write(stagingDir.resolve("parent2/bag/manifest-sha1.txt").toFile(), "z  data/b.txt\n", "UTF-8");
+
+        new StagingSync(FileTransfer.builder().build(), StagingSync.Comparison.MANIFESTS).sync(inputDir, stagingDir, outputDir);
+
+        assertThat(Files.getLastModifiedTime(stagingDir.resolve("parent1/bag/data/a.txt"))).isEqualTo(FileTime.fromMillis(0));
+        assertThat(stagingDir.resolve("parent2/bag/manifest-sha1.txt")).hasContent("y  data/b.txt");
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+public class StreamingFilesXmlTest extends AbstractTestWithTestDir {
+    private static final Path integrationFilesXml = Paths.get("src/test/resources/integration/input-bags/eaa33307-4795-40a3-9051-e7d91a21838e/"
+        + "f0b85307-268a-4238-a813-b361ea93feb1/metadata/files.xml");
+
+    private static final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<files xmlns=\"http://easy.dans.knaw.nl/schemas/bag/metadata/files/\" xmlns:dct=\"http://purl.org/dc/terms/\">\n"
+        + "  <!-- a comment -->\n"
+        + "  <file filepath=\"data/a.mp4\">\n"
+        + "    <dct:identifier>easy-file:1</dct:identifier>\n"
+        + "    <accessibleToRights>ANONYMOUS</accessibleToRights>\n"
+        + "  </file>\n"
+        + "  <file filepath=\"data/b.txt\">\n"
+        + "    <dct:identifier>easy-file:2</dct:identifier>\n"
+        + "    <dct:title>b &amp; c</dct:title>\n"
+        + "    <accessibleToRights>NONE</accessibleToRights>\n"
+        + "  </file>\n"
+        + "  <file filepath=\"data/c.txt\">\n"
+        + "    <dct:identifier>easy-file:3</dct:identifier>\n"
+        + "    <accessibleToRights>RESTRICTED_REQUEST</accessibleToRights>\n"
+        + "  </file>\n"
+        + "</files>\n";
+
+    @Test
+    public void lookups_should_return_the_same_values_as_FilesXml() throws Exception {
+        Path file = writeXml("files.xml");
+        StreamingFilesXml streaming = new StreamingFilesXml(file);
+        FilesXml dom = new FilesXml(file);
+
+        assertThat(streaming.getFilepathsByFileId()).containsExactlyEntriesOf(dom.getFilepathsByFileId());
+        assertThat(streaming.getFilepathForFileId("easy-file:2")).isEqualTo("data/b.txt");
+        assertThat(streaming.getAccessibilityForFileId("easy-file:3")).isEqualTo(dom.getAccessibilityForFileId("easy-file:3"));
+        assertThatThrownBy(() -> streaming.getFilepathForFileId("easy-file:4"))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("No file with id easy-file:4 found in files.xml");
+    }
+
+    @Test
+    public void write_should_produce_the_same_document_as_FilesXml() throws Exception {
+        Path streamingFile = writeXml("streaming.xml");
+        Path domFile = writeXml("dom.xml");
+
+        applyEdits(new StreamingFilesXml(streamingFile));
+        applyEdits(new FilesXml(domFile));
+
+        assertEquivalent(streamingFile, domFile);
+    }
+
+    @Test
+    public void write_should_produce_the_same_document_as_FilesXml_for_an_integration_files_xml() throws Exception {
+        Path streamingFile = testDir.resolve("streaming.xml");
+        Path domFile = testDir.resolve("dom.xml");
+        Files.copy(integrationFilesXml, streamingFile);
+        Files.copy(integrationFilesXml, domFile);
+
+        for (FilesXmlDocument filesXml : Arrays.asList(new StreamingFilesXml(streamingFile), new FilesXml(domFile))) {
+            String accessibility = filesXml.getAccessibilityForFileId("easy-file:7296379");
+            filesXml.setFilepathForFileId("easy-file:7296379", "data/renamed.mov");
+            filesXml.addFile("data/renamed-nl.srt", accessibility);
+            filesXml.removeFiles(Collections.singletonList("easy-file:7296380"));
+            filesXml.write();
+        }
+
+        assertEquivalent(streamingFile, domFile);
+        assertThat(new StreamingFilesXml(streamingFile).getFilepathsByFileId())
+            .contains(entry("easy-file:7296379", "data/renamed.mov"))
+            .doesNotContainKey("easy-file:7296380");
+    }
+
+    @Test
+    public void write_should_not_write_added_files_that_were_deleted_again() throws Exception {
+        Path file = writeXml("files.xml");
+        StreamingFilesXml filesXml = new StreamingFilesXml(file);
+        filesXml.addFile("data/d.srt", "NONE");
+        filesXml.deleteFileElementForFilepath("data/d.srt");
+        filesXml.write();
+
+        assertThat(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).doesNotContain("data/d.srt");
+    }
+
+    @Test
+    public void removeFiles_should_throw_and_remove_nothing_if_an_id_is_not_found() throws Exception {
+        Path file = writeXml("files.xml");
+        StreamingFilesXml filesXml = new StreamingFilesXml(file);
+
+        assertThatThrownBy(() -> filesXml.removeFiles(Arrays.asList("easy-file:1", "easy-file:4")))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("No file with id easy-file:4 found in files.xml");
+        assertThat(filesXml.getFilepathsByFileId()).containsOnlyKeys("easy-file:1", "easy-file:2", "easy-file:3");
+    }
+
+    @Test
+    public void open_should_choose_the_implementation_by_size() throws Exception {
+        Path file = writeXml("files.xml");
+
+        assertThat(FilesXmlDocument.open(file, Files.size(file))).isInstanceOf(StreamingFilesXml.class);
+        assertThat(FilesXmlDocument.open(file, Files.size(file) + 1)).isInstanceOf(FilesXml.class);
+    }
+
+    private void applyEdits(FilesXmlDocument filesXml) throws Exception {
+        String accessibility = filesXml.getAccessibilityForFileId("easy-file:1");
+        filesXml.deleteFileElementForFilepath("data/c.txt");
+        filesXml.setFilepathForFileId("easy-file:1", "data/c.txt");
+        filesXml.addFile("data/c-nl.srt", accessibility);
+        filesXml.addFile("data/c-en.srt", accessibility);
+        filesXml.removeFiles(Collections.singletonList("easy-file:2"));
+        filesXml.write();
+    }
+
+    private Path writeXml(String name) throws Exception {
+        Path file = testDir.resolve(name);
+        Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void assertEquivalent(Path actual, Path expected) throws Exception {
+        Document actualDocument = XmlUtil.readXml(actual);
+        Document expectedDocument = XmlUtil.readXml(expected);
+        removeWhitespace(actualDocument);
+        removeWhitespace(expectedDocument);
+        assertThat(actualDocument.isEqualNode(expectedDocument))
+            .as("Expected %s%nbut was %s", XmlUtil.serializeNode(expectedDocument), XmlUtil.serializeNode(actualDocument))
+            .isTrue();
+    }
+
+    private static void removeWhitespace(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty()) {
+                node.removeChild(child);
+            }
+            else {
+                removeWhitespace(child);
+            }
+            child = next;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TaskExecutorTest {
+
+    private static boolean virtualThreadsSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void create_should_use_virtual_threads_only_if_the_runtime_supports_them() {
+        TaskExecutor taskExecutor = TaskExecutor.create(TaskExecutor.Threads.AUTO);
+
+        assertThat(taskExecutor.getName()).isEqualTo(virtualThreadsSupported() ? "virtual" : "platform");
+        Thread thread = taskExecutor.newThread("test-thread", () -> {
+        });
+        assertThat(thread.getName()).isEqualTo("test-thread");
+        assertThat(thread.getState()).isEqualTo(Thread.State.NEW);
+    }
+
+    @Test
+    public void create_should_fail_if_virtual_threads_are_required_but_not_supported() {
+        if (virtualThreadsSupported()) {
+            assertThat(TaskExecutor.create(TaskExecutor.Threads.VIRTUAL).getName()).isEqualTo("virtual");
+        }
+        else {
+            assertThatThrownBy(() -> TaskExecutor.create(TaskExecutor.Threads.VIRTUAL)).isInstanceOf(IllegalStateException.class);
+        }
+        assertThat(TaskExecutor.create(TaskExecutor.Threads.PLATFORM).getName()).isEqualTo("platform");
+    }
+
+    @Test
+    public void bounded_executor_should_run_at_most_the_given_number_of_tasks_at_the_same_time() throws Exception {
+        ExecutorService executor = new TaskExecutor.BoundedExecutorService(Executors.newCachedThreadPool(), 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch allSubmitted = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    allSubmitted.await(10, TimeUnit.SECONDS);
+                    Thread.sleep(10);
+                    running.decrementAndGet();
+                    return null;
+                }));
+            }
+            allSubmitted.countDown();
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2024 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.avexports.core;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WatchdogTest {
+
+    @Test
+    public void watchOperation_should_report_an_operation_that_runs_longer_than_the_timeout_once() throws Exception {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        try (Watchdog watchdog = new Watchdog(20, 0, metricRegistry)) {
+            try (Watchdog.Watch watch = watchdog.watchOperation("slow copy")) {
+                Thread.sleep(200);
+                assertThat(watch.isTimedOut()).isTrue();
+            }
+            try (Watchdog.Watch watch = watchdog.watchOperation("fast copy")) {
+                assertThat(watch.isTimedOut()).isFalse();
+            }
+            Thread.sleep(100);
+        }
+
+        assertThat(metricRegistry.counter(Watchdog.METRIC_STALLED_OPERATIONS).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void watchDataset_should_call_the_timeout_handler_for_a_dataset_that_runs_longer_than_the_timeout() throws Exception {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        CountDownLatch timedOut = new CountDownLatch(1);
+        try (Watchdog watchdog = new Watchdog(0, 20, metricRegistry)) {
+            // Operations are not watched with an operation timeout of 0
+            try (Watchdog.Watch watch = watchdog.watchOperation("copy")) {
+                try (Watchdog.Watch datasetWatch = watchdog.watchDataset("easy-dataset:1", timedOut::countDown)) {
+                    assertThat(timedOut.await(5, TimeUnit.SECONDS)).isTrue();
+                    assertThat(datasetWatch.isTimedOut()).isTrue();
+                }
+                assertThat(watch.isTimedOut()).isFalse();
+            }
+        }
+
+        assertThat(metricRegistry.counter(Watchdog.METRIC_TIMED_OUT_DATASETS).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.counter(Watchdog.METRIC_STALLED_OPERATIONS).getCount()).isEqualTo(0);
+    }
+}